@@ -0,0 +1,240 @@
+package nl.rutilo.labeldb;
+
+import java.util.Arrays;
+
+/** Container holding the set bit indices of a sparse bucket as sorted array */
+final class ArrayContainer extends BucketContainer {
+    private static final int INITIAL_CAPACITY = 4;
+    short[] values;
+    int size;
+
+    ArrayContainer() { this(new short[INITIAL_CAPACITY], 0); }
+    ArrayContainer(short[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    public int cardinality() { return size; }
+    public boolean contains(int bitIndex) {
+        return Arrays.binarySearch(values, 0, size, (short)bitIndex) >= 0;
+    }
+    public BucketContainer add(int bitIndex) {
+        final int insertAt;
+        if(size == 0 || values[size - 1] < bitIndex) {
+            insertAt = size; // fast path for appending in order
+        } else {
+            final int index = Arrays.binarySearch(values, 0, size, (short)bitIndex);
+            if(index >= 0) return this;
+            insertAt = -index - 1;
+        }
+        if(size >= MAX_ARRAY_SIZE) return toBitmapContainer().add(bitIndex);
+        if(size == values.length) values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, Math.min(MAX_ARRAY_SIZE, size * 2)));
+        System.arraycopy(values, insertAt, values, insertAt + 1, size - insertAt);
+        values[insertAt] = (short)bitIndex;
+        size++;
+        return this;
+    }
+    public BucketContainer remove(int bitIndex) {
+        final int index = Arrays.binarySearch(values, 0, size, (short)bitIndex);
+        if(index >= 0) {
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+        }
+        return this;
+    }
+    public int last() { return size == 0 ? -1 : values[size - 1]; }
+    public int nextSetBit(int fromBitIndex) {
+        final int index = lowerBound(fromBitIndex);
+        return index < size ? values[index] : -1;
+    }
+    public int previousSetBit(int fromBitIndex) {
+        final int index = lowerBound(fromBitIndex + 1) - 1;
+        return index >= 0 ? values[index] : -1;
+    }
+    public int rank(int bitIndex) { return lowerBound(bitIndex); }
+    public int select(int rank) { return values[rank]; }
+    public boolean intersects(int fromBitIndex, int uptoBitIndex) {
+        final int index = lowerBound(fromBitIndex);
+        return index < size && values[index] <= uptoBitIndex;
+    }
+
+    public BucketContainer not() {
+        final BitmapContainer bitmap = BitmapContainer.full();
+        for(int i=0; i<size; i++) bitmap.remove(values[i]);
+        return bitmap.optimize();
+    }
+    public BucketContainer and(BucketContainer other) {
+        if(other instanceof ArrayContainer) return andArray((ArrayContainer)other);
+        if(other instanceof RunContainer)   return andRuns((RunContainer)other);
+        return andBitmap(other);
+    }
+    public BucketContainer or(BucketContainer other) {
+        if(other instanceof ArrayContainer) return orArray((ArrayContainer)other);
+        return other.or(this);
+    }
+    public BucketContainer andNot(BucketContainer other) {
+        if(other instanceof ArrayContainer) return andNotArray((ArrayContainer)other);
+        if(other instanceof RunContainer)   return andNotRuns((RunContainer)other);
+        return andNotBitmap(other);
+    }
+    public int andCardinality(BucketContainer other) {
+        if(other instanceof ArrayContainer) return andCardinalityArray((ArrayContainer)other);
+        if(other instanceof RunContainer)   return andCardinalityRuns((RunContainer)other);
+        return andCardinalityBitmap(other);
+    }
+
+    private ArrayContainer andArray(ArrayContainer other) {
+        final short[] result = new short[Math.min(size, other.size)];
+        int count = 0;
+        for(int i=0, j=0; i<size && j<other.size; ) {
+            final short a = values[i];
+            final short b = other.values[j];
+            if(a < b) i++; else
+            if(a > b) j++; else { result[count++] = a; i++; j++; }
+        }
+        return new ArrayContainer(result, count);
+    }
+    private ArrayContainer andBitmap(BucketContainer other) { // bitmap on or off the heap
+        final short[] result = new short[size];
+        int count = 0;
+        for(int i=0; i<size; i++) if(other.contains(values[i])) result[count++] = values[i];
+        return new ArrayContainer(result, count);
+    }
+    private ArrayContainer andRuns(RunContainer other) {
+        final short[] result = new short[size];
+        int count = 0;
+        for(int i=0, r=0; i<size && r<other.runCount; ) {
+            final int value = values[i];
+            if(value < other.start(r)) i++; else
+            if(value > other.end(r))   r++; else { result[count++] = values[i]; i++; }
+        }
+        return new ArrayContainer(result, count);
+    }
+    private BucketContainer orArray(ArrayContainer other) {
+        if(size + other.size > MAX_ARRAY_SIZE) {
+            final BitmapContainer bitmap = toBitmapContainer();
+            for(int i=0; i<other.size; i++) bitmap.add(other.values[i]);
+            return bitmap.cardinality() <= MAX_ARRAY_SIZE ? bitmap.toArrayContainer() : bitmap;
+        }
+        final short[] result = new short[size + other.size];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while(i < size && j < other.size) {
+            final short a = values[i];
+            final short b = other.values[j];
+            if(a < b) { result[count++] = a; i++; } else
+            if(a > b) { result[count++] = b; j++; } else { result[count++] = a; i++; j++; }
+        }
+        while(i < size)       result[count++] = values[i++];
+        while(j < other.size) result[count++] = other.values[j++];
+        return new ArrayContainer(result, count);
+    }
+    private ArrayContainer andNotArray(ArrayContainer other) {
+        final short[] result = new short[size];
+        int count = 0;
+        int j = 0;
+        for(int i=0; i<size; i++) {
+            final short a = values[i];
+            while(j < other.size && other.values[j] < a) j++;
+            if(j >= other.size || other.values[j] != a) result[count++] = a;
+        }
+        return new ArrayContainer(result, count);
+    }
+    private ArrayContainer andNotBitmap(BucketContainer other) { // bitmap on or off the heap
+        final short[] result = new short[size];
+        int count = 0;
+        for(int i=0; i<size; i++) if(!other.contains(values[i])) result[count++] = values[i];
+        return new ArrayContainer(result, count);
+    }
+    private ArrayContainer andNotRuns(RunContainer other) {
+        final short[] result = new short[size];
+        int count = 0;
+        int r = 0;
+        for(int i=0; i<size; i++) {
+            final int value = values[i];
+            while(r < other.runCount && other.end(r) < value) r++;
+            if(r >= other.runCount || value < other.start(r)) result[count++] = values[i];
+        }
+        return new ArrayContainer(result, count);
+    }
+    private int andCardinalityArray(ArrayContainer other) {
+        int count = 0;
+        for(int i=0, j=0; i<size && j<other.size; ) {
+            final short a = values[i];
+            final short b = other.values[j];
+            if(a < b) i++; else
+            if(a > b) j++; else { count++; i++; j++; }
+        }
+        return count;
+    }
+    private int andCardinalityBitmap(BucketContainer other) {
+        int count = 0;
+        for(int i=0; i<size; i++) if(other.contains(values[i])) count++;
+        return count;
+    }
+    private int andCardinalityRuns(RunContainer other) {
+        int count = 0;
+        for(int i=0, r=0; i<size && r<other.runCount; ) {
+            final int value = values[i];
+            if(value < other.start(r)) i++; else
+            if(value > other.end(r))   r++; else { count++; i++; }
+        }
+        return count;
+    }
+
+    public boolean andInto(long[] words) {
+        long any = 0;
+        int wordIndex = 0;
+        for(int i=0; i<size; ) {
+            final int valueWordIndex = values[i] >>> 6;
+            while(wordIndex < valueWordIndex) words[wordIndex++] = 0;
+            long mask = 0;
+            while(i < size && (values[i] >>> 6) == valueWordIndex) mask |= 1L << values[i++];
+            any |= words[valueWordIndex] &= mask;
+            wordIndex = valueWordIndex + 1;
+        }
+        while(wordIndex < LONG_COUNT) words[wordIndex++] = 0;
+        return any != 0;
+    }
+    public void orInto(long[] words) {
+        for(int i=0; i<size; i++) words[values[i] >>> 6] |= 1L << values[i];
+    }
+
+    public ArrayContainer copy() {
+        return new ArrayContainer(Arrays.copyOf(values, size), size);
+    }
+    public int copyIndicesIn(int[] array, int arrayOffset, int idOffset) {
+        for(int i=0; i<size; i++) array[arrayOffset + i] = idOffset + values[i];
+        return size;
+    }
+    public long[] toLongs() {
+        final long[] longs = new long[LONG_COUNT];
+        for(int i=0; i<size; i++) longs[values[i] >>> 6] |= 1L << values[i];
+        return longs;
+    }
+    public int runCount() {
+        int count = 0;
+        for(int i=0; i<size; i++) if(i == 0 || values[i] != values[i-1] + 1) count++;
+        return count;
+    }
+
+    ArrayContainer toArrayContainer() { return this; }
+    BitmapContainer toBitmapContainer() { return new BitmapContainer(toLongs(), size); }
+    RunContainer toRunContainer() {
+        final RunContainer runs = new RunContainer(runCount());
+        for(int i=0; i<size; i++) runs.append(values[i], values[i]);
+        return runs;
+    }
+
+    /** Index of the first value that is equal or larger than given bitIndex */
+    private int lowerBound(int bitIndex) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            final int mid = (low + high) >>> 1;
+            if(values[mid] < bitIndex) low = mid + 1; else high = mid;
+        }
+        return low;
+    }
+}
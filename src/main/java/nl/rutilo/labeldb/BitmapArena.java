@@ -0,0 +1,90 @@
+package nl.rutilo.labeldb;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/** Off-heap memory for bitmap buckets, so large databases can run with a small heap.<p>
+  *
+  * Memory is allocated in direct slabs of SLAB_BITMAP_COUNT bitmaps each. A bitmap
+  * slot is taken when a bucket container is moved into the arena and is given back
+  * when that container is no longer reachable. Containers in the arena are never
+  * altered (an alteration results in a new container on the heap) so they can be
+  * shared by snapshots without further bookkeeping. Slots are taken from the lowest
+  * slab that has room so the others can empty out. An empty slab is released, except
+  * for one that is kept for reuse.
+  */
+public final class BitmapArena {
+    private static final int SLAB_BITMAP_COUNT = 1024; // 1MB slabs
+    private static final Cleaner cleaner = Cleaner.create();
+    private final List<Slab> slabs = new ArrayList<>(); // null when released
+    private final TreeSet<Integer> slabsWithRoom = new TreeSet<>();
+    private int slabCount = 0;
+    private int spareSlab = -1; // empty slab that is kept
+    private int usedCount = 0;
+
+    private static final class Slab {
+        final LongBuffer buffer = ByteBuffer.allocateDirect(SLAB_BITMAP_COUNT * Bits.BUCKET_BYTE_SIZE).order(ByteOrder.nativeOrder()).asLongBuffer();
+        final int[] freeSlots = new int[SLAB_BITMAP_COUNT]; // slot indices in this slab
+        int freeCount;
+
+        Slab() {
+            for(int i=SLAB_BITMAP_COUNT - 1; i>=0; i--) freeSlots[freeCount++] = i;
+        }
+    }
+
+    /** Number of bytes allocated off-heap */
+    public synchronized long getAllocatedBytes() {
+        return (long)slabCount * SLAB_BITMAP_COUNT * Bits.BUCKET_BYTE_SIZE;
+    }
+    /** Number of bitmaps held by the arena */
+    public synchronized int getBitmapCount() {
+        return usedCount;
+    }
+
+    /** Copy of the given bitmap that is held in this arena */
+    OffHeapBitmapContainer store(BitmapContainer bitmap) {
+        final int slot = allocate();
+        final LongBuffer slab = getSlab(slot);
+        final int offset = (slot % SLAB_BITMAP_COUNT) * Bits.BUCKET_LONG_COUNT;
+        for(int i=0; i<Bits.BUCKET_LONG_COUNT; i++) slab.put(offset + i, bitmap.words[i]);
+        final OffHeapBitmapContainer container = new OffHeapBitmapContainer(slab, offset, 0, Bits.BUCKET_LONG_COUNT, bitmap.cardinality);
+        cleaner.register(container, () -> free(slot)); // lambda should not reference the container
+        return container;
+    }
+
+    private synchronized int allocate() {
+        usedCount++;
+        if(slabsWithRoom.isEmpty()) {
+            int index = slabs.indexOf(null);
+            if(index < 0) { index = slabs.size(); slabs.add(null); }
+            slabs.set(index, new Slab());
+            slabsWithRoom.add(index);
+            slabCount++;
+        }
+        final int slabIndex = slabsWithRoom.first();
+        final Slab slab = slabs.get(slabIndex);
+        if(slabIndex == spareSlab) spareSlab = -1;
+        if(--slab.freeCount == 0) slabsWithRoom.remove(slabIndex);
+        return slabIndex * SLAB_BITMAP_COUNT + slab.freeSlots[slab.freeCount];
+    }
+    private synchronized void free(int slot) {
+        usedCount--;
+        final int slabIndex = slot / SLAB_BITMAP_COUNT;
+        final Slab slab = slabs.get(slabIndex);
+        slab.freeSlots[slab.freeCount++] = slot % SLAB_BITMAP_COUNT;
+        slabsWithRoom.add(slabIndex);
+        if(slab.freeCount < SLAB_BITMAP_COUNT) return;
+        if(spareSlab < 0) { spareSlab = slabIndex; return; }
+        slabs.set(slabIndex, null); // no container refers to it anymore, so it is freed by the gc
+        slabsWithRoom.remove(slabIndex);
+        slabCount--;
+    }
+    private synchronized LongBuffer getSlab(int slot) {
+        return slabs.get(slot / SLAB_BITMAP_COUNT).buffer;
+    }
+}
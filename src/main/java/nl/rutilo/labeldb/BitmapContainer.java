@@ -0,0 +1,298 @@
+package nl.rutilo.labeldb;
+
+/** Container holding the bits of a dense bucket as plain bitmap */
+final class BitmapContainer extends BucketContainer {
+    final long[] words;
+    int cardinality;
+
+    BitmapContainer() { this(new long[LONG_COUNT], 0); }
+    BitmapContainer(long[] words, int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+    static BitmapContainer of(long[] words) {
+        return new BitmapContainer(words, countBits(words));
+    }
+    static BitmapContainer full() {
+        final long[] words = new long[LONG_COUNT];
+        for(int i=0; i<words.length; i++) words[i] = -1L;
+        return new BitmapContainer(words, BITS_COUNT);
+    }
+
+    public int cardinality() { return cardinality; }
+    public boolean contains(int bitIndex) {
+        return (words[bitIndex >>> 6] & (1L << bitIndex)) != 0;
+    }
+    public BucketContainer add(int bitIndex) {
+        final long word = words[bitIndex >>> 6];
+        final long newWord = word | (1L << bitIndex);
+        if(newWord != word) {
+            words[bitIndex >>> 6] = newWord;
+            cardinality++;
+        }
+        return this;
+    }
+    public BucketContainer remove(int bitIndex) {
+        final long word = words[bitIndex >>> 6];
+        final long newWord = word & ~(1L << bitIndex);
+        if(newWord != word) {
+            words[bitIndex >>> 6] = newWord;
+            cardinality--;
+            if(cardinality <= MAX_ARRAY_SIZE) return toArrayContainer();
+        }
+        return this;
+    }
+    public int last() {
+        for(int i=LONG_COUNT - 1; i>=0; i--) if(words[i] != 0) return i * 64 + 63 - Long.numberOfLeadingZeros(words[i]);
+        return -1;
+    }
+    public boolean intersects(int fromBitIndex, int uptoBitIndex) {
+        final int firstWord = fromBitIndex >>> 6;
+        final int lastWord  = uptoBitIndex >>> 6;
+        final long firstMask = -1L << fromBitIndex;
+        final long lastMask  = -1L >>> (63 - (uptoBitIndex & 63));
+        if(firstWord == lastWord) return (words[firstWord] & firstMask & lastMask) != 0;
+        if((words[firstWord] & firstMask) != 0) return true;
+        for(int i=firstWord + 1; i<lastWord; i++) if(words[i] != 0) return true;
+        return (words[lastWord] & lastMask) != 0;
+    }
+
+    public BucketContainer not() {
+        final long[] result = new long[LONG_COUNT];
+        for(int i=0; i<LONG_COUNT; i++) result[i] = ~words[i];
+        return new BitmapContainer(result, BITS_COUNT - cardinality).optimize();
+    }
+    public BucketContainer and(BucketContainer other) {
+        if(other instanceof BitmapContainer) return andBitmap((BitmapContainer)other);
+        if(other instanceof RunContainer)    return andRuns((RunContainer)other);
+        return other.and(this);
+    }
+    public BucketContainer or(BucketContainer other) {
+        if(other instanceof BitmapContainer) return orBitmap((BitmapContainer)other);
+        if(other instanceof RunContainer)    return orRuns((RunContainer)other);
+        if(other instanceof ArrayContainer)  return orArray((ArrayContainer)other);
+        return orBitmap(other.toBitmapContainer());
+    }
+    public BucketContainer andNot(BucketContainer other) {
+        if(other instanceof BitmapContainer) return andNotBitmap((BitmapContainer)other);
+        if(other instanceof RunContainer)    return andNotRuns((RunContainer)other);
+        if(other instanceof ArrayContainer)  return andNotArray((ArrayContainer)other);
+        return andNotBitmap(other.toBitmapContainer());
+    }
+    public int andCardinality(BucketContainer other) {
+        if(other instanceof BitmapContainer) return andCardinalityBitmap((BitmapContainer)other);
+        if(other instanceof RunContainer)    return andCardinalityRuns((RunContainer)other);
+        return other.andCardinality(this);
+    }
+
+    private BucketContainer andBitmap(BitmapContainer other) {
+        final long[] result = new long[LONG_COUNT];
+        return toSmallest(result, BitmapKernels.and(words, other.words, result));
+    }
+    private BucketContainer andRuns(RunContainer other) {
+        final long[] result = new long[LONG_COUNT];
+        for(int r=0; r<other.runCount; r++) copyRange(words, result, other.start(r), other.end(r));
+        return new BitmapContainer(result, countBits(result)).optimize();
+    }
+    private BitmapContainer orBitmap(BitmapContainer other) {
+        final long[] result = new long[LONG_COUNT];
+        return new BitmapContainer(result, BitmapKernels.or(words, other.words, result));
+    }
+    private BucketContainer orRuns(RunContainer other) {
+        final long[] result = words.clone();
+        for(int r=0; r<other.runCount; r++) setRange(result, other.start(r), other.end(r));
+        return new BitmapContainer(result, countBits(result)).optimize();
+    }
+    private BitmapContainer orArray(ArrayContainer other) {
+        final BitmapContainer result = copy();
+        for(int i=0; i<other.size; i++) result.add(other.values[i]);
+        return result;
+    }
+    private BucketContainer andNotBitmap(BitmapContainer other) {
+        final long[] result = new long[LONG_COUNT];
+        return toSmallest(result, BitmapKernels.andNot(words, other.words, result));
+    }
+    private BucketContainer andNotRuns(RunContainer other) {
+        final long[] result = words.clone();
+        for(int r=0; r<other.runCount; r++) clearRange(result, other.start(r), other.end(r));
+        return toSmallest(result, countBits(result));
+    }
+    private BucketContainer andNotArray(ArrayContainer other) {
+        final long[] result = words.clone();
+        int count = cardinality;
+        for(int i=0; i<other.size; i++) {
+            final int bitIndex = other.values[i];
+            final long word = result[bitIndex >>> 6];
+            if((word & (1L << bitIndex)) != 0) {
+                result[bitIndex >>> 6] = word & ~(1L << bitIndex);
+                count--;
+            }
+        }
+        return toSmallest(result, count);
+    }
+    private int andCardinalityBitmap(BitmapContainer other) {
+        return BitmapKernels.andCardinality(words, other.words);
+    }
+    private int andCardinalityRuns(RunContainer other) {
+        int count = 0;
+        for(int r=0; r<other.runCount; r++) count += cardinalityInRange(words, other.start(r), other.end(r));
+        return count;
+    }
+
+    public boolean andInto(long[] words) {
+        return BitmapKernels.andInto(words, this.words);
+    }
+    public void orInto(long[] words) {
+        BitmapKernels.orInto(words, this.words);
+    }
+    public void copyInto(long[] words) {
+        System.arraycopy(this.words, 0, words, 0, LONG_COUNT);
+    }
+
+    public BitmapContainer copy() {
+        return new BitmapContainer(words.clone(), cardinality);
+    }
+    public int copyIndicesIn(int[] array, int arrayOffset, int idOffset) {
+        int idIndex = 0;
+        for(int longIndex = 0; longIndex < LONG_COUNT; longIndex++) {
+            long word = words[longIndex];
+            final int bucketIdOffset = idOffset + longIndex * 64;
+            while(word != 0) {
+                array[arrayOffset + idIndex++] = bucketIdOffset + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return idIndex;
+    }
+    public long[] toLongs() { return words.clone(); }
+    public int runCount() {
+        int count = 0;
+        long previousTopBit = 0;
+        for(int i=0; i<LONG_COUNT; i++) {
+            final long word = words[i];
+            count += Long.bitCount(word & ~((word << 1) | previousTopBit));
+            previousTopBit = word >>> 63;
+        }
+        return count;
+    }
+
+    ArrayContainer toArrayContainer() {
+        final short[] values = new short[cardinality];
+        int count = 0;
+        for(int i=0; i<LONG_COUNT; i++) {
+            long word = words[i];
+            while(word != 0) {
+                values[count++] = (short)(i * 64 + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values, count);
+    }
+    BitmapContainer toBitmapContainer() { return this; }
+    RunContainer toRunContainer() {
+        final RunContainer runs = new RunContainer(runCount());
+        int bitIndex = nextSetBit(0);
+        while(bitIndex >= 0) {
+            final int end = nextClearBit(bitIndex) - 1;
+            runs.append(bitIndex, end);
+            bitIndex = end + 1 < BITS_COUNT ? nextSetBit(end + 1) : -1;
+        }
+        return runs;
+    }
+
+    public int nextSetBit(int fromBitIndex) {
+        int wordIndex = fromBitIndex >>> 6;
+        long word = words[wordIndex] & (-1L << fromBitIndex);
+        while(word == 0) {
+            if(++wordIndex == LONG_COUNT) return -1;
+            word = words[wordIndex];
+        }
+        return wordIndex * 64 + Long.numberOfTrailingZeros(word);
+    }
+    public int previousSetBit(int fromBitIndex) {
+        int wordIndex = fromBitIndex >>> 6;
+        long word = words[wordIndex] & (-1L >>> (63 - (fromBitIndex & 63)));
+        while(word == 0) {
+            if(--wordIndex < 0) return -1;
+            word = words[wordIndex];
+        }
+        return wordIndex * 64 + 63 - Long.numberOfLeadingZeros(word);
+    }
+    public int rank(int bitIndex) {
+        return bitIndex <= 0 ? 0 : cardinalityInRange(words, 0, Math.min(bitIndex, BITS_COUNT) - 1);
+    }
+    public int select(int rank) {
+        for(int i=0; ; i++) {
+            final int count = Long.bitCount(words[i]);
+            if(rank < count) {
+                long word = words[i];
+                for(int r=0; r<rank; r++) word &= word - 1;
+                return i * 64 + Long.numberOfTrailingZeros(word);
+            }
+            rank -= count;
+        }
+    }
+    /** Index of the first cleared bit at or after fromBitIndex, or BITS_COUNT if there is none */
+    int nextClearBit(int fromBitIndex) {
+        int wordIndex = fromBitIndex >>> 6;
+        long word = ~words[wordIndex] & (-1L << fromBitIndex);
+        while(word == 0) {
+            if(++wordIndex == LONG_COUNT) return BITS_COUNT;
+            word = ~words[wordIndex];
+        }
+        return wordIndex * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    private static BucketContainer toSmallest(long[] words, int cardinality) {
+        final BitmapContainer bitmap = new BitmapContainer(words, cardinality);
+        return cardinality <= MAX_ARRAY_SIZE ? bitmap.toArrayContainer() : bitmap;
+    }
+
+    static int countBits(long[] words) {
+        return BitmapKernels.cardinality(words);
+    }
+    /** Sets bits fromBitIndex..uptoBitIndex (inclusive) */
+    static void setRange(long[] words, int fromBitIndex, int uptoBitIndex) {
+        final int firstWord = fromBitIndex >>> 6;
+        final int lastWord  = uptoBitIndex >>> 6;
+        final long firstMask = -1L << fromBitIndex;
+        final long lastMask  = -1L >>> (63 - (uptoBitIndex & 63));
+        if(firstWord == lastWord) { words[firstWord] |= firstMask & lastMask; return; }
+        words[firstWord] |= firstMask;
+        for(int i=firstWord + 1; i<lastWord; i++) words[i] = -1L;
+        words[lastWord] |= lastMask;
+    }
+    /** Clears bits fromBitIndex..uptoBitIndex (inclusive) */
+    static void clearRange(long[] words, int fromBitIndex, int uptoBitIndex) {
+        final int firstWord = fromBitIndex >>> 6;
+        final int lastWord  = uptoBitIndex >>> 6;
+        final long firstMask = -1L << fromBitIndex;
+        final long lastMask  = -1L >>> (63 - (uptoBitIndex & 63));
+        if(firstWord == lastWord) { words[firstWord] &= ~(firstMask & lastMask); return; }
+        words[firstWord] &= ~firstMask;
+        for(int i=firstWord + 1; i<lastWord; i++) words[i] = 0;
+        words[lastWord] &= ~lastMask;
+    }
+    /** Copies bits fromBitIndex..uptoBitIndex (inclusive) from source to target */
+    static void copyRange(long[] source, long[] target, int fromBitIndex, int uptoBitIndex) {
+        final int firstWord = fromBitIndex >>> 6;
+        final int lastWord  = uptoBitIndex >>> 6;
+        final long firstMask = -1L << fromBitIndex;
+        final long lastMask  = -1L >>> (63 - (uptoBitIndex & 63));
+        if(firstWord == lastWord) { target[firstWord] |= source[firstWord] & firstMask & lastMask; return; }
+        target[firstWord] |= source[firstWord] & firstMask;
+        for(int i=firstWord + 1; i<lastWord; i++) target[i] = source[i];
+        target[lastWord] |= source[lastWord] & lastMask;
+    }
+    /** Number of set bits in fromBitIndex..uptoBitIndex (inclusive) */
+    static int cardinalityInRange(long[] words, int fromBitIndex, int uptoBitIndex) {
+        final int firstWord = fromBitIndex >>> 6;
+        final int lastWord  = uptoBitIndex >>> 6;
+        final long firstMask = -1L << fromBitIndex;
+        final long lastMask  = -1L >>> (63 - (uptoBitIndex & 63));
+        if(firstWord == lastWord) return Long.bitCount(words[firstWord] & firstMask & lastMask);
+        int count = Long.bitCount(words[firstWord] & firstMask);
+        for(int i=firstWord + 1; i<lastWord; i++) count += Long.bitCount(words[i]);
+        return count + Long.bitCount(words[lastWord] & lastMask);
+    }
+}
@@ -0,0 +1,74 @@
+package nl.rutilo.labeldb;
+
+/** Bitwise operations on arrays of bitmap words, used for bitmap containers and
+  * for evaluating expressions. Each is a plain counted loop without branches on
+  * the data. They are kept together so the loops can be replaced by explicit
+  * vector code without touching the callers.
+  */
+final class BitmapKernels {
+    private BitmapKernels() {}
+
+    /** result = a &amp; b. Returns the number of bits set in result */
+    static int and(long[] a, long[] b, long[] result) {
+        int count = 0;
+        for(int i=0; i<result.length; i++) count += Long.bitCount(result[i] = a[i] & b[i]);
+        return count;
+    }
+    /** result = a | b. Returns the number of bits set in result */
+    static int or(long[] a, long[] b, long[] result) {
+        int count = 0;
+        for(int i=0; i<result.length; i++) count += Long.bitCount(result[i] = a[i] | b[i]);
+        return count;
+    }
+    /** result = a &amp; ~b. Returns the number of bits set in result */
+    static int andNot(long[] a, long[] b, long[] result) {
+        int count = 0;
+        for(int i=0; i<result.length; i++) count += Long.bitCount(result[i] = a[i] & ~b[i]);
+        return count;
+    }
+    /** result = a ^ b. Returns the number of bits set in result */
+    static int xor(long[] a, long[] b, long[] result) {
+        int count = 0;
+        for(int i=0; i<result.length; i++) count += Long.bitCount(result[i] = a[i] ^ b[i]);
+        return count;
+    }
+    /** Number of bits set in both a and b */
+    static int andCardinality(long[] a, long[] b) {
+        int count = 0;
+        for(int i=0; i<a.length; i++) count += Long.bitCount(a[i] & b[i]);
+        return count;
+    }
+    static int cardinality(long[] words) {
+        int count = 0;
+        for(int i=0; i<words.length; i++) count += Long.bitCount(words[i]);
+        return count;
+    }
+
+    /** words &amp;= other. Returns true if any bit remains set */
+    static boolean andInto(long[] words, long[] other) {
+        long any = 0;
+        for(int i=0; i<words.length; i++) any |= words[i] &= other[i];
+        return any != 0;
+    }
+    /** words |= other */
+    static void orInto(long[] words, long[] other) {
+        for(int i=0; i<words.length; i++) words[i] |= other[i];
+    }
+    /** words &amp;= ~other. Returns true if any bit remains set */
+    static boolean andNotInto(long[] words, long[] other) {
+        long any = 0;
+        for(int i=0; i<words.length; i++) any |= words[i] &= ~other[i];
+        return any != 0;
+    }
+    /** words ^= other. Returns true if any bit remains set */
+    static boolean xorInto(long[] words, long[] other) {
+        long any = 0;
+        for(int i=0; i<words.length; i++) any |= words[i] ^= other[i];
+        return any != 0;
+    }
+    static boolean isAnySet(long[] words) {
+        long any = 0;
+        for(int i=0; i<words.length; i++) any |= words[i];
+        return any != 0;
+    }
+}
@@ -2,10 +2,16 @@ package nl.rutilo.labeldb;
 
 import nl.rutilo.labeldb.util.ByteArraySource;
 import nl.rutilo.labeldb.util.ByteArrayTarget;
+import nl.rutilo.labeldb.util.FileBatch;
 import nl.rutilo.labeldb.util.Utils;
 
 import java.io.File;
-import java.util.Objects;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static nl.rutilo.labeldb.util.Utils.or;
@@ -23,54 +29,168 @@ public class Bits {
     // of a single (max) ~64KB file, each representing (max) 524288 bits.
     // This is a sparse array (meaning it may contain nulls).
     // It will be enlarged when needed.
+    // Copies of Bits share the collections (copy-on-write) so a collection
+    // is only copied when it is altered. Shared buckets are copied likewise.
     private BitsBucketsCollection[] buckets;
     private int maxIndex = 0;
+    // Number of set bits, updated on single alterations and summed
+    // from the collections (that keep their own) after bulk alterations.
+    private int cardinality = 0;
+    // Bit per collection index that was altered (or dropped) since the last store, so
+    // a store only has to visit those collections.
+    private long[] dirtyCollections = new long[1];
+    // Collections of which a store failed, which are dirty even when the collection is not
+    // (the failed store may have cleared it), so the next store writes them again
+    private long[] unstoredCollections = new long[0];
     private boolean isValid = true;
+    // Number of set bits before each collection (and the total at the end), used
+    // to find the nth set bit. Built on demand and dropped when bits are altered.
+    private volatile int[] rankDirectory;
     public final String name;
     public final File dir;
+    // When set, bitmap buckets are moved off-heap when compacted (on load and store)
+    private final BitmapArena arena;
+    // Collections that store() replaced by a compacted copy because they were shared
+    private BitsBucketsCollection[] compactedOriginals;
+    // When set, collection files are memory mapped on load and bitmap buckets are read
+    // from the mapped file until altered
+    private final boolean mapFiles;
+    // When set, collections are stored in this pack instead of in the dir. Bits that
+    // are still in the dir are loaded from there and moved to the pack when stored.
+    private final PackFile pack;
+    // Encoding of stored collections
+    private final CollectionCodec codec;
 
     public Bits() { this(""); }
     public Bits(String name) {
         this.name = name == null ? "" : name;
         this.dir = null;
+        this.arena = null;
+        this.mapFiles = false;
+        this.pack = null;
+        this.codec = CollectionCodec.NONE;
         clear();
     }
-    public Bits(String name, File dir) {
+    public Bits(String name, File dir) { this(name, dir, new Options()); }
+    public Bits(String name, File dir, Options options) {
         this.name = name;
         this.dir = new File(dir, Utils.nameToFilename(name));
+        this.arena = options.arena;
+        this.mapFiles = options.mapFiles;
+        this.pack = options.pack;
+        this.codec = options.codec;
         clear();
         load();
     }
 
-    public static Bits of(String name) { return new Bits(name); }
-    public static Bits of(String name, File dir) { return new Bits(name, dir); }
-    public static Bits of(Bits other) {
-        final Bits copy = new Bits(other.name);
-        copy.buckets = new BitsBucketsCollection[other.buckets.length];
-        for(int i=0; i<copy.buckets.length; i++) {
-            if(other.buckets[i] != null) copy.buckets[i] = other.buckets[i].copy();
+    private Bits(Bits toCopy, File dir) {
+        this.name = toCopy.name;
+        this.dir = dir;
+        this.arena = toCopy.arena;
+        this.mapFiles = toCopy.mapFiles;
+        this.pack = toCopy.pack;
+        this.codec = toCopy.codec;
+        buckets = new BitsBucketsCollection[toCopy.buckets.length];
+        for(int i=0; i<buckets.length; i++) {
+            if(toCopy.buckets[i] != null) buckets[i] = toCopy.buckets[i].share();
+        }
+        maxIndex = toCopy.maxIndex;
+        cardinality = toCopy.cardinality;
+        dirtyCollections = toCopy.dirtyCollections.clone();
+        unstoredCollections = toCopy.unstoredCollections.clone();
+        isValid = toCopy.isValid;
+    }
+
+    /** Options for how Bits are held in memory and stored, given at construction */
+    public static class Options {
+        private BitmapArena arena;
+        private boolean mapFiles;
+        private PackFile pack;
+        private CollectionCodec codec = CollectionCodec.NONE;
+
+        /** Holds bitmap buckets off-heap in the given arena (when not null) */
+        public Options setArena(BitmapArena arena) { this.arena = arena; return this; }
+        /** Reads buckets from memory mapped files instead of copying them to memory. A store
+          * replaces files that may still be mapped, so this is only supported on POSIX systems:
+          * throws UnsupportedOperationException on Windows.
+          */
+        public Options setMapFiles(boolean set) {
+            if(set && !Utils.canReplaceMappedFiles()) throw new UnsupportedOperationException("Mapped files are not supported on this platform");
+            mapFiles = set;
+            return this;
         }
-        copy.maxIndex = other.maxIndex;
-        return copy;
+        /** Stores in the given pack (when not null) instead of in a directory per Bits */
+        public Options setPackFile(PackFile pack) { this.pack = pack; return this; }
+        /** Encodes stored collections with given codec (default NONE) */
+        public Options setCodec(CollectionCodec codec) { this.codec = codec; return this; }
     }
 
+    public static Bits of(String name) { return new Bits(name); }
+    public static Bits of(String name, File dir) { return new Bits(name, dir); }
+    public static Bits of(Bits other) { return new Bits(other, null); }
+
     public boolean isValid() { return isValid; }
     public Bits copy() { return Bits.of(this); }
+    /** Copy that keeps the storage location, so it can be stored while this Bits is being altered */
+    public Bits snapshot() { return new Bits(this, dir); }
 
     public final Bits clear() {
+        if(buckets != null) for(int index = 0; index < buckets.length; index++) if(buckets[index] != null) markDirty(index);
         buckets = new BitsBucketsCollection[INITIAL_COLLECTIONS_COUNT];
+        rankDirectory = null;
         isValid = true;
         maxIndex = 0;
+        cardinality = 0;
         return this;
     }
 
-    public Bits setRange(int from, int upto) {
-        for(int index=from; index<=upto; index++)  set(index, true);
-        return this;
+    public Bits setRange(int from, int upto) { return setRange(from, upto, true); }
+    public Bits clearRange(int from, int upto) { return setRange(from, upto, false); }
+    /** Sets or clears indices from..upto (inclusive) a bucket at a time, using whole words
+      * at the edges and replacing buckets that are completely in range.
+      */
+    public Bits setRange(int from, int upto, boolean set) {
+        final int first = Math.max(from, 0);
+        final int lastBucketsIndex = set ? upto / COLLECTION_BITS_COUNT : Math.min(upto / COLLECTION_BITS_COUNT, buckets.length - 1);
+        for(int bucketsIndex = first / COLLECTION_BITS_COUNT; first <= upto && bucketsIndex <= lastBucketsIndex; bucketsIndex++) {
+            if(!set && getReadOnlyBuckets(bucketsIndex) == null) continue;
+            final int offset = bucketsIndex * COLLECTION_BITS_COUNT;
+            getBuckets(bucketsIndex).setRange(first - offset, upto - offset, set);
+        }
+        if(set && first <= upto && upto > maxIndex) maxIndex = upto;
+        return recount();
+    }
+    /** Inverts indices from..upto (inclusive) */
+    public Bits flipRange(int from, int upto) {
+        final int first = Math.max(from, 0);
+        for(int bucketsIndex = first / COLLECTION_BITS_COUNT; first <= upto && bucketsIndex <= upto / COLLECTION_BITS_COUNT; bucketsIndex++) {
+            final int offset = bucketsIndex * COLLECTION_BITS_COUNT;
+            getBuckets(bucketsIndex).flipRange(first - offset, upto - offset);
+        }
+        if(first <= upto && upto > maxIndex) maxIndex = upto;
+        return recount();
     }
+    /** Sets given indices. Multiple indices are sorted (if not already sorted) and
+      * grouped per bucket, so each bucket is altered once instead of once per index.
+      */
     public Bits set(int... indices) {
-        for(final int index : indices) set(index, true);
-        return this;
+        if(indices.length <= 1) {
+            for(final int index : indices) set(index, true);
+            return this;
+        }
+        final int[] sorted = isSorted(indices) ? indices : sortedCopy(indices);
+        if(sorted[0] < 0) throw new IllegalArgumentException("Negative index: " + sorted[0]);
+        int groupStart = 0;
+        while(groupStart < sorted.length) {
+            final int bucketsIndex = sorted[groupStart] / COLLECTION_BITS_COUNT;
+            final int offset = bucketsIndex * COLLECTION_BITS_COUNT;
+            int groupEnd = groupStart + 1;
+            while(groupEnd < sorted.length && sorted[groupEnd] - offset < COLLECTION_BITS_COUNT) groupEnd++;
+            getBuckets(bucketsIndex).set(sorted, groupStart, groupEnd, offset);
+            groupStart = groupEnd;
+        }
+        if(sorted[sorted.length - 1] > maxIndex) maxIndex = sorted[sorted.length - 1];
+        return recount();
     }
     public Bits unset(int... indices) {
         for(final int index : indices) set(index, false);
@@ -78,8 +198,11 @@ public class Bits {
     }
     public Bits set(int index, boolean set) {
         final int bucketsIndex = index / COLLECTION_BITS_COUNT;
+        if(!set && getReadOnlyBuckets(bucketsIndex) == null) return this;
         final BitsBucketsCollection buckets = getBuckets(bucketsIndex);
+        final int before = buckets.countSetBits();
         buckets.set(index % COLLECTION_BITS_COUNT, set);
+        cardinality += buckets.countSetBits() - before;
         if(index > maxIndex) maxIndex = index;
         return this;
     }
@@ -87,21 +210,17 @@ public class Bits {
     public boolean isSet(int index) {
         if(index > maxIndex) return false;
         final int bucketsIndex = index / COLLECTION_BITS_COUNT;
-        final BitsBucketsCollection buckets = getBuckets(bucketsIndex);
-        return buckets.isSet(index % COLLECTION_BITS_COUNT);
+        final BitsBucketsCollection buckets = getReadOnlyBuckets(bucketsIndex);
+        return buckets != null && buckets.isSet(index % COLLECTION_BITS_COUNT);
     }
-    public boolean isAnySet() { return isAnySet(0, buckets.length * COLLECTION_BITS_COUNT); }
+    public boolean isAnySet() { return cardinality > 0; }
     public boolean isAnySet(int fromIndex, int uptoIndex) {
-        int maxBitIndex = Math.min(uptoIndex, maxIndex);
-        for(int bitIndex = fromIndex; bitIndex <= maxBitIndex; bitIndex++) {
-            if(bitIndex % COLLECTION_BITS_COUNT == 0 && bitIndex + COLLECTION_BITS_COUNT <= uptoIndex) {
-                final int bucketsIndex = bitIndex / COLLECTION_BITS_COUNT;
-                final BitsBucketsCollection buckets = getBuckets(bucketsIndex);
-                if(buckets.isAnySet()) return true;
-                bitIndex += COLLECTION_BITS_COUNT -1;
-            } else {
-                if(isSet(bitIndex)) return true;
-            }
+        final int first = Math.max(fromIndex, 0);
+        final int last = Math.min(uptoIndex, maxIndex);
+        for(int bucketsIndex = first / COLLECTION_BITS_COUNT; first <= last && bucketsIndex <= last / COLLECTION_BITS_COUNT; bucketsIndex++) {
+            final BitsBucketsCollection buckets = getReadOnlyBuckets(bucketsIndex);
+            final int offset = bucketsIndex * COLLECTION_BITS_COUNT;
+            if(buckets != null && buckets.isAnySet(first - offset, last - offset)) return true;
         }
         return false;
     }
@@ -119,23 +238,92 @@ public class Bits {
         return indices;
     }
 
-    public Bits reverse() {
-        int lastBucket = buckets.length - 1;
-        while(lastBucket > 0 && buckets[lastBucket] == null) lastBucket--;
-        for(int i=0; i<=lastBucket; i++) {
-            final BitsBucketsCollection bcol = getBuckets(i);
-            bcol.reverse();
-            if(bcol.isEmpty()) buckets[i] = null;
+    /** Index of the first set bit at or after fromIndex, or -1 if there is none */
+    public int nextSetBit(int fromIndex) {
+        if(fromIndex < 0) fromIndex = 0;
+        if(fromIndex > maxIndex) return -1;
+        for(int bucketIndex = fromIndex / BUCKET_BITS_COUNT; bucketIndex <= maxIndex / BUCKET_BITS_COUNT; bucketIndex++) {
+            final BucketContainer container = getContainer(bucketIndex);
+            if(container == null) continue;
+            final int bucketStart = bucketIndex * BUCKET_BITS_COUNT;
+            final int next = container.nextSetBit(Math.max(0, fromIndex - bucketStart));
+            if(next >= 0) return bucketStart + next;
         }
-        final int maxBucketIndex = (lastBucket + 1) * COLLECTION_BITS_COUNT - 1;
-        for(int i=maxIndex + 1; i <= maxBucketIndex; i++) set(i, false);
-        return this;
+        return -1;
+    }
+    /** Index of the last set bit at or before fromIndex, or -1 if there is none */
+    public int previousSetBit(int fromIndex) {
+        if(fromIndex > maxIndex) fromIndex = maxIndex;
+        for(int bucketIndex = fromIndex / BUCKET_BITS_COUNT; fromIndex >= 0 && bucketIndex >= 0; bucketIndex--) {
+            final BucketContainer container = getContainer(bucketIndex);
+            if(container == null) continue;
+            final int bucketStart = bucketIndex * BUCKET_BITS_COUNT;
+            final int previous = container.previousSetBit(Math.min(BUCKET_BITS_COUNT - 1, fromIndex - bucketStart));
+            if(previous >= 0) return bucketStart + previous;
+        }
+        return -1;
+    }
+    /** Number of set bits before given index */
+    public int rank(int index) {
+        if(index <= 0) return 0;
+        final int[] directory = getRankDirectory();
+        final int collectionIndex = index / COLLECTION_BITS_COUNT;
+        if(collectionIndex >= buckets.length) return directory[buckets.length];
+        final BitsBucketsCollection collection = buckets[collectionIndex];
+        return directory[collectionIndex] + (collection == null ? 0 : collection.rank(index % COLLECTION_BITS_COUNT));
+    }
+    /** Index of the set bit with given rank (the first set bit has rank 0), or -1
+      * when there are not that many set bits. Collections before it are skipped
+      * using their counts instead of being walked.
+      */
+    public int select(int rank) {
+        final int[] directory = getRankDirectory();
+        if(rank < 0 || rank >= directory[buckets.length]) return -1;
+        int low = 0; // find last collection that has at most rank set bits before it
+        int high = buckets.length - 1;
+        while(low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if(directory[mid] <= rank) low = mid; else high = mid - 1;
+        }
+        return low * COLLECTION_BITS_COUNT + buckets[low].select(rank - directory[low]);
+    }
+    /** At most limit set indices, starting with the set index that has given rank (offset) */
+    public int[] getIndices(int offset, int limit) {
+        final int first = select(Math.max(0, offset));
+        if(first < 0 || limit <= 0) return new int[0];
+        final int[] indices = new int[Math.min(limit, getRankDirectory()[buckets.length] - Math.max(0, offset))];
+        final PrimitiveIterator.OfInt iterator = iterator(first);
+        for(int i=0; i<indices.length; i++) indices[i] = iterator.nextInt();
+        return indices;
+    }
+
+    /** Cursor over the set indices in ascending order that does not create an array
+      * of all indices. This Bits should not be altered while iterating.
+      */
+    public PrimitiveIterator.OfInt iterator() { return new SetBitsIterator(0); }
+    /** Same as iterator(), starting at given index */
+    public PrimitiveIterator.OfInt iterator(int fromIndex) { return new SetBitsIterator(fromIndex); }
+
+    /** Complements indices 0..maxIndex (the highest index that was set), which is what a
+      * not in a BitsExpression does as well. Empty buckets in that range become full.
+      */
+    public Bits reverse() {
+        return flipRange(0, maxIndex);
     }
 
-    public int countSetBits() {
+    /** Number of set bits. This is kept up to date so takes constant time */
+    public int cardinality() { return cardinality; }
+    /** Same as cardinality() */
+    public int countSetBits() { return cardinality; }
+    /** Number of set bits in fromIndex..uptoIndex (inclusive) */
+    public int countSetBits(int fromIndex, int uptoIndex) {
+        final int first = Math.max(fromIndex, 0);
+        final int last = Math.min(uptoIndex, maxIndex);
         int count = 0;
-        for (BitsBucketsCollection bbCollection : buckets) {
-            if (bbCollection != null) count += bbCollection.countSetBits();
+        for(int bucketsIndex = first / COLLECTION_BITS_COUNT; first <= last && bucketsIndex <= last / COLLECTION_BITS_COUNT; bucketsIndex++) {
+            final BitsBucketsCollection buckets = getReadOnlyBuckets(bucketsIndex);
+            final int offset = bucketsIndex * COLLECTION_BITS_COUNT;
+            if(buckets != null) count += buckets.countSetBits(first - offset, last - offset);
         }
         return count;
     }
@@ -150,97 +338,279 @@ public class Bits {
         return count;
     }
     public Bits retainOverlapWith(Bits other) {
+        rankDirectory = null;
         for(int index = 0; index < buckets.length; index++) {
             if(buckets[index] != null) {
                 if(index >= other.buckets.length || other.buckets[index] == null) {
                     buckets[index] = null;
+                    markDirty(index);
                 } else {
-                    buckets[index].retainOverlapWith(other.buckets[index]);
+                    getBuckets(index).retainOverlapWith(other.buckets[index]);
                 }
             }
         }
-        return this;
+        return recount();
     }
     public Bits removeOverlapWith(Bits other) {
         for(int index = 0; index < buckets.length; index++) {
             if(buckets[index] != null && index < other.buckets.length && other.buckets[index] != null) {
-                buckets[index].removeOverlapWith(other.buckets[index]);
+                getBuckets(index).removeOverlapWith(other.buckets[index]);
             }
         }
-        return this;
+        return recount();
     }
     public Bits joinWith(Bits other) {
+        rankDirectory = null;
         for(int index = 0; index < other.buckets.length; index++) {
             if(other.buckets[index] != null) {
                 if (index >= buckets.length || buckets[index] == null) {
-                    getBuckets(index);
+                    makeRoomForBuckets(index);
                     buckets[index] = other.buckets[index].copy();
+                    markDirty(index);
                 } else
                 if (other.buckets[index] != null) {
-                    buckets[index].joinWith(other.buckets[index]);
+                    getBuckets(index).joinWith(other.buckets[index]);
                 }
             }
         }
-        return this;
+        maxIndex = Math.max(maxIndex, other.maxIndex);
+        return recount();
     }
 
+    /** New Bits with the indices that are set in all given bits, combined in a single pass */
+    public static Bits andAll(Bits... bitsList) {
+        return BitsExpression.and(Stream.of(bitsList).map(BitsExpression::of).toArray(BitsExpression[]::new)).evaluate();
+    }
+    /** New Bits with the indices that are set in any of given bits, combined in a single pass */
+    public static Bits orAll(Bits... bitsList) {
+        return BitsExpression.or(Stream.of(bitsList).map(BitsExpression::of).toArray(BitsExpression[]::new)).evaluate();
+    }
+    /** New Bits with the indices of given bits that are not set in any of the others, combined in a single pass */
+    public static Bits andNotAll(Bits bits, Bits... others) {
+        return BitsExpression.andNot(BitsExpression.of(bits), Stream.of(others).map(BitsExpression::of).toArray(BitsExpression[]::new)).evaluate();
+    }
+
+    /** True when a collection was altered since the last store. Only visits the collections that were marked dirty */
     public boolean isDirty() {
-        return Stream.of(buckets).filter(Objects::nonNull).anyMatch(BitsBucketsCollection::isDirty);
+        for(int index = nextDirtyCollection(0); index >= 0; index = nextDirtyCollection(index + 1)) {
+            if(isDirty(index)) return true;
+        }
+        return false;
     }
-    public Bits store() {
+    /** Forgets which collections were altered, for when a snapshot of this Bits is stored instead */
+    public Bits clearDirty() {
+        Arrays.fill(dirtyCollections, 0);
+        unstoredCollections = new long[0];
+        return this;
+    }
+    /** Indices of the collections that store() would write, not including a move to a pack */
+    int[] getDirtyIndices() {
+        return IntStream.iterate(nextDirtyCollection(0), index -> index >= 0, index -> nextDirtyCollection(index + 1)).filter(this::isDirty).toArray();
+    }
+    /** Marks given collections dirty again, for when storing a snapshot of them failed */
+    void markUnstored(int[] indices) {
+        for(final int index : indices) {
+            markDirty(index);
+            if(index >> 6 >= unstoredCollections.length) unstoredCollections = Arrays.copyOf(unstoredCollections, (index >> 6) + 1);
+            unstoredCollections[index >> 6] |= 1L << index;
+        }
+    }
+    /** Writes the collections that were altered since the last store, and the header */
+    public Bits store() { return store(null); }
+    /** Like store(), but when batch is not null the pack is not synced and the files are
+      * added to batch instead, for when the caller stores multiple Bits and calls
+      * PackFile.sync() or FileBatch.commit() once for all of them.
+      */
+    Bits store(FileBatch batch) {
         if(this.dir == null || !isDirty() || name.isEmpty()) return this;
-        compact();
-        new ByteArrayTarget()
+        final boolean isMovingToPack = pack != null && dir.exists(); // all collections are written to the pack
+        final int[] dirtyIndices = isMovingToPack
+            ? IntStream.range(0, buckets.length).filter(index -> buckets[index] != null).toArray()
+            : getDirtyIndices();
+        // Dirty state is taken before compacting because compacting drops empty buckets and
+        // collections, which should be written (or deleted) as well.
+        final BitsBucketsCollection[] dirtyCollections = new BitsBucketsCollection[dirtyIndices.length];
+        for(int i = 0; i < dirtyIndices.length; i++) {
+            dirtyCollections[i] = buckets[dirtyIndices[i]];
+            compact(dirtyIndices[i]);
+        }
+        final byte[] header = new ByteArrayTarget()
             .add(countSetBits())
             .add((short)buckets.length)
             .add(name)
-            .writeTo(new File(dir, "Bits"));
+            .add(maxIndex)
+            .toByteArray();
 
-        Stream.of(buckets)
-            .filter(Objects::nonNull)
-            .filter(BitsBucketsCollection::isDirty)
-            .forEach(bbColl -> {
-                Utils.writeByteArrayToFile(
-                    new File(dir, "" + indexOf(bbColl)), bbColl.toByteArray());
-                bbColl.clearDirty();
-            });
-        return this;
+        if(pack != null) {
+            final Map<Integer, byte[]> collections = new HashMap<>();
+            collections.put(PackFile.HEADER_INDEX, header);
+            for(final int index : dirtyIndices) collections.put(index, buckets[index] == null ? null : buckets[index].toByteArray(codec));
+            pack.write(name, collections);
+            if(batch == null || isMovingToPack) pack.sync(); // the directory is deleted after it is in the pack
+            if(isMovingToPack) Utils.deleteDirectory(dir);
+        } else {
+            final FileBatch files = new FileBatch(); // only added to batch when all are written
+            files.replace(new File(dir, "Bits"), header);
+            for(final int index : dirtyIndices) {
+                final File file = new File(dir, "" + index);
+                if(buckets[index] == null) {
+                    files.delete(file);
+                } else {
+                    files.replace(file, buckets[index].toByteArray(codec)); // so memory maps of the old file stay intact
+                }
+            }
+            if(batch == null) files.commit(); else batch.add(files);
+        }
+        for(final BitsBucketsCollection collection : dirtyCollections) if(collection != null) collection.clearDirty();
+        return clearDirty();
     }
     public Bits load() {
-        if(this.dir == null || !this.dir.exists() || name.isEmpty()) return this;
+        final boolean isInPack = pack != null && pack.contains(name);
+        // The header is renamed into place with the collections, so a directory without it is not stored yet
+        if(this.dir == null || !(isInPack || new File(dir, "Bits").exists()) || name.isEmpty()) return this;
         clear();
-        final ByteArraySource validateData = new ByteArraySource(new File(dir, "Bits"));
+        final ByteArraySource validateData = isInPack
+            ? new ByteArraySource(pack.read(name, PackFile.HEADER_INDEX))
+            : new ByteArraySource(new File(dir, "Bits"));
         final int expectedSetBitsCount = validateData.getInt();
         final int expectedBucketLength = validateData.getShort();
         if(!name.equals(validateData.getString())) { isValid = false; return this; }
+        final int storedMaxIndex = validateData.hasMoreData() ? validateData.getInt() : -1; // older headers have none
 
-        Stream.of(or(this.dir.listFiles(), new File[0]))
-            .filter(file -> file.getName().matches("^\\d+$"))
-            .forEach(file -> {
-                final int index = Integer.parseInt(file.getName());
-                makeRoomForBuckets(index);
-
-                final byte[] data = Utils.readFileToByteArray(file).orElse(new byte[0]);
-                buckets[index] = BitsBucketsCollection.from(data);
-                maxIndex = Math.max(maxIndex, index * BUCKET_BITS_COUNT);
-            });
+        try {
+            if(isInPack) {
+                for(final int index : pack.getCollectionIndices(name)) {
+                    setLoaded(index, BitsBucketsCollection.from(pack.read(name, index)));
+                }
+            } else {
+                Stream.of(or(this.dir.listFiles(), new File[0]))
+                    .filter(file -> file.getName().matches("^\\d+$"))
+                    .forEach(file -> setLoaded(Integer.parseInt(file.getName()), mapFiles
+                        ? Utils.mapFile(file).map(BitsBucketsCollection::from).orElseGet(BitsBucketsCollection::new)
+                        : BitsBucketsCollection.from(Utils.readFileToByteArray(file).orElse(new byte[0]))));
+            }
+        } catch(final IllegalStateException cause) {
+            throw new IllegalStateException("Corrupt data of label " + name, cause);
+        }
+        recount();
+        if(storedMaxIndex >= 0) maxIndex = storedMaxIndex; else setMaxIndexFromCollections();
+        // Checksums of mapped collections are only verified by verify(), so the count is
+        // validated as well (which also finds a collection file that is missing)
         isValid = countSetBits() == expectedSetBitsCount
                && buckets.length == expectedBucketLength;
-        if(!isValid) clear();
+        if(!isValid) { clear(); isValid = false; } // clear() makes it valid again
+        return clearDirty();
+    }
+
+    /** Verifies the checksums of the collections that were memory mapped and not verified yet.
+      * Returns false (and marks this Bits as not valid) when a file was altered after it was
+      * written. Can be called in the background (scrub) as it does not alter the bits.
+      */
+    public boolean verify() {
+        final BitsBucketsCollection[] collections = buckets;
+        final boolean isVerified = Stream.of(collections).allMatch(collection -> collection == null || collection.verify());
+        if(!isVerified) isValid = false;
+        return isVerified;
+    }
+
+    /** Highest index that was set (or 0) */
+    int getMaxIndex() { return maxIndex; }
+    /** The container of the bucket at given index over all collections (null if none). Should not be altered */
+    BucketContainer getContainer(int bucketIndex) {
+        final BitsBucketsCollection buckets = getReadOnlyBuckets(bucketIndex / COLLECTION_BUCKETS_COUNT);
+        return buckets == null ? null : buckets.getContainer(bucketIndex % COLLECTION_BUCKETS_COUNT);
+    }
+    /** Sets the container of the bucket at given index over all collections. The container should not be altered
+      * elsewhere and the caller should make sure maxIndex is at least the highest set index.
+      */
+    Bits setContainer(int bucketIndex, BucketContainer container) {
+        final BitsBucketsCollection buckets = getBuckets(bucketIndex / COLLECTION_BUCKETS_COUNT);
+        final int before = buckets.countSetBits();
+        buckets.setContainer(bucketIndex % COLLECTION_BUCKETS_COUNT, container);
+        cardinality += buckets.countSetBits() - before;
+        return this;
+    }
+    Bits setMaxIndex(int maxIndex) {
+        this.maxIndex = maxIndex;
         return this;
     }
 
-    private Bits compact() {
-        for(int index = 0; index < buckets.length; index++) {
-            if (buckets[index] != null && buckets[index].compact().isEmpty()) buckets[index] = null;
+    /** Drops an empty collection and compacts the others. A shared collection (of a snapshot) is
+      * replaced by a compacted copy, which adoptCompacted() can hand over to the live Bits.
+      */
+    private void compact(int index) {
+        if (index >= buckets.length || buckets[index] == null) return;
+        if (buckets[index].isEmpty()) buckets[index] = null; else
+        if (!buckets[index].isShared()) buckets[index].compact(arena); else {
+            if(compactedOriginals == null) compactedOriginals = new BitsBucketsCollection[buckets.length];
+            compactedOriginals[index] = buckets[index];
+            buckets[index] = buckets[index].compactedCopy(arena);
+        }
+    }
+    /** Replaces the collections that this Bits shared with given stored snapshot, and that were not
+      * altered since, by the compacted copies the snapshot stored. Both share those afterwards, so
+      * the live Bits has optimized (and off-heap when there is an arena) buckets as well.
+      */
+    void adoptCompacted(Bits stored) {
+        final BitsBucketsCollection[] originals = stored.compactedOriginals;
+        if(originals == null) return;
+        for(int index = 0; index < Math.min(originals.length, buckets.length); index++) {
+            if(originals[index] != null && buckets[index] == originals[index] && stored.buckets[index] != null) {
+                buckets[index] = stored.buckets[index].share();
+            }
+        }
+        stored.compactedOriginals = null;
+    }
+    /** A dropped collection is dirty (its file should be deleted), an existing one when altered */
+    private boolean isDirty(int index) {
+        if(index >> 6 < unstoredCollections.length && (unstoredCollections[index >> 6] & (1L << index)) != 0) return true;
+        return index >= buckets.length || buckets[index] == null || buckets[index].isDirty();
+    }
+    private void markDirty(int index) {
+        if(index >> 6 >= dirtyCollections.length) dirtyCollections = Arrays.copyOf(dirtyCollections, (index >> 6) + 1);
+        dirtyCollections[index >> 6] |= 1L << index;
+    }
+    private int nextDirtyCollection(int fromIndex) {
+        int wordIndex = fromIndex >> 6;
+        if(wordIndex >= dirtyCollections.length) return -1;
+        long word = dirtyCollections[wordIndex] & (-1L << fromIndex);
+        while(word == 0) {
+            if(++wordIndex >= dirtyCollections.length) return -1;
+            word = dirtyCollections[wordIndex];
+        }
+        return wordIndex * 64 + Long.numberOfTrailingZeros(word);
+    }
+    private void setLoaded(int index, BitsBucketsCollection collection) {
+        makeRoomForBuckets(index);
+        buckets[index] = collection;
+        if(arena != null && !mapFiles) collection.compact(arena); // mapped bitmaps are off-heap already
+    }
+    /** Sets maxIndex from the highest set bit, which reads the collections so is only done for headers without maxIndex */
+    private void setMaxIndexFromCollections() {
+        for(int index = buckets.length - 1; index >= 0; index--) {
+            final int last = buckets[index] == null ? -1 : buckets[index].lastSetIndex();
+            if(last >= 0) { maxIndex = index * COLLECTION_BITS_COUNT + last; return; }
         }
+    }
+    /** Sets the cardinality from the collections, after an alteration of many bits */
+    private Bits recount() {
+        int count = 0;
+        for(final BitsBucketsCollection collection : buckets) if(collection != null) count += collection.countSetBits();
+        cardinality = count;
         return this;
     }
+    /** Returns the collection at given index, ready to be altered */
     private BitsBucketsCollection getBuckets(int index) {
+        rankDirectory = null;
         makeRoomForBuckets(index);
-        if(buckets[index] == null) buckets[index] = new BitsBucketsCollection();
+        markDirty(index);
+        if(buckets[index] == null) buckets[index] = new BitsBucketsCollection(); else
+        if(buckets[index].isShared()) buckets[index] = buckets[index].copy();
         return buckets[index];
     }
+    private BitsBucketsCollection getReadOnlyBuckets(int index) {
+        return index < buckets.length ? buckets[index] : null;
+    }
     private void makeRoomForBuckets(int index) {
         if(index >= buckets.length) {
             final BitsBucketsCollection[] newCollections = new BitsBucketsCollection[index + 10];
@@ -248,10 +618,67 @@ public class Bits {
             buckets = newCollections;
         }
     }
-    private int indexOf(BitsBucketsCollection bbColl) {
-        int index = -1;
-        for(int i=0; i<buckets.length && index < 0; i++) if(bbColl == buckets[i]) index = i;
-        return index;
+    /** Walks the set bits a bucket at a time, per long jumping to the next set bit */
+    private class SetBitsIterator implements PrimitiveIterator.OfInt {
+        private final long[] words = new long[BUCKET_LONG_COUNT];
+        private final int lastBucketIndex = maxIndex / BUCKET_BITS_COUNT;
+        private final int fromIndex;
+        private int bucketIndex;
+        private int wordIndex = BUCKET_LONG_COUNT;
+        private long word;
+
+        SetBitsIterator(int fromIndex) {
+            this.fromIndex = Math.max(0, fromIndex);
+            bucketIndex = this.fromIndex / BUCKET_BITS_COUNT - 1;
+        }
+
+        public boolean hasNext() {
+            while(word == 0) {
+                if(++wordIndex >= BUCKET_LONG_COUNT && !loadNextBucket()) return false;
+                word = words[wordIndex];
+            }
+            return true;
+        }
+        public int nextInt() {
+            if(!hasNext()) throw new NoSuchElementException();
+            final int index = bucketIndex * BUCKET_BITS_COUNT + wordIndex * 64 + Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+            return index;
+        }
+        private boolean loadNextBucket() {
+            while(++bucketIndex <= lastBucketIndex) {
+                final BucketContainer container = getContainer(bucketIndex);
+                if(container != null && !container.isEmpty()) {
+                    container.copyInto(words);
+                    final int firstBitIndex = fromIndex - bucketIndex * BUCKET_BITS_COUNT;
+                    if(firstBitIndex > 0) BitmapContainer.clearRange(words, 0, Math.min(firstBitIndex, BUCKET_BITS_COUNT) - 1);
+                    wordIndex = 0;
+                    return true;
+                }
+            }
+            bucketIndex = lastBucketIndex;
+            wordIndex = BUCKET_LONG_COUNT;
+            return false;
+        }
+    }
+
+    private static boolean isSorted(int[] indices) {
+        for(int i=1; i<indices.length; i++) if(indices[i] < indices[i-1]) return false;
+        return true;
+    }
+    private static int[] sortedCopy(int[] indices) {
+        final int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+    private int[] getRankDirectory() {
+        int[] directory = rankDirectory;
+        if(directory == null || directory.length != buckets.length + 1) {
+            directory = new int[buckets.length + 1];
+            for(int i=0; i<buckets.length; i++) directory[i + 1] = directory[i] + (buckets[i] == null ? 0 : buckets[i].countSetBits());
+            rankDirectory = directory;
+        }
+        return directory;
     }
 
 }
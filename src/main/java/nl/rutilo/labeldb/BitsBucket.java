@@ -3,21 +3,80 @@ package nl.rutilo.labeldb;
 import nl.rutilo.labeldb.util.ByteArraySource;
 import nl.rutilo.labeldb.util.ByteArrayTarget;
 
+import java.nio.ByteBuffer;
+
 class BitsBucket {
     // Performance is important here, so to keep things fast,
     // no Collections or objects are used (so also no streams).
-    private final long[] longs = new long[Bits.BUCKET_LONG_COUNT];
+    // The bits are held by a container that changes form
+    // (array, bitmap or runs) depending on the density of the bits.
+    // Copies share their container (copy-on-write) until it has to be altered in place.
+    // A shared bucket may be referenced by multiple collections so should not be altered:
+    // a collection replaces it with a writableCopy() first.
+    private BucketContainer container = new ArrayContainer();
+    private boolean isContainerShared;
+    private boolean isShared;
     private boolean isDirty;
-    private int maxUsedLongIndex;
-    private int minUsedLongIndex;
 
+    // Serialized forms, each starting with an int:
+    // - FULL_MARKER                                : all bits set
+    // - longCount, minUsedLongIndex, longs         : bitmap window of used longs
+    // - RUNS_MARKER, runCount, (start, length-1)*  : runs of set bits (no longer written)
+    // - ARRAY_MARKER, size, index*                 : sorted indices of set bits (no longer written)
+    // - DELTA_RUNS_MARKER, runCount, (gap, length-1)* : runs as varints, gap from the end of the previous run
+    // - DELTAS_MARKER, size, delta*                : indices as varints, delta from the previous index
+    // Varints of values in a bucket take one or two bytes, so the delta forms are never
+    // larger than the forms they replace.
+    private static final int FULL_MARKER  = -1;
+    private static final int RUNS_MARKER  = -2;
+    private static final int ARRAY_MARKER = -3;
+    private static final int DELTA_RUNS_MARKER = -4;
+    private static final int DELTAS_MARKER = -5;
+
+    /** Serializes to whichever form (bitmap window, runs or indices) takes the least bytes */
     public byte[] toByteArray() {
-        if(countSetBits() == size()) {
-            return new ByteArrayTarget(Integer.BYTES).add(-1).toByteArray();
+        if(container.isFull()) {
+            return new ByteArrayTarget(Integer.BYTES).add(FULL_MARKER).toByteArray();
         }
-        final int longCount = maxUsedLongIndex - minUsedLongIndex + 1;
+        final long[] longs = container.toLongs();
+        int minUsedLongIndex = 0;
+        int maxUsedLongIndex = longs.length - 1;
+        while(minUsedLongIndex < longs.length && longs[minUsedLongIndex] == 0) minUsedLongIndex++;
+        while(maxUsedLongIndex > minUsedLongIndex && longs[maxUsedLongIndex] == 0) maxUsedLongIndex--;
+        final int longCount = minUsedLongIndex == longs.length ? 0 : maxUsedLongIndex - minUsedLongIndex + 1;
+        if(longCount == 0) minUsedLongIndex = 0;
+
+        final int bitmapByteSize = 2 * Integer.BYTES + longCount * Long.BYTES;
 
-        return new ByteArrayTarget(new byte[2 * Integer.BYTES + longCount * Long.BYTES])
+        // The delta forms take at least a byte per value, so are only sized when they may be smaller
+        final RunContainer runs = Integer.BYTES + 2 * container.runCount() < bitmapByteSize ? container.toRunContainer() : null;
+        final int[] indices = Integer.BYTES + container.cardinality() < bitmapByteSize ? getIndices() : null;
+        int runsByteSize = Integer.MAX_VALUE;
+        int arrayByteSize = Integer.MAX_VALUE;
+        if(runs != null) {
+            runsByteSize = Integer.BYTES + ByteArrayTarget.varIntSize(runs.runCount);
+            for(int r=0, end=0; r<runs.runCount; end = runs.runs[2*r] + runs.runs[2*r + 1] + 1, r++) {
+                runsByteSize += ByteArrayTarget.varIntSize(runs.runs[2*r] - end) + ByteArrayTarget.varIntSize(runs.runs[2*r + 1]);
+            }
+        }
+        if(indices != null) {
+            arrayByteSize = Integer.BYTES + ByteArrayTarget.varIntSize(indices.length);
+            for(int i=0; i<indices.length; i++) arrayByteSize += ByteArrayTarget.varIntSize(indices[i] - (i == 0 ? 0 : indices[i - 1]));
+        }
+
+        if(runsByteSize < bitmapByteSize && runsByteSize < arrayByteSize) {
+            final ByteArrayTarget target = new ByteArrayTarget(runsByteSize).add(DELTA_RUNS_MARKER).addVarInt(runs.runCount);
+            for(int r=0, end=0; r<runs.runCount; end = runs.runs[2*r] + runs.runs[2*r + 1] + 1, r++) {
+                target.addVarInt(runs.runs[2*r] - end).addVarInt(runs.runs[2*r + 1]);
+            }
+            return target.toByteArray();
+        }
+        if(arrayByteSize < bitmapByteSize) {
+            final ByteArrayTarget target = new ByteArrayTarget(arrayByteSize).add(DELTAS_MARKER).addVarInt(indices.length);
+            for(int i=0; i<indices.length; i++) target.addVarInt(indices[i] - (i == 0 ? 0 : indices[i - 1]));
+            return target.toByteArray();
+        }
+        return new ByteArrayTarget(new byte[bitmapByteSize])
             .add(longCount)
             .add(minUsedLongIndex)
             .add(longs, minUsedLongIndex, longCount)
@@ -27,48 +86,130 @@ class BitsBucket {
         final BitsBucket bucket = new BitsBucket();
         final ByteArraySource source = new ByteArraySource(data);
         final int longCount = source.getInt();
-        if(longCount == -1) {
-            for(int i=0; i<bucket.longs.length; i++) bucket.longs[i] = -1;
+        if(longCount == FULL_MARKER) {
+            bucket.container = RunContainer.ofRange(0, Bits.BUCKET_BITS_COUNT - 1);
+        } else
+        if(longCount == RUNS_MARKER) {
+            final int runCount = source.getShort();
+            if(runCount < 0 || runCount > Bits.BUCKET_BITS_COUNT / 2) throw new IllegalStateException("Mangled data (runCount=" + runCount + ")");
+            bucket.container = new RunContainer(source.getShorts(new short[2 * runCount]), runCount);
+        } else
+        if(longCount == ARRAY_MARKER) {
+            final int size = source.getShort();
+            if(size < 0 || size > Bits.BUCKET_BITS_COUNT) throw new IllegalStateException("Mangled data (size=" + size + ")");
+            final BucketContainer array = new ArrayContainer(source.getShorts(new short[size]), size);
+            bucket.container = size <= BucketContainer.MAX_ARRAY_SIZE ? array : array.toBitmapContainer();
+        } else
+        if(longCount == DELTA_RUNS_MARKER) {
+            final int runCount = source.getVarInt();
+            if(runCount < 0 || runCount > Bits.BUCKET_BITS_COUNT / 2) throw new IllegalStateException("Mangled data (runCount=" + runCount + ")");
+            final short[] runs = new short[2 * runCount];
+            for(int r=0, end=0; r<runCount; r++) {
+                final int gap = source.getVarInt();
+                final int start = end + gap;
+                final int lengthMinusOne = source.getVarInt();
+                end = start + lengthMinusOne + 1;
+                if(gap < 0 || lengthMinusOne < 0 || end > Bits.BUCKET_BITS_COUNT) throw new IllegalStateException("Mangled data (run=" + start + ")");
+                runs[2*r] = (short)start;
+                runs[2*r + 1] = (short)lengthMinusOne;
+            }
+            bucket.container = new RunContainer(runs, runCount);
+        } else
+        if(longCount == DELTAS_MARKER) {
+            final int size = source.getVarInt();
+            if(size < 0 || size > Bits.BUCKET_BITS_COUNT) throw new IllegalStateException("Mangled data (size=" + size + ")");
+            final short[] values = new short[size];
+            for(int i=0, value=0; i<size; i++) {
+                final int delta = source.getVarInt();
+                value += delta;
+                if(delta < 0 || (delta == 0 && i > 0) || value >= Bits.BUCKET_BITS_COUNT) throw new IllegalStateException("Mangled data (index=" + value + ")");
+                values[i] = (short)value;
+            }
+            final BucketContainer array = new ArrayContainer(values, size);
+            bucket.container = size <= BucketContainer.MAX_ARRAY_SIZE ? array : array.toBitmapContainer();
         } else {
-            if(longCount < 0 || longCount > bucket.longs.length) throw new IllegalStateException("Mangled data (longCount=" + longCount + ")");
-            bucket.minUsedLongIndex = source.getInt();
-            source.getLongs(bucket.longs, bucket.minUsedLongIndex, longCount);
+            if(longCount < 0 || longCount > Bits.BUCKET_LONG_COUNT) throw new IllegalStateException("Mangled data (longCount=" + longCount + ")");
+            final long[] longs = new long[Bits.BUCKET_LONG_COUNT];
+            final int minUsedLongIndex = source.getInt();
+            source.getLongs(longs, minUsedLongIndex, longCount);
+            bucket.container = BucketContainer.fromLongs(longs).optimize();
+        }
+        return bucket;
+    }
+    /** Bucket from the serialized form of given length at offset in data. A bitmap is not
+      * copied but read from data directly, so data should not be altered afterwards.
+      */
+    public static BitsBucket from(ByteBuffer data, int offset, int length) {
+        final int longCount = data.getInt(offset);
+        if(longCount < 0) { // other forms are small
+            final byte[] bytes = new byte[length];
+            data.duplicate().position(offset).get(bytes);
+            return from(bytes);
         }
-        bucket.resetMinMaxIndex();
+        final int minUsedLongIndex = data.getInt(offset + Integer.BYTES);
+        if(longCount > Bits.BUCKET_LONG_COUNT || minUsedLongIndex < 0 || minUsedLongIndex + longCount > Bits.BUCKET_LONG_COUNT
+        || 2 * Integer.BYTES + longCount * Long.BYTES > length) {
+            throw new IllegalStateException("Mangled data (longCount=" + longCount + ", minUsedLongIndex=" + minUsedLongIndex + ")");
+        }
+        final ByteBuffer words = data.duplicate().position(offset + 2 * Integer.BYTES).limit(offset + 2 * Integer.BYTES + longCount * Long.BYTES);
+        final BitsBucket bucket = new BitsBucket();
+        bucket.container = OffHeapBitmapContainer.of(words.slice().asLongBuffer(), minUsedLongIndex, longCount);
+        return bucket;
+    }
+    /** Bucket of the bitmap form at offset in data, of which the first used long index and cardinality
+      * are known so none of the words are read here. Used for memory mapped data, so the pages of a
+      * bucket are only loaded when the bucket is used.
+      */
+    public static BitsBucket fromBitmap(ByteBuffer data, int offset, int length, int minUsedLongIndex, int cardinality) {
+        final int longCount = (length - 2 * Integer.BYTES) / Long.BYTES;
+        if(longCount < 0 || minUsedLongIndex < 0 || minUsedLongIndex + longCount > Bits.BUCKET_LONG_COUNT
+        || cardinality < 0 || cardinality > longCount * 64) {
+            throw new IllegalStateException("Mangled data (longCount=" + longCount + ", minUsedLongIndex=" + minUsedLongIndex + ", cardinality=" + cardinality + ")");
+        }
+        final ByteBuffer words = data.duplicate().position(offset + 2 * Integer.BYTES).limit(offset + 2 * Integer.BYTES + longCount * Long.BYTES);
+        final BitsBucket bucket = new BitsBucket();
+        bucket.container = new OffHeapBitmapContainer(words.slice().asLongBuffer(), 0, minUsedLongIndex, longCount, cardinality);
         return bucket;
     }
     public static BitsBucket from(BitsBucket toCopy) {
         final BitsBucket bucket = new BitsBucket();
-        System.arraycopy(toCopy.longs, 0, bucket.longs, 0, bucket.longs.length);
+        bucket.container = toCopy.container;
+        bucket.isContainerShared = true;
         bucket.isDirty = false;
-        bucket.minUsedLongIndex = toCopy.minUsedLongIndex;
-        bucket.maxUsedLongIndex = toCopy.maxUsedLongIndex;
+        toCopy.isContainerShared = true;
+        return bucket;
+    }
+    /** Bucket holding given container, which should not be altered elsewhere anymore */
+    static BitsBucket from(BucketContainer container) {
+        final BitsBucket bucket = new BitsBucket();
+        bucket.container = container;
+        bucket.isDirty = true;
         return bucket;
     }
     public BitsBucket copy() { return from(this); }
+    /** Copy to replace this shared bucket with before altering it, so including dirty state */
+    public BitsBucket writableCopy() {
+        final BitsBucket bucket = from(this);
+        bucket.isDirty = isDirty;
+        return bucket;
+    }
+    /** Marks this bucket as referenced by multiple collections */
+    public BitsBucket share() { isShared = true; return this; }
+    public boolean isShared() { return isShared; }
 
     public boolean clear() {
-        boolean changed = false;
-        for(int i=0; i<longs.length; i++) if(longs[i] != 0) { changed = true; longs[i] = 0; }
+        final boolean changed = !container.isEmpty();
+        container = new ArrayContainer();
+        isContainerShared = false;
         isDirty |= changed;
         return changed;
     }
     /** Number of bits in this bucket that can be set */
     public int size() {
-        return longs.length * Long.SIZE;
+        return Bits.BUCKET_BITS_COUNT;
     }
     public int copyIndicesIn(int[] array, int arrayOffset, int idOffset) {
-        int idIndex = 0;
-        for(int longIndex = minUsedLongIndex; longIndex <= maxUsedLongIndex; longIndex++) {
-            if(longs[longIndex] != 0) {
-                final long l = longs[longIndex];
-                final int bucketIdOffset = longIndex * 64;
-                for(int bitIndex=0; bitIndex<64; bitIndex++) {
-                    if((l & (1L << bitIndex)) != 0) array[arrayOffset + idIndex++] = idOffset + bucketIdOffset + bitIndex;
-                }
-            }
-        }
-        return idIndex;
+        return container.copyIndicesIn(array, arrayOffset, idOffset);
     }
     public int[] getIndices() {
         final int[] array = new int[countSetBits()];
@@ -77,108 +218,102 @@ class BitsBucket {
     }
 
     public boolean isSet(int bitIndex) {
-        final long bits = longs[bitIndex / 64];
-        return bits != 0L && (bits & 1L << (bitIndex % 64)) != 0L;
+        return container.contains(bitIndex);
     }
     public BitsBucket set(int bitIndex, boolean set) {
-        final int longIndex = bitIndex / 64;
-        if(longIndex < 0 || longIndex >= longs.length) throw new IllegalArgumentException("Index outside bucket (0.." + (size()-1) + ") requested: " + bitIndex);
-        long longVal = longs[longIndex];
-        long oldVal = longVal;
-        if(set) longVal |=   1L << (bitIndex % 64);
-        else    longVal &= ~(1L << (bitIndex % 64));
-
-        if(longVal != oldVal) {
-            longs[longIndex] = longVal;
-            isDirty = true;
-            if(longIndex < minUsedLongIndex) minUsedLongIndex = longIndex;
-            if(longIndex > maxUsedLongIndex) maxUsedLongIndex = longIndex;
+        if(bitIndex < 0 || bitIndex >= size()) throw new IllegalArgumentException("Index outside bucket (0.." + (size()-1) + ") requested: " + bitIndex);
+        if(container.contains(bitIndex) == set) return this;
+        if(isContainerShared) {
+            container = container.copy();
+            isContainerShared = false;
         }
+        container = set ? container.add(bitIndex) : container.remove(bitIndex);
+        isDirty = true;
+        return this;
+    }
+    /** Sets the bits of sortedIndices[from..to) minus indexOffset, which should all be in this bucket.
+      * The bits are collected in an array or bitmap first, which is then or-ed into this bucket at once.
+      */
+    public BitsBucket set(int[] sortedIndices, int from, int to, int indexOffset) {
+        final BucketContainer bits;
+        if(to - from <= BucketContainer.MAX_ARRAY_SIZE) {
+            final short[] values = new short[to - from];
+            int count = 0;
+            for(int i=from; i<to; i++) {
+                final short value = (short)(sortedIndices[i] - indexOffset);
+                if(count == 0 || values[count - 1] != value) values[count++] = value;
+            }
+            bits = new ArrayContainer(values, count);
+        } else {
+            final long[] words = new long[Bits.BUCKET_LONG_COUNT];
+            for(int i=from; i<to; i++) {
+                final int bitIndex = sortedIndices[i] - indexOffset;
+                words[bitIndex >>> 6] |= 1L << bitIndex;
+            }
+            bits = BucketContainer.fromLongs(words);
+        }
+        replaceContainer(container.isEmpty() ? bits : container.or(bits));
         return this;
     }
     public boolean isAnySet() {
-        for(final long l : longs) if(l != 0) return true;
-        return false;
+        return !container.isEmpty();
     }
     public boolean isAnySet(int fromBitIndex, int uptoBitIndex) {
+        final int minBitIndex = Math.max(fromBitIndex, 0);
         final int maxBitIndex = Math.min(uptoBitIndex, Bits.BUCKET_BITS_COUNT - 1);
-        for(int bitIndex = fromBitIndex; bitIndex <= maxBitIndex; bitIndex++) {
-            if(bitIndex % Long.SIZE == 0 && bitIndex + Long.SIZE <= maxBitIndex + 1) {
-                if(longs[bitIndex / Long.SIZE] != 0) return true;
-                bitIndex += Long.SIZE - 1;
-            } else {
-                if(isSet(bitIndex)) return true;
-            }
+        return minBitIndex <= maxBitIndex && container.intersects(minBitIndex, maxBitIndex);
+    }
+    /** Sets or clears bits fromBitIndex..uptoBitIndex (inclusive, clipped to this bucket) */
+    public BitsBucket setRange(int fromBitIndex, int uptoBitIndex, boolean set) {
+        final int minBitIndex = Math.max(fromBitIndex, 0);
+        final int maxBitIndex = Math.min(uptoBitIndex, Bits.BUCKET_BITS_COUNT - 1);
+        if(minBitIndex > maxBitIndex) return this;
+        if(minBitIndex == 0 && maxBitIndex == Bits.BUCKET_BITS_COUNT - 1) {
+            if(set ? container.isFull() : container.isEmpty()) return this;
+            container = set ? RunContainer.ofRange(minBitIndex, maxBitIndex) : new ArrayContainer();
+            isContainerShared = false;
+            isDirty = true;
+            return this;
         }
-        return false;
+        final RunContainer range = RunContainer.ofRange(minBitIndex, maxBitIndex);
+        replaceContainer(set ? container.or(range) : container.andNot(range));
+        return this;
+    }
+    /** Inverts bits fromBitIndex..uptoBitIndex (inclusive, clipped to this bucket) */
+    public BitsBucket flipRange(int fromBitIndex, int uptoBitIndex) {
+        final int minBitIndex = Math.max(fromBitIndex, 0);
+        final int maxBitIndex = Math.min(uptoBitIndex, Bits.BUCKET_BITS_COUNT - 1);
+        if(minBitIndex > maxBitIndex) return this;
+        final RunContainer range = RunContainer.ofRange(minBitIndex, maxBitIndex);
+        container = container.andNot(range).or(range.andNot(container));
+        isContainerShared = false;
+        isDirty = true;
+        return this;
     }
 
     public BitsBucket reverse() {
-        minUsedLongIndex = 0;
-        maxUsedLongIndex = longs.length - 1;
-        for(int i=0; i<longs.length; i++) longs[i] = ~longs[i];
-        constrictMinMaxIndex();
+        container = container.not();
+        isContainerShared = false;
         isDirty = true;
         return this;
     }
 
     public int countSetBits() {
-        int count = 0;
-        for(int i=minUsedLongIndex; i<=maxUsedLongIndex; i++) {
-            if(longs[i] != 0) count += Long.bitCount(longs[i]);
-        }
-        return count;
+        return container.cardinality();
     }
-
-    private enum IterateType { COUNT_OVERLAP, RETAIN_OVERLAP, REMOVE_OVERLAP, JOIN }
-
-    private int iterate(IterateType type, BitsBucket other) {
-        int count = 0;
-        final int minIndex = Math.min(minUsedLongIndex, other.minUsedLongIndex);
-        final int maxIndex = type == IterateType.COUNT_OVERLAP ? Math.min(maxUsedLongIndex, other.maxUsedLongIndex)
-                                                               : Math.max(maxUsedLongIndex, other.maxUsedLongIndex);
-        for (int index = minIndex; index <= maxIndex; index++) {
-            switch(type) {
-                case COUNT_OVERLAP: {
-                    final long overlap = longs[index] & other.longs[index];
-                    if (overlap != 0) count += Long.bitCount(overlap);
-                    break;
-                }
-                case RETAIN_OVERLAP: {
-                    final long longVal = longs[index];
-                    if (longVal != 0) {
-                        longs[index] &= other.longs[index];
-                        isDirty |= longs[index] != longVal;
-                    }
-                    break;
-                }
-                case REMOVE_OVERLAP: {
-                    final long longVal = longs[index];
-                    final long otherVal = other.longs[index];
-                    if (longVal != 0 && otherVal != 0) {
-                        longs[index] = longVal & ~otherVal;
-                        isDirty |= longs[index] != longVal;
-                    }
-                    break;
-                }
-                case JOIN: {
-                    final long longVal  = longs[index];
-                    final long otherVal = other.longs[index];
-                    if (otherVal != 0) {
-                        longs[index] |= otherVal;
-                        isDirty |= longs[index] != longVal;
-                    }
-                    break;
-                }
-            }
-        }
-        return count;
+    /** Number of set bits in fromBitIndex..uptoBitIndex (inclusive, clipped to this bucket) */
+    public int countSetBits(int fromBitIndex, int uptoBitIndex) {
+        final int minBitIndex = Math.max(fromBitIndex, 0);
+        final int maxBitIndex = Math.min(uptoBitIndex, Bits.BUCKET_BITS_COUNT - 1);
+        if(minBitIndex > maxBitIndex) return 0;
+        if(minBitIndex == 0 && maxBitIndex == Bits.BUCKET_BITS_COUNT - 1) return container.cardinality();
+        return container.rank(maxBitIndex + 1) - container.rank(minBitIndex);
     }
 
     public int countOverlapWith(BitsBucket other) {
         int count = 0;
         if(other != null) {
-            count = iterate(IterateType.COUNT_OVERLAP, other);
+            count = container.andCardinality(other.container);
         }
         return count;
     }
@@ -186,37 +321,66 @@ class BitsBucket {
         if(other == null) {
             isDirty |= clear();
         } else {
-            iterate(IterateType.RETAIN_OVERLAP, other);
-            constrictMinMaxIndex();
+            replaceContainer(container.and(other.container));
         }
         return this;
     }
     public BitsBucket removeOverlapWith(BitsBucket other) {
         if(other != null) {
-            iterate(IterateType.REMOVE_OVERLAP, other);
-            constrictMinMaxIndex();
+            replaceContainer(container.andNot(other.container));
         }
         return this;
     }
     public BitsBucket joinWith(BitsBucket other) {
         if(other != null) {
-            iterate(IterateType.JOIN, other);
-            resetMinMaxIndex();
+            replaceContainer(container.or(other.container));
         }
         return this;
     }
 
+    /** Number of set bits before given index */
+    public int rank(int index) { return container.rank(index); }
+    /** Index of the set bit with given rank (0 based) */
+    public int select(int rank) { return container.select(rank); }
+    /** Highest set index in this bucket, or -1 when empty */
+    public int lastSetIndex() { return container.last(); }
+
+    /** The container holding the bits. Should not be altered */
+    BucketContainer getContainer() { return container; }
+
+    /** Changes the container into the form that takes the least memory */
+    public BitsBucket optimize() { return optimize(null); }
+    /** Changes the container into the form that takes the least memory, where a bitmap
+      * is moved into the given arena (if not null) so it is held off-heap.
+      */
+    public BitsBucket optimize(BitmapArena arena) {
+        final BucketContainer optimized = optimizedContainer(arena);
+        if(optimized != container) {
+            container = optimized;
+            isContainerShared = false;
+        }
+        return this;
+    }
+    /** Optimized (see optimize()) copy, which does not alter this bucket so can be made of a shared bucket */
+    public BitsBucket optimizedCopy(BitmapArena arena) {
+        final BitsBucket bucket = new BitsBucket();
+        bucket.container = optimizedContainer(arena);
+        bucket.isContainerShared = bucket.container == container;
+        return bucket;
+    }
+    private BucketContainer optimizedContainer(BitmapArena arena) {
+        final BucketContainer optimized = container.optimize();
+        return arena != null && optimized instanceof BitmapContainer ? arena.store((BitmapContainer)optimized) : optimized;
+    }
     public boolean isDirty() { return isDirty; }
     public BitsBucket clearDirty() { isDirty = false; return this; }
-    public boolean isEmpty() { return countSetBits() == 0; }
+    public boolean isEmpty() { return container.isEmpty(); }
 
-    private void resetMinMaxIndex() {
-        minUsedLongIndex = 0;
-        maxUsedLongIndex = longs.length -1;
-        constrictMinMaxIndex();
-    }
-    private void constrictMinMaxIndex() {
-        while(minUsedLongIndex < longs.length - 1 && longs[minUsedLongIndex] == 0) minUsedLongIndex++;
-        while(maxUsedLongIndex > 0                && longs[maxUsedLongIndex] == 0) maxUsedLongIndex--;
+    // and/andNot results are subsets and or results are supersets, so
+    // a changed cardinality is the same as changed content for those.
+    private void replaceContainer(BucketContainer newContainer) {
+        isDirty |= newContainer.cardinality() != container.cardinality();
+        container = newContainer;
+        isContainerShared = false;
     }
 }
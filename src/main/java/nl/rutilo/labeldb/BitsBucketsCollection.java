@@ -3,53 +3,202 @@ package nl.rutilo.labeldb;
 import nl.rutilo.labeldb.util.ByteArraySource;
 import nl.rutilo.labeldb.util.ByteArrayTarget;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.zip.CRC32C;
 import java.util.stream.Stream;
 
 class BitsBucketsCollection {
     private BitsBucket[] buckets = new BitsBucket[Bits.COLLECTION_BUCKETS_COUNT];
+    // A shared collection may be referenced by multiple Bits so should not be
+    // altered: Bits replaces it with a copy() first. Copies share the buckets
+    // which are copied when altered (copy-on-write).
+    private boolean isShared;
+    // Number of set bits, kept up to date by every alteration
+    private int cardinality;
+    // Serialized data (of a memory mapped file) of which the checksum is not verified
+    // yet, so the pages are only read when used or when verify() is called.
+    private ByteBuffer unverifiedData;
+    private boolean hasChecksum;
+    // Version of the serialized form that is written. Older versions are still read: the
+    // first has no version byte, the second has no bucket directory.
+    private static final byte FORMAT_VERSION = 3;
+    private static final byte FORMAT_VERSION_WITHOUT_DIRECTORY = 2;
+    private static final int DIRECTORY_ENTRY_SIZE = 3 * Short.BYTES + Integer.BYTES;
 
     public static BitsBucketsCollection from(BitsBucketsCollection other) {
         final BitsBucketsCollection buckets = new BitsBucketsCollection();
         for(int i=0; i<buckets.buckets.length; i++) {
             if(other.buckets[i] != null) {
-                buckets.buckets[i] = other.buckets[i].copy();
+                buckets.buckets[i] = other.buckets[i].share();
             }
         }
+        buckets.cardinality = other.cardinality;
         return buckets;
     }
+    /** Collection from serialized data, of which the checksum (when it has one) is verified */
     public static BitsBucketsCollection from(byte[] data) {
         final BitsBucketsCollection buckets = new BitsBucketsCollection();
+        if(isVersioned(data.length, data.length == 0 ? 0 : data[0])) {
+            if(!isChecksumValid(ByteBuffer.wrap(data))) throw new IllegalStateException("Checksum mismatch");
+            final byte[] encoded = Arrays.copyOfRange(data, 2, data.length - Integer.BYTES);
+            final ByteArraySource source = new ByteArraySource(CollectionCodec.of(data[1]).decode(encoded));
+            if(data[0] == FORMAT_VERSION) buckets.readBucketsWithDirectory(source); else buckets.readBuckets(source);
+            buckets.hasChecksum = true;
+            return buckets.recount();
+        }
         final ByteArraySource source = new ByteArraySource(data);
+        buckets.readBuckets(source);
+        buckets.hasChecksum = source.hasMoreData(); // older files have no checksum
+        if(buckets.hasChecksum && !isChecksumValid(ByteBuffer.wrap(data))) throw new IllegalStateException("Checksum mismatch");
+        return buckets.recount();
+    }
+    private void readBuckets(ByteArraySource source) {
         final short bucketCount = source.getShort();
-        while(source.hasMoreData()) {
+        for(int i=0; i<bucketCount && source.hasMoreData(); i++) {
             final short bucketIndex = source.getShort();
             final byte[] bucketData = new byte[source.getShort()];
             source.copyInto(bucketData);
-            buckets.buckets[bucketIndex] = BitsBucket.from(bucketData);
+            buckets[bucketIndex] = BitsBucket.from(bucketData);
         }
-        return buckets;
+    }
+    private void readBucketsWithDirectory(ByteArraySource source) {
+        final short bucketCount = source.getShort();
+        final int[] directory = new int[bucketCount * 3];
+        for(int i=0; i<bucketCount; i++) {
+            directory[3*i]     = source.getShort(); // bucketIndex
+            directory[3*i + 1] = source.getShort(); // length
+            directory[3*i + 2] = source.getInt();   // cardinality
+            source.getShort();                      // minUsedLongIndex, only needed when mapped
+        }
+        for(int i=0; i<bucketCount; i++) {
+            final int bucketIndex = directory[3*i];
+            final byte[] bucketData = new byte[directory[3*i + 1]];
+            source.copyInto(bucketData);
+            if(bucketIndex < 0 || bucketIndex >= buckets.length) throw new IllegalStateException("Mangled data (bucketIndex=" + bucketIndex + ")");
+            buckets[bucketIndex] = BitsBucket.from(bucketData);
+            if(buckets[bucketIndex].countSetBits() != directory[3*i + 2]) {
+                throw new IllegalStateException("Mangled data (bucketIndex=" + bucketIndex + ", cardinality=" + directory[3*i + 2] + ")");
+            }
+        }
+    }
+
+    /** Collection from serialized data of which bitmap buckets are read directly, so data should not be altered afterwards.
+      * Only the bucket directory is read here, so the pages of the bitmaps are not loaded until used.
+      */
+    public static BitsBucketsCollection from(ByteBuffer data) {
+        final BitsBucketsCollection buckets = new BitsBucketsCollection();
+        int offset = 0;
+        if(isVersioned(data.limit(), data.limit() == 0 ? 0 : data.get(0))) {
+            if(data.get(1) != CollectionCodec.NONE.getId()) { // encoded data cannot be read in place
+                final byte[] bytes = new byte[data.limit()];
+                data.duplicate().position(0).get(bytes);
+                return from(bytes);
+            }
+            offset = 2;
+            if(data.get(0) == FORMAT_VERSION) return buckets.readMappedBucketsWithDirectory(data, offset);
+        }
+        final short bucketCount = data.getShort(offset);
+        offset += Short.BYTES;
+        for(int i=0; i<bucketCount && offset + 2 * Short.BYTES <= data.limit(); i++) {
+            final short bucketIndex = data.getShort(offset);
+            final short length = data.getShort(offset + Short.BYTES);
+            offset += 2 * Short.BYTES;
+            if(bucketIndex < 0 || bucketIndex >= buckets.buckets.length || length < Integer.BYTES || offset + length > data.limit()) {
+                throw new IllegalStateException("Mangled data (bucketIndex=" + bucketIndex + ", length=" + length + ")");
+            }
+            buckets.buckets[bucketIndex] = BitsBucket.from(data, offset, length);
+            offset += length;
+        }
+        buckets.hasChecksum = offset + Integer.BYTES == data.limit();
+        if(buckets.hasChecksum) buckets.unverifiedData = data;
+        return buckets.recount();
+    }
+    private BitsBucketsCollection readMappedBucketsWithDirectory(ByteBuffer data, int offset) {
+        final short bucketCount = data.getShort(offset);
+        int directoryOffset = offset + Short.BYTES;
+        int dataOffset = directoryOffset + bucketCount * DIRECTORY_ENTRY_SIZE;
+        if(bucketCount < 0 || dataOffset + Integer.BYTES > data.limit()) throw new IllegalStateException("Mangled data (bucketCount=" + bucketCount + ")");
+        for(int i=0; i<bucketCount; i++, directoryOffset += DIRECTORY_ENTRY_SIZE) {
+            final short bucketIndex      = data.getShort(directoryOffset);
+            final short length           = data.getShort(directoryOffset + Short.BYTES);
+            final int   bucketCardinality = data.getInt(directoryOffset + 2 * Short.BYTES);
+            final short minUsedLongIndex = data.getShort(directoryOffset + 2 * Short.BYTES + Integer.BYTES);
+            if(bucketIndex < 0 || bucketIndex >= buckets.length || length < Integer.BYTES || dataOffset + length + Integer.BYTES > data.limit()) {
+                throw new IllegalStateException("Mangled data (bucketIndex=" + bucketIndex + ", length=" + length + ")");
+            }
+            buckets[bucketIndex] = minUsedLongIndex < 0
+                ? BitsBucket.from(data, dataOffset, length) // other forms are small
+                : BitsBucket.fromBitmap(data, dataOffset, length, minUsedLongIndex, bucketCardinality);
+            dataOffset += length;
+        }
+        if(dataOffset + Integer.BYTES != data.limit()) throw new IllegalStateException("Mangled data (length=" + data.limit() + ")");
+        hasChecksum = true;
+        unverifiedData = data;
+        return recount();
     }
 
     public BitsBucketsCollection copy() { return from(this); }
-    public byte[] toByteArray() {
-        compact();
+    /** Marks this collection as referenced by multiple Bits */
+    public BitsBucketsCollection share() { isShared = true; return this; }
+    public boolean isShared() { return isShared; }
+    /** Verifies the checksum of the data this collection was read from, if not done yet.
+      * Returns false when the data was altered after it was written.
+      */
+    public boolean verify() {
+        final ByteBuffer data = unverifiedData;
+        if(data == null) return true;
+        final boolean isValid = isChecksumValid(data);
+        if(isValid) unverifiedData = null;
+        return isValid;
+    }
+    /** True when this collection was read from data that has a checksum */
+    public boolean hasChecksum() { return hasChecksum; }
+
+    public byte[] toByteArray() { return toByteArray(CollectionCodec.NONE); }
+    /** Serialized collection: FORMAT_VERSION, codecId, encoded buckets, crc32c of the preceding bytes<br>
+      * where buckets: bucketCount, (bucketIndex, length, cardinality, minUsedLongIndex)*, (bucket data)*<br>
+      * The minUsedLongIndex is -1 for buckets that are not in bitmap form. The directory lets
+      * a memory mapped collection be opened without reading the data of its bitmaps.
+      */
+    public byte[] toByteArray(CollectionCodec codec) {
         final byte[][] bucketsData = new byte[buckets.length][];
-        for(int i=0; i<buckets.length; i++) if(buckets[i] != null) bucketsData[i] = buckets[i].toByteArray();
+        for(int i=0; i<buckets.length; i++) if(buckets[i] != null && !buckets[i].isEmpty()) bucketsData[i] = buckets[i].toByteArray();
         final short bucketCount = (short)Stream.of(bucketsData).filter(Objects::nonNull).count();
-        final int byteSize = Stream.of(bucketsData).filter(Objects::nonNull).mapToInt(d->2+2+d.length).sum();
+        final int byteSize = Stream.of(bucketsData).filter(Objects::nonNull).mapToInt(d->DIRECTORY_ENTRY_SIZE+d.length).sum();
 
         final ByteArrayTarget target = new ByteArrayTarget(2 + byteSize);
         target.add(bucketCount);
         for(short i=0; i<bucketsData.length; i++) {
             final byte[] data = bucketsData[i];
             if(data != null) {
+                final ByteBuffer bucketData = ByteBuffer.wrap(data);
                 target.add(i);
                 target.add((short)data.length);
-                target.add(data);
+                target.add(buckets[i].countSetBits());
+                target.add((short)(bucketData.getInt(0) >= 0 ? bucketData.getInt(Integer.BYTES) : -1)); // bitmaps start with their longCount
             }
         }
-        return target.toByteArray();
+        for(final byte[] data : bucketsData) if(data != null) target.add(data);
+        final byte[] encoded = codec.encode(target.toByteArray());
+        final ByteArrayTarget result = new ByteArrayTarget(2 + encoded.length + Integer.BYTES).add(FORMAT_VERSION).add(codec.getId()).add(encoded);
+        final byte[] bytes = result.toByteArray(); // the array the target writes in
+        return result.add(checksumOf(ByteBuffer.wrap(bytes, 0, bytes.length - Integer.BYTES))).toByteArray();
+    }
+    /** Data of the first version starts with the bucket count, of which the high byte is 0 */
+    private static boolean isVersioned(int length, byte firstByte) {
+        if(firstByte == 0) return false;
+        if(firstByte < FORMAT_VERSION_WITHOUT_DIRECTORY || firstByte > FORMAT_VERSION || length < 2 + Integer.BYTES) throw new IllegalStateException("Unknown format (version=" + firstByte + ")");
+        return true;
+    }
+    private static boolean isChecksumValid(ByteBuffer data) {
+        return data.getInt(data.limit() - Integer.BYTES) == checksumOf(data.duplicate().position(0).limit(data.limit() - Integer.BYTES));
+    }
+    private static int checksumOf(ByteBuffer data) {
+        final CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int)crc.getValue();
     }
 
     public int size() {
@@ -58,6 +207,7 @@ class BitsBucketsCollection {
 
     public BitsBucketsCollection clear() {
         for(int i=0; i<buckets.length; i++) buckets[i] = null;
+        cardinality = 0;
         return this;
     }
 
@@ -81,7 +231,31 @@ class BitsBucketsCollection {
     public BitsBucketsCollection set(int index, boolean set) {
         if(index < 0 || index >= Bits.COLLECTION_BITS_COUNT) throw new IllegalArgumentException("Index of " + index + " is outside range of 0..COLLECTION_BITS_COUNT (" + Bits.COLLECTION_BITS_COUNT + ")");
         final int bucketIndex = index / Bits.BUCKET_BITS_COUNT;
-        getBucket(bucketIndex).set(index % Bits.BUCKET_BITS_COUNT, set);
+        if(!set && buckets[bucketIndex] == null) return this;
+        final BitsBucket bucket = getWritableBucket(bucketIndex);
+        final int before = bucket.countSetBits();
+        bucket.set(index % Bits.BUCKET_BITS_COUNT, set);
+        cardinality += bucket.countSetBits() - before;
+        return this;
+    }
+    /** Sets sortedIndices[from..to) minus indexOffset, which should all be in this collection, a bucket at a time */
+    public BitsBucketsCollection set(int[] sortedIndices, int from, int to, int indexOffset) {
+        if(from >= to) return this;
+        final int first = sortedIndices[from] - indexOffset;
+        final int last  = sortedIndices[to - 1] - indexOffset;
+        if(first < 0 || last >= Bits.COLLECTION_BITS_COUNT) throw new IllegalArgumentException("Indices " + first + ".." + last + " are outside range of 0..COLLECTION_BITS_COUNT (" + Bits.COLLECTION_BITS_COUNT + ")");
+        int groupStart = from;
+        while(groupStart < to) {
+            final int bucketIndex = (sortedIndices[groupStart] - indexOffset) / Bits.BUCKET_BITS_COUNT;
+            final int bucketOffset = indexOffset + bucketIndex * Bits.BUCKET_BITS_COUNT;
+            int groupEnd = groupStart + 1;
+            while(groupEnd < to && sortedIndices[groupEnd] - bucketOffset < Bits.BUCKET_BITS_COUNT) groupEnd++;
+            final BitsBucket bucket = getWritableBucket(bucketIndex);
+            final int before = bucket.countSetBits();
+            bucket.set(sortedIndices, groupStart, groupEnd, bucketOffset);
+            cardinality += bucket.countSetBits() - before;
+            groupStart = groupEnd;
+        }
         return this;
     }
     public boolean isSet(int index) {
@@ -90,40 +264,66 @@ class BitsBucketsCollection {
         return buckets[bucketIndex].isSet(index % Bits.BUCKET_BITS_COUNT);
     }
     public boolean isAnySet() {
-        for(final BitsBucket bucket : buckets) {
-            if(bucket != null && bucket.isAnySet()) return true;
-        }
-        return false;
+        return cardinality > 0;
     }
     public boolean isAnySet(int beginIndex, int endIndex) {
-        final int maxBitIndex = Math.min(endIndex, buckets.length * Bits.BUCKET_BITS_COUNT - 1);
-        for(int bitIndex = beginIndex; bitIndex <= maxBitIndex; bitIndex++) {
-            if(bitIndex % Bits.BUCKET_BITS_COUNT == 0 && bitIndex + Bits.BUCKET_BITS_COUNT <= maxBitIndex + 1) {
-                final BitsBucket bucket = buckets[bitIndex / Bits.BUCKET_BITS_COUNT];
-                if(bucket != null && bucket.isAnySet()) return true;
-                bitIndex += Bits.BUCKET_BITS_COUNT - 1;
-            } else {
-                if(isSet(bitIndex)) return true;
-            }
+        final int minIndex = Math.max(beginIndex, 0);
+        final int maxIndex = Math.min(endIndex, Bits.COLLECTION_BITS_COUNT - 1);
+        for(int bucketIndex = minIndex / Bits.BUCKET_BITS_COUNT; bucketIndex <= maxIndex / Bits.BUCKET_BITS_COUNT && minIndex <= maxIndex; bucketIndex++) {
+            final int bucketStart = bucketIndex * Bits.BUCKET_BITS_COUNT;
+            if(buckets[bucketIndex] != null && buckets[bucketIndex].isAnySet(minIndex - bucketStart, maxIndex - bucketStart)) return true;
         }
         return false;
     }
+    /** Sets or clears bits beginIndex..endIndex (inclusive), whole buckets at a time where possible */
+    public BitsBucketsCollection setRange(int beginIndex, int endIndex, boolean set) {
+        final int minIndex = Math.max(beginIndex, 0);
+        final int maxIndex = Math.min(endIndex, Bits.COLLECTION_BITS_COUNT - 1);
+        for(int bucketIndex = minIndex / Bits.BUCKET_BITS_COUNT; bucketIndex <= maxIndex / Bits.BUCKET_BITS_COUNT && minIndex <= maxIndex; bucketIndex++) {
+            if(!set && buckets[bucketIndex] == null) continue;
+            final int bucketStart = bucketIndex * Bits.BUCKET_BITS_COUNT;
+            final BitsBucket bucket = getWritableBucket(bucketIndex);
+            final int before = bucket.countSetBits();
+            bucket.setRange(minIndex - bucketStart, maxIndex - bucketStart, set);
+            cardinality += bucket.countSetBits() - before;
+        }
+        return this;
+    }
+    /** Inverts bits beginIndex..endIndex (inclusive) */
+    public BitsBucketsCollection flipRange(int beginIndex, int endIndex) {
+        final int minIndex = Math.max(beginIndex, 0);
+        final int maxIndex = Math.min(endIndex, Bits.COLLECTION_BITS_COUNT - 1);
+        for(int bucketIndex = minIndex / Bits.BUCKET_BITS_COUNT; bucketIndex <= maxIndex / Bits.BUCKET_BITS_COUNT && minIndex <= maxIndex; bucketIndex++) {
+            final int bucketStart = bucketIndex * Bits.BUCKET_BITS_COUNT;
+            final BitsBucket bucket = getWritableBucket(bucketIndex);
+            final int before = bucket.countSetBits();
+            bucket.flipRange(minIndex - bucketStart, maxIndex - bucketStart);
+            cardinality += bucket.countSetBits() - before;
+        }
+        return this;
+    }
 
+    /** Complements all bits of this collection, including those of empty buckets */
     public BitsBucketsCollection reverse() {
-        int lastBucket = buckets.length - 1;
-        while(lastBucket > 0 && buckets[lastBucket] == null) lastBucket--;
-        for(int i=0; i<=lastBucket; i++) {
-            final BitsBucket bucket = getBucket(i);
+        for(int i=0; i<buckets.length; i++) {
+            final BitsBucket bucket = getWritableBucket(i);
             bucket.reverse();
             if(bucket.isEmpty()) buckets[i] = null;
         }
-        return this;
+        return recount();
     }
 
     public int countSetBits() {
+        return cardinality;
+    }
+    /** Number of set bits in beginIndex..endIndex (inclusive) */
+    public int countSetBits(int beginIndex, int endIndex) {
+        final int minIndex = Math.max(beginIndex, 0);
+        final int maxIndex = Math.min(endIndex, Bits.COLLECTION_BITS_COUNT - 1);
         int count = 0;
-        for (BitsBucket bucket : buckets) {
-            if (bucket != null) count += bucket.countSetBits();
+        for(int bucketIndex = minIndex / Bits.BUCKET_BITS_COUNT; bucketIndex <= maxIndex / Bits.BUCKET_BITS_COUNT && minIndex <= maxIndex; bucketIndex++) {
+            final int bucketStart = bucketIndex * Bits.BUCKET_BITS_COUNT;
+            if(buckets[bucketIndex] != null) count += buckets[bucketIndex].countSetBits(minIndex - bucketStart, maxIndex - bucketStart);
         }
         return count;
     }
@@ -139,45 +339,102 @@ class BitsBucketsCollection {
     public BitsBucketsCollection retainOverlapWith(BitsBucketsCollection other) {
         for(int index = 0; index < buckets.length; index++) {
             if(buckets[index] != null) {
-                buckets[index].retainOverlapWith(other.buckets[index]);
+                getWritableBucket(index).retainOverlapWith(other.buckets[index]);
             }
         }
-        return this;
+        return recount();
     }
     public BitsBucketsCollection removeOverlapWith(BitsBucketsCollection other) {
         for(int index = 0; index < buckets.length; index++) {
             if(buckets[index] != null && other.buckets[index] != null) {
-                buckets[index].removeOverlapWith(other.buckets[index]);
+                getWritableBucket(index).removeOverlapWith(other.buckets[index]);
             }
         }
-        return this;
+        return recount();
     }
     public BitsBucketsCollection joinWith(BitsBucketsCollection other) {
         for(int index = 0; index < buckets.length; index++) {
             if(buckets[index] == null && other.buckets[index] != null) {
                 buckets[index] = other.buckets[index].copy();
             } else
-            if(buckets[index] != null) {
-                buckets[index].joinWith(other.buckets[index]);
+            if(buckets[index] != null && other.buckets[index] != null) {
+                getWritableBucket(index).joinWith(other.buckets[index]);
             }
         }
+        return recount();
+    }
+
+    /** Number of set bits before given index */
+    public int rank(int index) {
+        final int bucketIndex = index / Bits.BUCKET_BITS_COUNT;
+        int count = 0;
+        for(int i=0; i<bucketIndex && i<buckets.length; i++) if(buckets[i] != null) count += buckets[i].countSetBits();
+        if(bucketIndex < buckets.length && buckets[bucketIndex] != null) count += buckets[bucketIndex].rank(index % Bits.BUCKET_BITS_COUNT);
+        return count;
+    }
+    /** Index of the set bit with given rank (0 based), or -1 when there are not that many set bits */
+    public int select(int rank) {
+        for(int i=0; i<buckets.length; i++) {
+            final int count = buckets[i] == null ? 0 : buckets[i].countSetBits();
+            if(rank < count) return i * Bits.BUCKET_BITS_COUNT + buckets[i].select(rank);
+            rank -= count;
+        }
+        return -1;
+    }
+    /** Highest set index in this collection, or -1 when empty */
+    public int lastSetIndex() {
+        for(int i=buckets.length - 1; i>=0; i--) {
+            final int last = buckets[i] == null ? -1 : buckets[i].lastSetIndex();
+            if(last >= 0) return i * Bits.BUCKET_BITS_COUNT + last;
+        }
+        return -1;
+    }
+
+    /** The container of the bucket at given index (null if none). Should not be altered */
+    BucketContainer getContainer(int bucketIndex) {
+        return buckets[bucketIndex] == null ? null : buckets[bucketIndex].getContainer();
+    }
+    BitsBucketsCollection setContainer(int bucketIndex, BucketContainer container) {
+        if(buckets[bucketIndex] != null) cardinality -= buckets[bucketIndex].countSetBits();
+        buckets[bucketIndex] = BitsBucket.from(container);
+        cardinality += container.cardinality();
         return this;
     }
 
-    private BitsBucket getBucket(int index) {
+    /** Sets the cardinality from the buckets, after an operation that altered many of them */
+    private BitsBucketsCollection recount() {
+        int count = 0;
+        for(final BitsBucket bucket : buckets) if(bucket != null) count += bucket.countSetBits();
+        cardinality = count;
+        return this;
+    }
+    private BitsBucket getWritableBucket(int index) {
         if(index < 0 || index >= buckets.length) throw new IllegalArgumentException("index should be 0..COLLECTION_BUCKETS_COUNT (" + buckets.length + ") but is " + index);
-        if(buckets[index] == null) buckets[index] = new BitsBucket();
+        if(buckets[index] == null) buckets[index] = new BitsBucket(); else
+        if(buckets[index].isShared()) buckets[index] = buckets[index].writableCopy();
         return buckets[index];
     }
 
-    public BitsBucketsCollection compact() {
+    public BitsBucketsCollection compact() { return compact(null); }
+    /** Drops empty buckets and optimizes the others, moving bitmaps into the given arena (if not null) */
+    public BitsBucketsCollection compact(BitmapArena arena) {
         for(int index = 0; index < buckets.length; index++) {
             if (buckets[index] != null && buckets[index].isEmpty()) buckets[index] = null;
+            if (buckets[index] != null && !buckets[index].isShared()) buckets[index].optimize(arena);
         }
         return this;
     }
+    /** Compacted (see compact()) copy, which does not alter this collection so can be made of a shared collection */
+    public BitsBucketsCollection compactedCopy(BitmapArena arena) {
+        final BitsBucketsCollection copy = new BitsBucketsCollection();
+        for(int index = 0; index < buckets.length; index++) {
+            if(buckets[index] != null && !buckets[index].isEmpty()) copy.buckets[index] = buckets[index].optimizedCopy(arena);
+        }
+        copy.cardinality = cardinality;
+        return copy;
+    }
     public boolean isEmpty() {
-        return Stream.of(buckets).filter(Objects::nonNull).allMatch(BitsBucket::isEmpty);
+        return cardinality == 0;
     }
     public boolean isDirty() {
         return Stream.of(buckets).filter(Objects::nonNull).anyMatch(BitsBucket::isDirty);
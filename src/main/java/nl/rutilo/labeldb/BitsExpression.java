@@ -0,0 +1,203 @@
+package nl.rutilo.labeldb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/** Tree of and, or and not operations on Bits that is evaluated one bucket at a time.<p>
+  *
+  * Instead of creating a full Bits instance for every node in the tree, each bucket
+  * position is evaluated over the whole tree into small scratch bitmaps that are
+  * reused for all buckets, so only the end result is created. The Bits in the tree
+  * are not altered.<p>
+  *
+  * And and or take any number of operands, nested ands and ors are flattened into
+  * their parent so all operands are combined in a single pass per bucket. The operands
+  * of an and are combined from the smallest cardinality up and a bucket is skipped as
+  * soon as one of the operands has nothing set in it. A not operand of an and is
+  * combined as and-not instead of being complemented first.<p>
+  *
+  * A not is the complement within 0..maxIndex of its operand, where the maxIndex of
+  * an and is that of its first operand and the maxIndex of an or the highest of all.
+  */
+public abstract class BitsExpression {
+    private static final int LONG_COUNT = Bits.BUCKET_LONG_COUNT;
+    private static final int BITS_COUNT = Bits.BUCKET_BITS_COUNT;
+
+    public static BitsExpression of(Bits bits) { return new Leaf(bits); }
+    public static BitsExpression and(BitsExpression... operands) { return new And(flatten(And.class, operands)); }
+    public static BitsExpression or(BitsExpression... operands) { return new Or(flatten(Or.class, operands)); }
+    public static BitsExpression not(BitsExpression expression) { return new Not(expression, expression.maxIndex()); }
+    /** Bits of expression that are not in any of the others */
+    public static BitsExpression andNot(BitsExpression expression, BitsExpression... others) {
+        if(others.length == 0) return expression;
+        final BitsExpression union = or(others);
+        return and(expression, new Not(union, Math.max(expression.maxIndex(), union.maxIndex())));
+    }
+
+    /** New Bits holding the result of this expression */
+    public Bits evaluate() {
+        final long[][] scratch = new long[scratchCount()][LONG_COUNT];
+        final int maxIndex = maxIndex();
+        final Bits result = new Bits();
+        for(int bucketIndex = 0; bucketIndex <= maxIndex / BITS_COUNT; bucketIndex++) {
+            if(evaluate(bucketIndex, scratch, 0)) {
+                result.setContainer(bucketIndex, BucketContainer.fromLongs(scratch[0].clone()));
+            }
+        }
+        return result.setMaxIndex(maxIndex);
+    }
+
+    /** Highest index that can be set in the result */
+    abstract int maxIndex();
+    /** Number of scratch bitmaps needed to evaluate */
+    abstract int scratchCount();
+    /** Number of set bits the result is expected to have, used to order operands */
+    abstract long estimatedCardinality();
+    /** Evaluates the bucket at given index into scratch[depth]. Returns false
+      * (leaving the scratch undefined) when no bit is set.
+      */
+    abstract boolean evaluate(int bucketIndex, long[][] scratch, int depth);
+    /** Ands the bucket at given index into scratch[depth]. Returns false when no bit remains set */
+    boolean andInto(int bucketIndex, long[][] scratch, int depth) {
+        return evaluate(bucketIndex, scratch, depth + 1) && BitmapKernels.andInto(scratch[depth], scratch[depth + 1]);
+    }
+    /** Ors the bucket at given index into scratch[depth] */
+    void orInto(int bucketIndex, long[][] scratch, int depth) {
+        if(evaluate(bucketIndex, scratch, depth + 1)) BitmapKernels.orInto(scratch[depth], scratch[depth + 1]);
+    }
+
+    private static List<BitsExpression> flatten(Class<? extends BitsExpression> type, BitsExpression[] operands) {
+        final List<BitsExpression> flattened = new ArrayList<>();
+        for(final BitsExpression operand : operands) {
+            if(operand.getClass() == type) flattened.addAll(((Operands)operand).operands); else flattened.add(operand);
+        }
+        if(flattened.isEmpty()) flattened.add(of(new Bits()));
+        return flattened;
+    }
+
+    private static final class Leaf extends BitsExpression {
+        private final Bits bits;
+        private final long cardinality;
+        Leaf(Bits bits) { this.bits = bits; this.cardinality = bits.countSetBits(); }
+
+        int maxIndex() { return bits.getMaxIndex(); }
+        int scratchCount() { return 1; }
+        long estimatedCardinality() { return cardinality; }
+        boolean evaluate(int bucketIndex, long[][] scratch, int depth) {
+            final BucketContainer container = bits.getContainer(bucketIndex);
+            if(container == null || container.isEmpty()) return false;
+            container.copyInto(scratch[depth]);
+            return true;
+        }
+        boolean andInto(int bucketIndex, long[][] scratch, int depth) {
+            final BucketContainer container = bits.getContainer(bucketIndex);
+            return container != null && container.andInto(scratch[depth]);
+        }
+        void orInto(int bucketIndex, long[][] scratch, int depth) {
+            final BucketContainer container = bits.getContainer(bucketIndex);
+            if(container != null) container.orInto(scratch[depth]);
+        }
+        boolean isEmptyAt(int bucketIndex) {
+            final BucketContainer container = bits.getContainer(bucketIndex);
+            return container == null || container.isEmpty();
+        }
+    }
+
+    private abstract static class Operands extends BitsExpression {
+        final List<BitsExpression> operands;
+        Operands(List<BitsExpression> operands) { this.operands = operands; }
+
+        int scratchCount() {
+            int count = 0; // any operand can be first (and is evaluated in place) or be combined into the first
+            for(final BitsExpression operand : operands) count = Math.max(count, operand.scratchCount() + 1);
+            return count;
+        }
+    }
+
+    private static final class And extends Operands {
+        private final BitsExpression[] ordered; // leaves by cardinality, then other operands, then nots
+        private final Leaf[] leaves;
+        private final int maxIndex;
+        And(List<BitsExpression> operands) {
+            super(operands);
+            maxIndex = operands.get(0).maxIndex();
+            ordered = operands.toArray(new BitsExpression[0]);
+            Arrays.sort(ordered, Comparator
+                .comparingInt((BitsExpression op) -> op instanceof Leaf ? 0 : op instanceof Not ? 2 : 1)
+                .thenComparingLong(BitsExpression::estimatedCardinality));
+            leaves = operands.stream().filter(op -> op instanceof Leaf).toArray(Leaf[]::new);
+        }
+
+        int maxIndex() { return maxIndex; }
+        long estimatedCardinality() { return ordered[0].estimatedCardinality(); }
+        boolean evaluate(int bucketIndex, long[][] scratch, int depth) {
+            for(final Leaf leaf : leaves) if(leaf.isEmptyAt(bucketIndex)) return false;
+            if(!ordered[0].evaluate(bucketIndex, scratch, depth)) return false;
+            for(int i=1; i<ordered.length; i++) {
+                if(!ordered[i].andInto(bucketIndex, scratch, depth)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Or extends Operands {
+        Or(List<BitsExpression> operands) { super(operands); }
+
+        int maxIndex() {
+            int maxIndex = 0;
+            for(final BitsExpression operand : operands) maxIndex = Math.max(maxIndex, operand.maxIndex());
+            return maxIndex;
+        }
+        long estimatedCardinality() {
+            long cardinality = 0;
+            for(final BitsExpression operand : operands) cardinality += operand.estimatedCardinality();
+            return cardinality;
+        }
+        boolean evaluate(int bucketIndex, long[][] scratch, int depth) {
+            boolean isSet = false;
+            for(final BitsExpression operand : operands) {
+                if(isSet) operand.orInto(bucketIndex, scratch, depth);
+                else isSet = operand.evaluate(bucketIndex, scratch, depth);
+            }
+            return isSet;
+        }
+    }
+
+    private static final class Not extends BitsExpression {
+        private final BitsExpression expression;
+        private final int maxIndex;
+        Not(BitsExpression expression, int maxIndex) { this.expression = expression; this.maxIndex = maxIndex; }
+
+        int maxIndex() { return maxIndex; }
+        int scratchCount() { return expression.scratchCount(); }
+        long estimatedCardinality() { return Math.max(0, maxIndex + 1L - expression.estimatedCardinality()); }
+        boolean evaluate(int bucketIndex, long[][] scratch, int depth) {
+            final int firstIndex = bucketIndex * BITS_COUNT;
+            if(firstIndex > maxIndex) return false;
+            final long[] words = scratch[depth];
+            if(expression.evaluate(bucketIndex, scratch, depth)) {
+                for(int i=0; i<LONG_COUNT; i++) words[i] = ~words[i];
+            } else {
+                for(int i=0; i<LONG_COUNT; i++) words[i] = -1L;
+            }
+            clearAboveMaxIndex(words, firstIndex);
+            return BitmapKernels.isAnySet(words);
+        }
+        /** And-not: the complement is never created */
+        boolean andInto(int bucketIndex, long[][] scratch, int depth) {
+            final int firstIndex = bucketIndex * BITS_COUNT;
+            if(firstIndex > maxIndex) return false;
+            final long[] words = scratch[depth];
+            if(expression.evaluate(bucketIndex, scratch, depth + 1)) BitmapKernels.andNotInto(words, scratch[depth + 1]);
+            clearAboveMaxIndex(words, firstIndex);
+            return BitmapKernels.isAnySet(words);
+        }
+        private void clearAboveMaxIndex(long[] words, int firstIndex) {
+            if(maxIndex - firstIndex < BITS_COUNT - 1) {
+                BitmapContainer.clearRange(words, maxIndex - firstIndex + 1, BITS_COUNT - 1);
+            }
+        }
+    }
+}
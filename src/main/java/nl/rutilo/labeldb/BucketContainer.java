@@ -0,0 +1,85 @@
+package nl.rutilo.labeldb;
+
+/** Holds the bits of a single bucket (Bits.BUCKET_BITS_COUNT bits) in the form
+  * that best fits the density of the bits (roaring style):<pre>
+  *
+  * - ArrayContainer  : sorted array of the set bit indices (sparse buckets)
+  * - BitmapContainer : a long per 64 bits (dense, scattered buckets)
+  * - RunContainer    : sorted array of start/length pairs (clumped buckets)
+  * </pre>
+  *
+  * Setting or clearing a single bit happens in place when possible. Because the
+  * container may need to change form to do that, add() and remove() return the
+  * container to use from then on. Operations between containers (and, or, andNot)
+  * leave both containers untouched, return a new container and are specialized
+  * per pair of container types.
+  */
+abstract class BucketContainer {
+    static final int BITS_COUNT = Bits.BUCKET_BITS_COUNT;
+    static final int LONG_COUNT = Bits.BUCKET_LONG_COUNT;
+    /** Above this number of values an array takes more memory than a bitmap */
+    static final int MAX_ARRAY_SIZE = Bits.BUCKET_BYTE_SIZE / Short.BYTES;
+    /** Above this number of runs a run container takes more memory than a bitmap */
+    static final int MAX_RUN_COUNT = Bits.BUCKET_BYTE_SIZE / (2 * Short.BYTES);
+
+    public abstract int cardinality();
+    public abstract boolean contains(int bitIndex);
+    public abstract BucketContainer add(int bitIndex);
+    public abstract BucketContainer remove(int bitIndex);
+    /** Highest set bit index, or -1 when empty */
+    public abstract int last();
+    /** Index of the first set bit at or after fromBitIndex, or -1 if there is none */
+    public abstract int nextSetBit(int fromBitIndex);
+    /** Index of the last set bit at or before fromBitIndex, or -1 if there is none */
+    public abstract int previousSetBit(int fromBitIndex);
+    /** Number of set bits before given bitIndex */
+    public abstract int rank(int bitIndex);
+    /** Index of the set bit with given rank (the first set bit has rank 0). The rank should be below the cardinality */
+    public abstract int select(int rank);
+    /** True if any bit in the range of fromBitIndex..uptoBitIndex (inclusive) is set */
+    public abstract boolean intersects(int fromBitIndex, int uptoBitIndex);
+
+    public abstract BucketContainer not();
+    public abstract BucketContainer and(BucketContainer other);
+    public abstract BucketContainer or(BucketContainer other);
+    public abstract BucketContainer andNot(BucketContainer other);
+    public abstract int andCardinality(BucketContainer other);
+
+    /** Bitwise ands the given bitmap words with the bits of this container. Returns true if any bit remains set */
+    public abstract boolean andInto(long[] words);
+    /** Bitwise ors the given bitmap words with the bits of this container */
+    public abstract void orInto(long[] words);
+    /** Overwrites the given bitmap words with the bits of this container */
+    public void copyInto(long[] words) {
+        for(int i=0; i<LONG_COUNT; i++) words[i] = 0;
+        orInto(words);
+    }
+
+    public abstract BucketContainer copy();
+    public abstract int copyIndicesIn(int[] array, int arrayOffset, int idOffset);
+    public abstract long[] toLongs();
+    /** Number of sequences of set bits */
+    public abstract int runCount();
+
+    abstract ArrayContainer  toArrayContainer();
+    abstract BitmapContainer toBitmapContainer();
+    abstract RunContainer    toRunContainer();
+
+    public boolean isEmpty() { return cardinality() == 0; }
+    public boolean isFull()  { return cardinality() == BITS_COUNT; }
+
+    /** Returns the form of this container that takes the least memory (which may be this) */
+    public BucketContainer optimize() {
+        final int arrayByteSize = cardinality() * Short.BYTES;
+        final int runsByteSize  = runCount() * 2 * Short.BYTES;
+        if(runsByteSize < arrayByteSize && runsByteSize < Bits.BUCKET_BYTE_SIZE) return toRunContainer();
+        if(arrayByteSize <= Bits.BUCKET_BYTE_SIZE) return toArrayContainer();
+        return toBitmapContainer();
+    }
+
+    /** Array or bitmap container, whichever is smallest, holding the given bits */
+    static BucketContainer fromLongs(long[] longs) {
+        final BitmapContainer bitmap = BitmapContainer.of(longs);
+        return bitmap.cardinality() <= MAX_ARRAY_SIZE ? bitmap.toArrayContainer() : bitmap;
+    }
+}
@@ -0,0 +1,47 @@
+package nl.rutilo.labeldb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Encoding of the serialized buckets of a collection, applied when the collection is
+  * stored and undone when it is loaded. The id of the codec is stored with the data so
+  * the codec can be found when reading: codecs other than the built-in ones should be
+  * registered before a LabelDB that uses them is opened.<p>
+  *
+  * Only data stored without encoding (NONE) can be memory mapped without being copied.
+  */
+public interface CollectionCodec {
+    /** Stores the data as it is */
+    CollectionCodec NONE = new CollectionCodec() {
+        public byte getId() { return 0; }
+        public byte[] encode(byte[] data) { return data; }
+        public byte[] decode(byte[] data) { return data; }
+    };
+    /** Byte oriented LZ compression, fast and without dependencies */
+    CollectionCodec LZ = new LzCodec();
+
+    /** Identifies the codec in stored data, so should never change */
+    byte getId();
+    byte[] encode(byte[] data);
+    /** Should throw an IllegalStateException when the data cannot be decoded */
+    byte[] decode(byte[] data);
+
+    static void register(CollectionCodec codec) { Registry.register(codec); }
+    static CollectionCodec of(byte id) { return Registry.get(id); }
+
+    final class Registry {
+        private static final Map<Byte, CollectionCodec> codecs = new HashMap<>();
+        static { register(NONE); register(LZ); }
+
+        private Registry() {}
+        private static synchronized void register(CollectionCodec codec) {
+            final CollectionCodec existing = codecs.putIfAbsent(codec.getId(), codec);
+            if(existing != null && existing != codec) throw new IllegalArgumentException("Codec id " + codec.getId() + " is already in use");
+        }
+        private static synchronized CollectionCodec get(byte id) {
+            final CollectionCodec codec = codecs.get(id);
+            if(codec == null) throw new IllegalStateException("Unknown codec id " + id);
+            return codec;
+        }
+    }
+}
@@ -1,100 +1,290 @@
 package nl.rutilo.labeldb;
 
 import nl.rutilo.labeldb.query.QueryMatcher;
+import nl.rutilo.labeldb.query.QueryMatcher.MatchCursor;
 import nl.rutilo.labeldb.query.QueryMatcher.MatchResults;
+import nl.rutilo.labeldb.util.FileBatch;
 import nl.rutilo.labeldb.util.FunctionalReadWriteLock;
 import nl.rutilo.labeldb.util.Utils;
 
 import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
+import static nl.rutilo.labeldb.util.Utils.join;
 import static nl.rutilo.labeldb.util.Utils.waitOn;
 
-/** Thread safe persistent label index with search */
+/** Thread safe persistent label index with search.<p>
+  *
+  * Searches run on a snapshot of the data so they never wait for a write to disk.
+  * Alterations are done under a lock on the live data after which the snapshot is
+  * marked outdated. The first search after that publishes a new snapshot, which
+  * is cheap because the data is shared copy-on-write. Writing to disk happens
+  * from a snapshot as well, so outside the lock.
+  */
 public class LabelDB implements AutoCloseable {
     private static final int    DEFAULT_WRITE_DEBOUNCE_TIME_MS = 2 * 1000;
     private static final String WRITE_THREAD_NAME = "LabelDBWriter";
+    private static final String WARM_UP_THREAD_NAME = "LabelDBWarmUp";
+    private static final String SCRUB_THREAD_NAME = "LabelDBScrub";
+    private static final Logger LOG = Logger.getLogger(LabelDB.class.getName());
     private static final int    WRITE_THREAD_PRIORITY = Thread.NORM_PRIORITY;
     private static final String LABELS_DIR_NAME = "labels";
     private static final String DATES_NAME = "dates";
 
     private final Map<String, Bits> labelBits = new HashMap<>();
+    // Labels that are not loaded yet (when lazy loading). Snapshots refer to these
+    // as well and whichever needs the bits first loads them.
+    private final Map<String, LazyLabel> unloadedLabels = new HashMap<>();
     private final Longs dates;
     private final File labelsDir;
+    private final Bits.Options bitsOptions;
+    private final BitmapArena arena;
+    private final PackFile pack; // null when each label is stored in its own directory
+    private WriteAheadLog wal;   // set after replaying, null when alterations are not logged
+    private final ForkJoinPool storePool; // null when labels are stored by the write thread only
+    private final Set<String> corruptLabels = ConcurrentHashMap.newKeySet();
 
     private final FunctionalReadWriteLock lock = new FunctionalReadWriteLock();
+    private final Object storeLock = new Object();
     private final Set<String> alteredLabels = new HashSet<>();
     private final boolean[] datesChanged = { false };
+    private final Set<String> labelsChangedSinceSnapshot = new HashSet<>();
+    private final boolean[] datesChangedSinceSnapshot = { false };
+    private volatile Snapshot snapshot;
+    private volatile boolean snapshotOutdated = false;
     private final Thread writeThread;
 
     private int writeDebounceTime = DEFAULT_WRITE_DEBOUNCE_TIME_MS;
     private boolean autoCommit = true;
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
     private long lastWriteTime = 0;
 
 
-    public LabelDB(File dir) {
+    /** Options for how a LabelDB holds its data, given at construction */
+    public static class Options {
+        private boolean offHeap = false;
+        private boolean mapFiles = false;
+        private boolean mapDates = false;
+        private boolean dateIndex = false;
+        private boolean lazyLoading = false;
+        private boolean packFile = false;
+        private boolean writeAheadLog = false;
+        private CollectionCodec codec = CollectionCodec.NONE;
+        private boolean warmUp = false;
+        private int loadThreads = Runtime.getRuntime().availableProcessors();
+        private int storeThreads = Runtime.getRuntime().availableProcessors();
+
+        /** Holds the dense parts of the labels outside the java heap, so a large database
+          * can run with a small heap and short gc pauses.
+          */
+        public Options setOffHeap(boolean set) { offHeap = set; return this; }
+        /** Memory maps the label files on open instead of reading them, so the data is
+          * only read from disk when used and the page cache is shared between processes.
+          * The checksums of the mapped files are verified by a background thread instead
+          * of on open, see getCorruptLabels().<p>
+          *
+          * Label files are replaced on store while they may still be mapped by a snapshot,
+          * which only POSIX systems allow. So this throws UnsupportedOperationException on Windows.
+          */
+        public Options setMapFiles(boolean set) {
+            if(set && !Utils.canReplaceMappedFiles()) throw new UnsupportedOperationException("Mapped files are not supported on this platform");
+            mapFiles = set;
+            return this;
+        }
+        /** Memory maps the dates file read-write, so the dates take no heap space and a
+          * store only has to flush the altered pages. Searches may see dates that were
+          * altered after they started, as the dates are not copied for a snapshot.
+          */
+        public Options setMapDates(boolean set) { mapDates = set; return this; }
+        /** Keeps a sorted index on the dates, so searching for a date (range) only visits
+          * the matching records instead of all of them, at about 12 bytes per record.
+          */
+        public Options setDateIndex(boolean set) { dateIndex = set; return this; }
+        /** Only registers the labels on open and loads the bits of a label when it is
+          * first used, so opening a database with many labels takes little time. The
+          * result counts per label of a find only include the labels that are loaded
+          * (or warmed up) and the labels the query refers to.
+          */
+        public Options setLazyLoading(boolean set) { lazyLoading = set; return this; }
+        /** When lazy loading, loads all labels in a background thread after opening */
+        public Options setWarmUp(boolean set) { warmUp = set; return this; }
+        /** Number of threads that load the labels on open (default: number of processors) */
+        public Options setLoadThreads(int count) { loadThreads = Math.max(1, count); return this; }
+        /** Number of threads that store the altered labels (default: number of processors) */
+        public Options setStoreThreads(int count) { storeThreads = Math.max(1, count); return this; }
+        /** Stores all labels in a single pack file instead of in a directory of files per
+          * label, which keeps the number of files and syscalls low for many small labels.
+          * Labels that are still stored in a directory are moved to the pack when stored.
+          */
+        public Options setPackFile(boolean set) { packFile = set; return this; }
+        /** Logs every alteration before it returns, so no alterations are lost on a crash
+          * (instead of the alterations of the last few seconds) while the labels are still
+          * stored in the background. Alterations from many threads share their disk syncs.
+          */
+        public Options setWriteAheadLog(boolean set) { writeAheadLog = set; return this; }
+        /** Encodes the stored labels with given codec, for instance CollectionCodec.LZ to
+          * compress them (default: NONE). Files of either codec can be read, so the codec
+          * can be changed for an existing database. Encoded files are not memory mapped.
+          */
+        public Options setCodec(CollectionCodec codec) { this.codec = codec; return this; }
+    }
+
+    public LabelDB(File dir) { this(dir, new Options()); }
+    public LabelDB(File dir, Options options) {
         this.labelsDir = new File(dir, LABELS_DIR_NAME);
+        this.pack = options.packFile ? new PackFile(dir) : null;
+        this.arena = options.offHeap ? new BitmapArena() : null;
+        this.bitsOptions = new Bits.Options()
+            .setArena(arena)
+            .setMapFiles(options.mapFiles)
+            .setPackFile(pack)
+            .setCodec(options.codec);
 
-        dates = new Longs(DATES_NAME, dir);
+        // Labels are loaded by a pool while this thread loads the dates
+        final ForkJoinPool loadPool = options.lazyLoading || options.loadThreads == 1 ? null : new ForkJoinPool(options.loadThreads);
+        final Map<String, ForkJoinTask<Bits>> loadingLabels = new HashMap<>();
+        final Set<String> labels = new HashSet<>();
         final File[] labelDirs = labelsDir.listFiles();
-        if(labelDirs != null) for(final File labelDir : labelDirs) {
-            final String label = Utils.filenameToName(labelDir.getName());
-            labelBits.put(label, new Bits(label, labelsDir));
+        if(labelDirs != null) for(final File labelDir : labelDirs) labels.add(Utils.filenameToName(labelDir.getName()));
+        if(pack != null) labels.addAll(pack.getLabels());
+        for(final String label : labels) {
+            if(options.lazyLoading) unloadedLabels.put(label, new LazyLabel(label)); else
+            if(loadPool != null) loadingLabels.put(label, loadPool.submit(() -> loadLabel(label)));
+            else labelBits.put(label, loadLabel(label));
         }
+        dates = new Longs(DATES_NAME, dir, options.mapDates).setIndexed(options.dateIndex);
+        loadingLabels.forEach((label, loading) -> labelBits.put(label, loading.join()));
+        if(loadPool != null) loadPool.shutdown();
 
+        final Map<String, Bits> labelsSnapshot = new HashMap<>();
+        labelBits.forEach((label, bits) -> labelsSnapshot.put(label, bits.snapshot()));
+        snapshot = new Snapshot(new Labels(labelsSnapshot, new HashMap<>(unloadedLabels)), dates.snapshot());
+
+        storePool = options.storeThreads == 1 ? null : new ForkJoinPool(options.storeThreads);
         writeThread = new Thread(this::writeWhenChanged);
         writeThread.setName(WRITE_THREAD_NAME);
         writeThread.setPriority(WRITE_THREAD_PRIORITY);
         writeThread.start();
+
+        if(options.writeAheadLog) {
+            final WriteAheadLog log = new WriteAheadLog(dir);
+            log.replay(this); // before wal is set so replayed alterations are not logged again
+            wal = log;
+        }
+
+        if(!unloadedLabels.isEmpty() && options.warmUp) {
+            final Thread warmUpThread = new Thread(this::warmUp);
+            warmUpThread.setName(WARM_UP_THREAD_NAME);
+            warmUpThread.setPriority(Thread.MIN_PRIORITY);
+            warmUpThread.setDaemon(true);
+            warmUpThread.start();
+        }
+        if(options.mapFiles) {
+            final Thread scrubThread = new Thread(this::scrub);
+            scrubThread.setName(SCRUB_THREAD_NAME);
+            scrubThread.setPriority(Thread.MIN_PRIORITY);
+            scrubThread.setDaemon(true);
+            scrubThread.start();
+        }
     }
 
     public LabelDB clear(int... indices) {
         lock.write(() -> {
+            if(wal != null) wal.addClear(indices);
+            unloadedLabels.replaceAll((label, lazyLabel) -> lazyLabel.withCleared(indices)); // cleared when loaded
             labelBits.values().forEach(bits -> bits.unset(indices));
             dates.unset(indices);
+            alteredLabels.addAll(labelBits.keySet());
+            alteredLabels.addAll(unloadedLabels.keySet());
+            labelsChangedSinceSnapshot.addAll(labelBits.keySet());
+            labelsChangedSinceSnapshot.addAll(unloadedLabels.keySet());
+            datesChanged[0] = true;
+            datesChangedSinceSnapshot[0] = true;
+            dataWasAltered();
         });
-        return this;
+        return synced();
     }
+    /** Labels of which the memory mapped data did not match its checksum, so the file was
+      * altered or damaged after it was written. Found by a background thread after open.
+      */
+    public Set<String> getCorruptLabels() {
+        return Collections.unmodifiableSet(corruptLabels);
+    }
+    /** True when the bits of given label are loaded */
+    boolean isLoaded(String label) {
+        return getSnapshot().labels.loadedLabels().containsKey(label);
+    }
+    /** Arena holding the bitmaps off-heap, or null when not offHeap */
+    BitmapArena getArena() { return arena; }
     public int firstUnusedIndex() {
-        return lock.read(dates::getFirstUnsetIndex);
+        return getSnapshot().dates.getFirstUnsetIndex();
     }
     public LabelDB set(int index, long datetime, String... labels) {
-        for(final String label : labels) set(label, index);
-        set(index, datetime);
-        dataWasAltered();
-        return this;
+        lock.write(() -> {
+            for(final String label : labels) setLabel(label, index);
+            setDate(index, datetime);
+        });
+        return synced();
     }
     public LabelDB set(int index, long datetime) {
+        lock.write(() -> setDate(index, datetime));
+        return synced();
+    }
+    public LabelDB set(String label, int... indices) {
+        lock.write(() -> setLabel(label, indices));
+        return synced();
+    }
+    public LabelDB remove(String label, int... indices) {
         lock.write(() -> {
-            dates.set(index, datetime);
-            datesChanged[0] = true;
+            if(wal != null) wal.addRemove(label, indices);
+            final Bits bits = getLabelBits(label);
+            if(bits == null) return;
+            bits.unset(indices);
+            alteredLabels.add(label);
+            labelsChangedSinceSnapshot.add(label);
             dataWasAltered();
         });
-        return this;
+        return synced();
     }
-    public LabelDB set(String label, int... indices) {
+
+    /** Labels indices fromIndex..uptoIndex (inclusive), for instance a batch of imported records */
+    public LabelDB setRange(String label, int fromIndex, int uptoIndex) {
         lock.write(() -> {
+            if(wal != null) wal.addSetRange(label, fromIndex, uptoIndex);
             makeSureLabelExists(label);
-            final Bits bits = labelBits.get(label);
-            bits.set(indices);
+            getLabelBits(label).setRange(fromIndex, uptoIndex);
             alteredLabels.add(label);
+            labelsChangedSinceSnapshot.add(label);
             dataWasAltered();
         });
-        return this;
+        return synced();
     }
-    public LabelDB remove(String label, int... indices) {
+    public LabelDB removeRange(String label, int fromIndex, int uptoIndex) {
         lock.write(() -> {
-            final Bits bits = labelBits.get(label);
+            if(wal != null) wal.addRemoveRange(label, fromIndex, uptoIndex);
+            final Bits bits = getLabelBits(label);
             if(bits == null) return;
-            bits.unset(indices);
+            bits.clearRange(fromIndex, uptoIndex);
             alteredLabels.add(label);
+            labelsChangedSinceSnapshot.add(label);
             dataWasAltered();
         });
-        return this;
+        return synced();
     }
 
     /** Search through the whole database for indices that fall within the
@@ -108,7 +298,23 @@ public class LabelDB implements AutoCloseable {
       * - a b <2019.6
       */
     public MatchResults find(String query) {
-        return lock.read(() -> new QueryMatcher(labelBits, dates).getMatchResultsFor(query));
+        final Snapshot data = getSnapshot();
+        return new QueryMatcher(data.labels, data.labels.loadedLabels(), data.dates).getMatchResultsFor(query);
+    }
+    /** Same as find() but only holds the indices of at most limit matches, starting
+      * with the match at offset (0 based). Used for paging: the matches before the
+      * offset are skipped without walking them. The counts are over all matches.
+      */
+    public MatchResults find(String query, int offset, int limit) {
+        final Snapshot data = getSnapshot();
+        return new QueryMatcher(data.labels, data.labels.loadedLabels(), data.dates).getMatchResultsFor(query, offset, limit);
+    }
+    /** Same as find() but the matching indices are not copied into an array. Instead
+      * the result has a cursor to walk them, which is cheaper when only some are needed.
+      */
+    public MatchCursor findCursor(String query) {
+        final Snapshot data = getSnapshot();
+        return new QueryMatcher(data.labels, data.labels.loadedLabels(), data.dates).getMatchCursorFor(query);
     }
 
 
@@ -117,6 +323,10 @@ public class LabelDB implements AutoCloseable {
         commit();
         stopped = true;
         awakenWriteThread();
+        join(writeThread); // a write that is still running needs the pack and pool
+        if(pack != null) pack.close();
+        if(storePool != null) storePool.shutdown();
+        if(wal != null) wal.close(); // last, after the final write() did its checkpoint and deleteBefore
     }
     public LabelDB setAutoCommit(boolean set) {
         autoCommit = set;
@@ -135,21 +345,228 @@ public class LabelDB implements AutoCloseable {
       * a write can be forced immediately. Only actually writes when data was altered.
       */
     public LabelDB commit() {
-        synchronized(writeThread) {
-            write();
-        }
+        write();
         return this;
     }
 
     ///
 
+    /** Immutable view on the data at some point in time */
+    private static class Snapshot {
+        final Labels labels;
+        final Longs dates;
+
+        Snapshot(Labels labels, Longs dates) {
+            this.labels = labels;
+            this.dates = dates;
+        }
+    }
+
+    /** Unmodifiable map of the labels of a snapshot, where labels that were
+      * not loaded yet are loaded when first requested.<p>
+      *
+      * A new snapshot only holds the labels that changed since the previous one, which
+      * it refers to for the others, so publishing a snapshot does not copy all labels.
+      * Levels are merged with the previous one when that is not larger (like a binary
+      * counter), so there are few levels and each label is copied a few times at most.
+      * A level holds a label either loaded or unloaded (when it was cleared while not
+      * loaded). A label that is loaded later and not altered has the same bits in the
+      * level that holds it unloaded.
+      */
+    private static class Labels extends AbstractMap<String, Bits> {
+        final Map<String, Bits> loaded; // labels that changed since previous
+        final Map<String, LazyLabel> unloaded;
+        final Labels previous;
+
+        Labels(Map<String, Bits> loaded, Map<String, LazyLabel> unloaded) { this(loaded, unloaded, null); }
+        Labels(Map<String, Bits> changedLoaded, Map<String, LazyLabel> changedUnloaded, Labels previous) {
+            Map<String, Bits> loaded = changedLoaded;
+            Map<String, LazyLabel> unloaded = changedUnloaded;
+            while(previous != null && previous.levelSize() <= loaded.size() + unloaded.size()) {
+                final Map<String, Bits> mergedLoaded = new HashMap<>(previous.loaded);
+                final Map<String, LazyLabel> mergedUnloaded = new HashMap<>(previous.unloaded);
+                mergedLoaded.keySet().removeAll(unloaded.keySet());
+                mergedUnloaded.keySet().removeAll(loaded.keySet());
+                mergedLoaded.putAll(loaded);
+                mergedUnloaded.putAll(unloaded);
+                loaded = mergedLoaded;
+                unloaded = mergedUnloaded;
+                previous = previous.previous;
+            }
+            this.loaded = loaded;
+            this.unloaded = unloaded;
+            this.previous = previous;
+        }
+        public Bits get(Object label) {
+            for(Labels labels = this; labels != null; labels = labels.previous) {
+                final Bits bits = labels.loaded.get(label);
+                if(bits != null) return bits;
+                final LazyLabel lazyLabel = labels.unloaded.get(label);
+                if(lazyLabel != null) return lazyLabel.get();
+            }
+            return null;
+        }
+        public boolean containsKey(Object label) {
+            for(Labels labels = this; labels != null; labels = labels.previous) {
+                if(labels.loaded.containsKey(label) || labels.unloaded.containsKey(label)) return true;
+            }
+            return false;
+        }
+        public int size() { return names().size(); }
+        /** Number of labels in this level */
+        private int levelSize() { return loaded.size() + unloaded.size(); }
+        /** Names of all labels, without loading them */
+        Set<String> names() {
+            final Set<String> names = new HashSet<>();
+            for(Labels labels = this; labels != null; labels = labels.previous) {
+                names.addAll(labels.loaded.keySet());
+                names.addAll(labels.unloaded.keySet());
+            }
+            return names;
+        }
+        /** The labels that are loaded, without loading the others */
+        Map<String, Bits> loadedLabels() {
+            final Map<String, Bits> all = new HashMap<>(); // null for a label that is not loaded
+            for(Labels labels = this; labels != null; labels = labels.previous) {
+                labels.loaded.forEach((label, bits) -> { if(!all.containsKey(label)) all.put(label, bits); });
+                labels.unloaded.forEach((label, lazyLabel) -> { if(!all.containsKey(label)) all.put(label, lazyLabel.getIfLoaded()); });
+            }
+            all.values().removeIf(Objects::isNull);
+            return all;
+        }
+        /** Loads all labels that were not loaded yet */
+        public Set<Entry<String, Bits>> entrySet() {
+            if(unloaded.isEmpty() && previous == null) return Collections.unmodifiableMap(loaded).entrySet();
+            final Map<String, Bits> all = new HashMap<>();
+            for(final String label : names()) all.put(label, get(label));
+            return Collections.unmodifiableMap(all).entrySet();
+        }
+    }
+
+    /** Bits of a label that are loaded when first requested. The loaded bits are not
+      * altered, the live data holds a copy of them (see getLabelBits()).<p>
+      *
+      * Indices that are cleared while a label is not loaded are not cleared in this lazy
+      * label (snapshots may hold it) but in the one withCleared() returns, when it is loaded.
+      */
+    private class LazyLabel {
+        private final String label;
+        private final LazyLabel uncleared; // of which indices are cleared, or null to load the label
+        private final int[] clearedIndices;
+        private Bits bits;
+
+        LazyLabel(String label) { this(label, null, new int[0]); }
+        private LazyLabel(String label, LazyLabel uncleared, int[] clearedIndices) {
+            this.label = label;
+            this.uncleared = uncleared;
+            this.clearedIndices = clearedIndices;
+        }
+        synchronized Bits get() {
+            if(bits == null) bits = uncleared == null ? loadLabel(label) : uncleared.get().snapshot().unset(clearedIndices);
+            return bits;
+        }
+        /** The bits when loaded, or null */
+        synchronized Bits getIfLoaded() { return bits; }
+        /** Lazy label of which given indices are cleared as well */
+        synchronized LazyLabel withCleared(int[] indices) {
+            if(bits != null || uncleared == null) return new LazyLabel(label, this, indices);
+            final int[] allIndices = Arrays.copyOf(clearedIndices, clearedIndices.length + indices.length);
+            System.arraycopy(indices, 0, allIndices, clearedIndices.length, indices.length);
+            return new LazyLabel(label, uncleared, allIndices);
+        }
+    }
+
+    private Snapshot getSnapshot() {
+        if(!snapshotOutdated) return snapshot;
+        return lock.write(() -> {
+            if(snapshotOutdated) {
+                final Map<String, Bits> changedLabels = new HashMap<>();
+                final Map<String, LazyLabel> changedUnloadedLabels = new HashMap<>(); // that were cleared
+                labelsChangedSinceSnapshot.forEach(label -> {
+                    final Bits bits = labelBits.get(label);
+                    if(bits != null) changedLabels.put(label, bits.snapshot()); else changedUnloadedLabels.put(label, unloadedLabels.get(label));
+                });
+                final Longs datesSnapshot = datesChangedSinceSnapshot[0] ? dates.snapshot() : snapshot.dates;
+                final Labels labels = labelsChangedSinceSnapshot.isEmpty() ? snapshot.labels : new Labels(changedLabels, changedUnloadedLabels, snapshot.labels);
+                snapshot = new Snapshot(labels, datesSnapshot);
+                labelsChangedSinceSnapshot.clear();
+                datesChangedSinceSnapshot[0] = false;
+                snapshotOutdated = false;
+            }
+            return snapshot;
+        });
+    }
+
+    /** Should be called under the write lock */
+    private void setLabel(String label, int... indices) {
+        if(wal != null) wal.addSet(label, indices);
+        makeSureLabelExists(label);
+        getLabelBits(label).set(indices);
+        alteredLabels.add(label);
+        labelsChangedSinceSnapshot.add(label);
+        dataWasAltered();
+    }
+    /** Should be called under the write lock */
+    private void setDate(int index, long datetime) {
+        if(wal != null) wal.addSetDate(index, datetime);
+        dates.set(index, datetime);
+        datesChanged[0] = true;
+        datesChangedSinceSnapshot[0] = true;
+        dataWasAltered();
+    }
+    /** Waits (outside the lock) until the logged alterations are on disk, when logging */
+    private LabelDB synced() {
+        if(wal != null) wal.sync();
+        return this;
+    }
+
     private void makeSureLabelExists(String label) {
-        if(!labelBits.containsKey(label)) {
-            labelBits.put(label, new Bits(label, labelsDir));
+        if(getLabelBits(label) == null) {
+            labelBits.put(label, loadLabel(label));
         }
     }
+    /** The live bits of given label (or null), which are loaded first when not loaded
+      * yet. Should be called under the write lock.
+      */
+    private Bits getLabelBits(String label) {
+        final LazyLabel lazyLabel = unloadedLabels.remove(label);
+        if(lazyLabel != null) labelBits.put(label, lazyLabel.get().snapshot()); // copy-on-write, snapshots may hold the loaded bits
+        return labelBits.get(label);
+    }
+    private Bits loadLabel(String label) {
+        return new Bits(label, labelsDir, bitsOptions);
+    }
+    /** Loads the labels that are not loaded yet, so the first searches do not have to */
+    private void warmUp() {
+        final List<LazyLabel> lazyLabels = lock.read(() -> new ArrayList<>(unloadedLabels.values()));
+        for(final LazyLabel lazyLabel : lazyLabels) {
+            if(stopped) break;
+            lazyLabel.get();
+        }
+    }
+    /** Verifies the checksums of the memory mapped labels, a label at a time */
+    private void scrub() {
+        final Labels labels = getSnapshot().labels;
+        for(final String name : labels.names()) {
+            if(stopped) break;
+            final Bits bits = labels.get(name);
+            if(bits != null && !bits.verify()) corruptLabels.add(name);
+        }
+    }
+    /** Marks the labels and dates of which storing failed as altered again, so they are stored by the next write */
+    private void markUnstored(Map<String, int[]> dirtyIndicesPerLabel, Longs unstoredDates) {
+        lock.write(() -> {
+            dirtyIndicesPerLabel.forEach((name, dirtyIndices) -> getLabelBits(name).markUnstored(dirtyIndices));
+            alteredLabels.addAll(dirtyIndicesPerLabel.keySet());
+            if(unstoredDates != null) {
+                dates.markUnstored(unstoredDates);
+                datesChanged[0] = true;
+            }
+        });
+    }
     private void dataWasAltered() {
         if(stopped) throw new IllegalStateException("Cannot alter data when stopped");
+        snapshotOutdated = true;
         awakenWriteThread();
     }
     private void awakenWriteThread() {
@@ -161,27 +578,106 @@ public class LabelDB implements AutoCloseable {
         boolean needsWrite = false;
         while(!stopped) {
             synchronized(writeThread) {
+                if(stopped) break; // close() may have notified before this wait
                 waitOn(writeThread, writeDebounceTime);
 
-                if(autoCommit) {
-                    final long now = System.currentTimeMillis();
-                    final long writeAgo = now - lastWriteTime;
-                    needsWrite = (!alteredLabels.isEmpty() || datesChanged[0])
-                             && writeAgo > writeDebounceTime;
-                }
+                final long now = System.currentTimeMillis();
+                final long writeAgo = now - lastWriteTime;
+                needsWrite = autoCommit
+                         && (!alteredLabels.isEmpty() || datesChanged[0])
+                         && writeAgo > writeDebounceTime;
             }
             if(needsWrite) { // outside sync
-                write();
+                try {
+                    write();
+                } catch(final RuntimeException failure) { // the altered data is written again next time
+                    LOG.log(Level.WARNING, "Unable to write, will retry", failure);
+                }
             }
         }
     }
     private void write() {
-        lock.write(() -> {
-            if(datesChanged[0]) dates.store();
-            labelBits.forEach((name, bits) -> { if(alteredLabels.contains(name)) bits.store(); });
-            lastWriteTime = System.currentTimeMillis();
-            alteredLabels.clear();
-            datesChanged[0] = false;
-        });
+        synchronized(storeLock) { // prevents an older snapshot to be written after a newer one
+            final Map<String, Bits> labelsToStore = new HashMap<>();
+            final Map<String, int[]> dirtyIndices = new HashMap<>(); // to mark dirty again when storing fails
+            final Longs[] datesToStore = { null };
+            final int[] checkpoint = { -1 };
+            // Labels that were cleared while not loaded are loaded outside the lock
+            lock.read(() -> alteredLabels.stream().map(unloadedLabels::get).filter(Objects::nonNull).collect(Collectors.toList()))
+                .forEach(LazyLabel::get);
+            lock.write(() -> {
+                if(wal != null && (datesChanged[0] || !alteredLabels.isEmpty())) checkpoint[0] = wal.checkpoint();
+                if(datesChanged[0]) {
+                    datesToStore[0] = dates.snapshot();
+                    dates.clearDirty();
+                }
+                alteredLabels.forEach(name -> {
+                    final Bits bits = getLabelBits(name);
+                    labelsToStore.put(name, bits.snapshot());
+                    dirtyIndices.put(name, bits.getDirtyIndices());
+                    bits.clearDirty(); // the snapshot is stored instead
+                });
+                lastWriteTime = System.currentTimeMillis();
+                alteredLabels.clear();
+                datesChanged[0] = false;
+            });
+            try {
+                if(checkpoint[0] >= 0) wal.rotate(); // writes and syncs outside the lock
+            } catch(final RuntimeException failure) {
+                markUnstored(dirtyIndices, datesToStore[0]);
+                throw failure;
+            }
+            // Stored outside the lock: the snapshots share their data with the live data
+            // (copy-on-write) so they are not altered while stored. A failure of one label
+            // does not stop the others, of which only the failed ones are marked altered again.
+            final Map<String, int[]> unstoredLabels = new HashMap<>();
+            final List<RuntimeException> failures = new ArrayList<>();
+            final Map<String, ForkJoinTask<Bits>> storingLabels = new HashMap<>();
+            final FileBatch labelFiles = new FileBatch(); // when not in the pack
+            for(final Map.Entry<String, Bits> label : labelsToStore.entrySet()) {
+                if(storePool != null && labelsToStore.size() > 1) {
+                    storingLabels.put(label.getKey(), storePool.submit(() -> label.getValue().store(labelFiles)));
+                    continue;
+                }
+                try {
+                    label.getValue().store(labelFiles);
+                } catch(final RuntimeException failure) {
+                    failures.add(failure);
+                    unstoredLabels.put(label.getKey(), dirtyIndices.get(label.getKey()));
+                }
+            }
+            Longs unstoredDates = null;
+            try {
+                if(datesToStore[0] != null) datesToStore[0].store();
+            } catch(final RuntimeException failure) {
+                failures.add(failure);
+                unstoredDates = datesToStore[0];
+            }
+            storingLabels.forEach((name, storing) -> {
+                try {
+                    storing.join();
+                } catch(final RuntimeException failure) {
+                    failures.add(failure);
+                    unstoredLabels.put(name, dirtyIndices.get(name));
+                }
+            });
+            try {
+                if(pack != null) pack.sync(); // once for all stored labels
+                labelFiles.commit();
+            } catch(final RuntimeException failure) {
+                failures.add(failure);
+                unstoredLabels.putAll(dirtyIndices); // none of them is durable
+            }
+            if(!failures.isEmpty()) { // the log is not trimmed, as not all it logged is stored
+                markUnstored(unstoredLabels, unstoredDates);
+                final RuntimeException failure = failures.get(0);
+                failures.subList(1, failures.size()).forEach(failure::addSuppressed);
+                throw failure;
+            }
+            // The stored snapshots compacted the collections they share with the live labels
+            if(!labelsToStore.isEmpty()) lock.write(() -> labelsToStore.forEach((name, stored) -> labelBits.get(name).adoptCompacted(stored)));
+            if(pack != null) pack.compactIfWasteful();
+            if(checkpoint[0] >= 0) wal.deleteBefore(checkpoint[0]); // all it logged is stored now
+        }
     }
 }
@@ -1,161 +1,321 @@
 package nl.rutilo.labeldb;
 
-import nl.rutilo.labeldb.util.ByteArraySource;
 import nl.rutilo.labeldb.util.ByteArrayTarget;
 import nl.rutilo.labeldb.util.Utils;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Longs {
     public static final int SAVE_BLOCK_SIZE_KB = 4; // Minimal save block size.
-    public static final int DEFAULT_GROWTH_RATE = 1000;
     public static final long VALUE_UNUSED = Long.MIN_VALUE;
+    private static final int PAGE_SHIFT = 9;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT; // a page is a save block
+    private static final int MAP_CHUNK_SHIFT = 20; // 1M longs (8MB) per mapped chunk
+    private static final int MAP_CHUNK_LONGS = 1 << MAP_CHUNK_SHIFT;
     private final String name;
-    private long[] longs;
-    private int growthRate = DEFAULT_GROWTH_RATE;
+    // The values are held in pages that are allocated when a value in them is set, so growing
+    // never copies values. A null page holds only unused values. Pages are shared with
+    // snapshots and copied when altered (copy-on-write per page).
+    private long[][] pages = new long[0][];
+    private int pageCount = 0;
+    private boolean[] ownedPages = new boolean[0]; // page is not shared with a snapshot
+    private boolean[] dirtyPages = new boolean[0];
+    // When mapped, the values are held by the file that is mapped in chunks (instead of by
+    // pages) and are written in place, so store() only has to force the dirty chunks to disk.
+    // Snapshots share the chunks, so a snapshot sees later alterations as well.
+    private boolean isMapped;
+    private MappedByteBuffer[] mappedChunks = new MappedByteBuffer[0];
+    private LongBuffer[] mappedLongs = new LongBuffer[0];
+    private LongsIndex index; // null when not indexed
     private File file;
     private boolean isDirty;
-    private Bits dirtyLongs;
+    private boolean isShared; // pages array is shared with a snapshot: copy before altering
 
     public Longs() {
         this("");
     }
     public Longs(String name) {
-        this(name, DEFAULT_GROWTH_RATE);
+        this(name, 0);
     }
     public Longs(String name, int size) {
-        this(name, new long[size]);
-        for(int i=0; i<size; i++) longs[i] = VALUE_UNUSED;
+        this.name = name == null ? "" : name;
+        allocatePages((size + PAGE_SIZE - 1) >> PAGE_SHIFT);
+        for(int i=0; i<pageCount; i++) pages[i] = newPage();
     }
     public Longs(String name, long[] array) {
-        this.name = name == null ? "" : name;
-        longs = array;
-        isDirty = false;
-        dirtyLongs = new Bits();
+        this(name, array.length);
+        for(int i=0; i<array.length; i++) pages[i >> PAGE_SHIFT][i & (PAGE_SIZE - 1)] = array[i];
     }
-    public Longs(String name, File dir) {
-        this(name, new long[0]);
+    public Longs(String name, File dir) { this(name, dir, false); }
+    /** Longs stored in given dir. When mapFile is true the file is memory mapped instead of
+      * read, so the values do not take heap space.
+      */
+    public Longs(String name, File dir, boolean mapFile) {
+        this(name);
         file = new File(dir, this.name.isEmpty() ? "" : Utils.nameToFilename(this.name));
+        isMapped = mapFile;
         load();
     }
 
-    public Longs setGrowthRate(int gr) {
-        growthRate = gr <= 0 ? DEFAULT_GROWTH_RATE : gr;
+    /** Copy that shares the values until either one is altered (copy-on-write),
+      * including storage location and dirty state so it can be stored while
+      * this instance is being altered.
+      */
+    public Longs snapshot() {
+        final Longs copy = new Longs(name);
+        copy.pages = pages;
+        copy.pageCount = pageCount;
+        copy.ownedPages = new boolean[pages.length];
+        copy.dirtyPages = dirtyPages.clone();
+        copy.file = file;
+        copy.isDirty = isDirty;
+        copy.index = index == null ? null : index.copy();
+        copy.isMapped = isMapped;
+        copy.mappedChunks = mappedChunks;
+        copy.mappedLongs = mappedLongs;
+        copy.isShared = true;
+        isShared = true;
+        return copy;
+    }
+
+    /** Keeps an index on the values, so asBits() for a range does not scan all values but
+      * finds the matching values in the index. Takes about 12 bytes per value on the heap.
+      */
+    public Longs setIndexed(boolean set) {
+        index = set ? LongsIndex.of(this) : null;
         return this;
     }
+    public boolean isIndexed() { return index != null; }
 
     public Longs clear() {
-        longs = new long[0];
+        reset();
         isDirty = true;
-        dirtyLongs.clear();
         if(file != null) file.delete();
         return this;
     }
+    private void reset() {
+        pages = new long[0][];
+        pageCount = 0;
+        ownedPages = new boolean[0];
+        dirtyPages = new boolean[0];
+        mappedChunks = new MappedByteBuffer[0];
+        mappedLongs = new LongBuffer[0];
+        isShared = false;
+        if(index != null) index = LongsIndex.of(this);
+    }
 
     public long get(int index) {
-        if(index < 0 || index >= longs.length) return VALUE_UNUSED;
-        return longs[index];
+        if(index < 0 || index >= length()) return VALUE_UNUSED;
+        return value(index);
     }
     public Longs set(int index, long value) {
         makeSureIndexExists(index);
-        if(longs[index] != value) {
-            longs[index] = value;
-            dirtyLongs.set(index);
-            isDirty = true;
-        }
+        if(value(index) != value) setValue(index, value);
         return this;
     }
     public Longs unset(int... indices) {
         for(final int index : indices) {
-            if (index >= 0 && index < longs.length) longs[index] = VALUE_UNUSED;
+            if (index >= 0 && index < length() && value(index) != VALUE_UNUSED) setValue(index, VALUE_UNUSED);
         }
         return this;
     }
-    public boolean isSet(int index) { return index >= 0 && index < longs.length && longs[index] != VALUE_UNUSED; }
+    public boolean isSet(int index) { return index >= 0 && index < length() && value(index) != VALUE_UNUSED; }
     public int getFirstUnsetIndex() {
-        for(int index=0; index<longs.length; index++) {
-            if (longs[index] == VALUE_UNUSED) return index;
+        final int length = length();
+        for(int index=0; index<length; index++) {
+            if(!isMapped && pages[index >> PAGE_SHIFT] == null) return index;
+            if (value(index) == VALUE_UNUSED) return index;
         }
-        return longs.length;
+        return length;
     }
 
     public Bits asBits() { return asBits(Long.MIN_VALUE, Long.MAX_VALUE); }
     public Bits asBits(long minValue, long maxValue) {
-        final Bits bits = Bits.of("longs");
-        for(int index=0; index<longs.length; index++) {
-            final long value = longs[index];
-            if(value != VALUE_UNUSED && value >= minValue && value <= maxValue) bits.set(index);
+        if(index != null && (minValue != Long.MIN_VALUE || maxValue != Long.MAX_VALUE)) return index.find(this, minValue, maxValue);
+        final int length = length();
+        int[] found = new int[Math.min(length, PAGE_SIZE)];
+        int count = 0;
+        for(int index=0; index<length; index++) {
+            if(!isMapped && pages[index >> PAGE_SHIFT] == null) { index += PAGE_SIZE - 1; continue; }
+            final long value = value(index);
+            if(value != VALUE_UNUSED && value >= minValue && value <= maxValue) {
+                if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = index;
+            }
         }
-        return bits;
+        return Bits.of("longs").set(Arrays.copyOf(found, count)); // in bulk, instead of one set() per index
     }
 
     public boolean isDirty() {
         return isDirty;
     }
+    public Longs clearDirty() {
+        isDirty = false;
+        Arrays.fill(dirtyPages, false);
+        return this;
+    }
+    /** Marks the pages that given snapshot of this Longs was to store as dirty again, for when
+      * storing it failed
+      */
+    public Longs markUnstored(Longs snapshot) {
+        if(!snapshot.isDirty) return this;
+        isDirty = true;
+        for(int page = 0; page < Math.min(dirtyPages.length, snapshot.dirtyPages.length); page++) dirtyPages[page] |= snapshot.dirtyPages[page];
+        return this;
+    }
     public Longs store() {
         if(!isDirty) return this;
         if(name.isEmpty()) throw new IllegalStateException("Longs needs to have a name to store");
+        if(isMapped) {
+            for(int chunk = 0; chunk < mappedChunks.length; chunk++) {
+                if(isAnyPageDirty(chunk << (MAP_CHUNK_SHIFT - PAGE_SHIFT), (chunk + 1) << (MAP_CHUNK_SHIFT - PAGE_SHIFT))) mappedChunks[chunk].force();
+            }
+            return clearDirty();
+        }
+        // Pages past the end of the file are written as well, so the file has no gaps of zeros
+        for(int page = (int)(file.length() / Long.BYTES) >> PAGE_SHIFT; page < pageCount; page++) dirtyPages[page] = true;
         final int[][] indexRanges = getIndexRangesToStore();
         try(final RandomAccessFile raf = new RandomAccessFile(file, "rws")) {
-            if(file.length() > 0 && file.length() < longs.length * Long.BYTES) {
-                raf.setLength(longs.length * Long.BYTES);
-            }
             for(final int[] indexRange : indexRanges) {
                 final int startIndex = indexRange[0];
                 final int indexCount = indexRange[1];
                 final ByteArrayTarget bat = new ByteArrayTarget(indexCount * Long.BYTES);
-                for(int index=startIndex; index<startIndex + indexCount; index++) bat.add(longs[index]);
+                for(int index=startIndex; index<startIndex + indexCount; index++) bat.add(value(index));
 
-                raf.seek(startIndex * Long.BYTES);
+                raf.seek((long)startIndex * Long.BYTES);
                 raf.write(bat.toByteArray());
             }
         } catch(final IOException cause) {
             throw new RuntimeException("Unable to save longs", cause);
         }
-        isDirty = false;
-        dirtyLongs.clear();
-        return this;
+        return clearDirty();
     }
     public void load() {
-        final byte[] data = Utils.readFileToByteArray(file).orElse(new byte[0]);
-        longs = new long[data.length / Long.BYTES];
-        final ByteArraySource bas = new ByteArraySource(data);
-        for(int i=0; i<longs.length; i++) longs[i] = bas.getLong();
+        reset();
         isDirty = false;
-        dirtyLongs.clear();
+        final long fileLength = file.length();
+        if(isMapped) {
+            if(fileLength > 0) mapChunks((int)((fileLength / Long.BYTES + MAP_CHUNK_LONGS - 1) >> MAP_CHUNK_SHIFT));
+            if(index != null) index = LongsIndex.of(this);
+            return;
+        }
+        final LongBuffer data = ByteBuffer.wrap(Utils.readFileToByteArray(file).orElse(new byte[0])).asLongBuffer(); // big endian, like ByteArrayTarget writes
+        allocatePages((data.remaining() + PAGE_SIZE - 1) >> PAGE_SHIFT);
+        for(int page=0; page<pageCount; page++) {
+            pages[page] = newPage();
+            data.get(pages[page], 0, Math.min(PAGE_SIZE, data.remaining()));
+        }
+        if(index != null) index = LongsIndex.of(this);
     }
 
     protected int[][] getIndexRangesToStore() {
-        final int indexBlockSize = (SAVE_BLOCK_SIZE_KB * 1024) / Long.BYTES;
         final List<int[]> indexRanges = new ArrayList<>();
         int[] currentIndexRange = { 0, -1 }; // start, length
 
-        for(int startIndex = 0; startIndex < longs.length; startIndex += indexBlockSize) {
-            if(dirtyLongs.isAnySet(startIndex, startIndex + indexBlockSize - 1)) {
+        for(int page = 0; page < pageCount; page++) {
+            if(dirtyPages[page]) {
+                final int startIndex = page << PAGE_SHIFT;
                 if(startIndex == currentIndexRange[0] + currentIndexRange[1]) {
-                    currentIndexRange[1] += indexBlockSize;
+                    currentIndexRange[1] += PAGE_SIZE;
                 } else {
-                    currentIndexRange = new int[] { startIndex, indexBlockSize };
+                    currentIndexRange = new int[] { startIndex, PAGE_SIZE };
                     indexRanges.add(currentIndexRange);
                 }
             }
         }
-        currentIndexRange[1] = Math.min(currentIndexRange[1], longs.length - currentIndexRange[0]);
         final int[][] result = new int[indexRanges.size()][];
         for(int i=0; i<indexRanges.size(); i++) result[i] = indexRanges.get(i);
         return result;
     }
 
+    int length() {
+        return isMapped ? mappedLongs.length * MAP_CHUNK_LONGS : pageCount << PAGE_SHIFT;
+    }
+    private long value(int index) {
+        if(isMapped) return mappedLongs[index >> MAP_CHUNK_SHIFT].get(index & (MAP_CHUNK_LONGS - 1));
+        final long[] page = pages[index >> PAGE_SHIFT];
+        return page == null ? VALUE_UNUSED : page[index & (PAGE_SIZE - 1)];
+    }
+    private void setValue(int index, long value) {
+        if(isMapped) mappedLongs[index >> MAP_CHUNK_SHIFT].put(index & (MAP_CHUNK_LONGS - 1), value);
+        else getWritablePage(index >> PAGE_SHIFT)[index & (PAGE_SIZE - 1)] = value;
+        dirtyPages[index >> PAGE_SHIFT] = true;
+        isDirty = true;
+        if(this.index != null) this.index = this.index.setAltered(index, this);
+    }
+    private boolean isAnyPageDirty(int fromPage, int uptoPage) {
+        for(int page = fromPage; page < uptoPage && page < dirtyPages.length; page++) if(dirtyPages[page]) return true;
+        return false;
+    }
+    private static long[] newPage() {
+        final long[] page = new long[PAGE_SIZE];
+        Arrays.fill(page, VALUE_UNUSED);
+        return page;
+    }
+    /** Grows the page table to given number of pages, doubling its capacity when needed */
+    private void allocatePages(int newPageCount) {
+        if(newPageCount > pages.length) {
+            final int capacity = Math.max(newPageCount, pages.length * 2);
+            makeWritable();
+            pages = Arrays.copyOf(pages, capacity);
+            ownedPages = Arrays.copyOf(ownedPages, capacity);
+            dirtyPages = Arrays.copyOf(dirtyPages, capacity);
+        }
+        pageCount = Math.max(pageCount, newPageCount);
+    }
+    private long[] getWritablePage(int pageIndex) {
+        makeWritable();
+        if(!ownedPages[pageIndex]) {
+            pages[pageIndex] = pages[pageIndex] == null ? newPage() : pages[pageIndex].clone();
+            ownedPages[pageIndex] = true;
+        }
+        return pages[pageIndex];
+    }
+    /** Maps the file up to given number of chunks, growing the file with unused values when needed */
+    private void mapChunks(int chunkCount) {
+        final int oldCount = mappedChunks.length;
+        final long oldFileLength;
+        try(final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            oldFileLength = channel.size();
+            mappedChunks = Arrays.copyOf(mappedChunks, chunkCount);
+            mappedLongs = Arrays.copyOf(mappedLongs, chunkCount);
+            for(int chunk = oldCount; chunk < chunkCount; chunk++) {
+                final long position = (long)chunk * MAP_CHUNK_LONGS * Long.BYTES;
+                mappedChunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long)MAP_CHUNK_LONGS * Long.BYTES); // grows the file
+                mappedLongs[chunk] = mappedChunks[chunk].asLongBuffer(); // big endian, like the file is written when not mapped
+                for(int i = (int)Math.max(0, (oldFileLength - position) / Long.BYTES); i < MAP_CHUNK_LONGS; i++) mappedLongs[chunk].put(i, VALUE_UNUSED);
+            }
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to map " + file, cause);
+        }
+        allocatePages(chunkCount << (MAP_CHUNK_SHIFT - PAGE_SHIFT)); // for the dirty pages
+        // The padding is only in memory until forced, and a grown file reads back as zeros (date 0)
+        final int firstPaddedPage = (int)(oldFileLength / Long.BYTES) >> PAGE_SHIFT;
+        if(oldCount < chunkCount && firstPaddedPage < pageCount) {
+            Arrays.fill(dirtyPages, firstPaddedPage, pageCount, true);
+            isDirty = true;
+        }
+    }
     private void makeSureIndexExists(int index) {
-        if(index >= longs.length) {
-            final long[] newLongs = new long[index + growthRate];
-            System.arraycopy(longs, 0, newLongs, 0, longs.length);
-            for(int i=longs.length; i<newLongs.length; i++) newLongs[i] = VALUE_UNUSED;
-            longs = newLongs;
+        if(index < length()) return;
+        if(isMapped) mapChunks((index >> MAP_CHUNK_SHIFT) + 1);
+        else allocatePages((index >> PAGE_SHIFT) + 1);
+    }
+    private void makeWritable() {
+        if(isShared) {
+            pages = pages.clone();
+            ownedPages = new boolean[pages.length];
+            isShared = false;
         }
     }
 }
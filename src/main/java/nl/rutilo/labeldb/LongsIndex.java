@@ -0,0 +1,132 @@
+package nl.rutilo.labeldb;
+
+import java.util.Arrays;
+
+/** Secondary index on the values of a Longs, to find the indices of the values in a range
+  * without scanning all values.<p>
+  *
+  * The index has a base of (value, index) pairs sorted on value, which is never altered so
+  * it can be shared by snapshots, plus the indices of which the value was altered since the
+  * base was built. A range is found by a binary search in the base (skipping the altered
+  * indices) plus a check of the current value of each altered index. When many indices are
+  * altered, a new base is made by merging them into the old one.
+  */
+final class LongsIndex {
+    private static final int MIN_ALTERED_TO_MERGE = 1024;
+    private static final int INSERTION_SORT_SIZE = 16;
+    private final long[] values; // sorted
+    private final int[] indices; // of each value
+    private final Bits altered;
+
+    private LongsIndex(long[] values, int[] indices, Bits altered) {
+        this.values = values;
+        this.indices = indices;
+        this.altered = altered;
+    }
+
+    /** Index of the current values of given longs */
+    static LongsIndex of(Longs longs) {
+        final int length = longs.length();
+        int count = 0;
+        for(int index=0; index<length; index++) if(longs.isSet(index)) count++;
+        final long[] values = new long[count];
+        final int[] indices = new int[count];
+        count = 0;
+        for(int index=0; index<length; index++) {
+            if(!longs.isSet(index)) continue;
+            values[count] = longs.get(index);
+            indices[count++] = index;
+        }
+        sort(values, indices, 0, count - 1);
+        return new LongsIndex(values, indices, Bits.of("altered"));
+    }
+
+    /** Copy that shares the base, for a snapshot */
+    LongsIndex copy() {
+        return new LongsIndex(values, indices, altered.copy());
+    }
+
+    /** Registers that the value at given index was altered. Returns the index to use from
+      * here on, which is a new index when the alterations were merged into a new base.
+      */
+    LongsIndex setAltered(int index, Longs longs) {
+        altered.set(index);
+        return altered.countSetBits() > Math.max(MIN_ALTERED_TO_MERGE, values.length / 8) ? merged(longs) : this;
+    }
+
+    /** Indices of the values in the range minValue..maxValue (inclusive) */
+    Bits find(Longs longs, long minValue, long maxValue) {
+        final int from = firstIndexOf(minValue, false);
+        final int upto = firstIndexOf(maxValue, true);
+        final int[] alteredIndices = altered.getIndices();
+        final int[] found = new int[Math.max(0, upto - from) + alteredIndices.length];
+        int count = 0;
+        for(int i=from; i<upto; i++) if(!altered.isSet(indices[i])) found[count++] = indices[i];
+        for(final int index : alteredIndices) {
+            final long value = longs.get(index);
+            if(value != Longs.VALUE_UNUSED && value >= minValue && value <= maxValue) found[count++] = index;
+        }
+        return Bits.of("longs").set(Arrays.copyOf(found, count));
+    }
+
+    /** New base of the values of the base that were not altered plus the current values of the altered indices */
+    private LongsIndex merged(Longs longs) {
+        final int[] alteredIndices = altered.getIndices();
+        final long[] alteredValues = new long[alteredIndices.length];
+        int alteredCount = 0;
+        for(final int index : alteredIndices) {
+            if(!longs.isSet(index)) continue;
+            alteredIndices[alteredCount] = index;
+            alteredValues[alteredCount++] = longs.get(index);
+        }
+        sort(alteredValues, alteredIndices, 0, alteredCount - 1);
+
+        final long[] newValues = new long[values.length + alteredCount];
+        final int[] newIndices = new int[newValues.length];
+        int count = 0;
+        int a = 0;
+        for(int i=0; i<values.length; i++) {
+            if(altered.isSet(indices[i])) continue;
+            while(a < alteredCount && alteredValues[a] < values[i]) { newValues[count] = alteredValues[a]; newIndices[count++] = alteredIndices[a++]; }
+            newValues[count] = values[i];
+            newIndices[count++] = indices[i];
+        }
+        while(a < alteredCount) { newValues[count] = alteredValues[a]; newIndices[count++] = alteredIndices[a++]; }
+        return new LongsIndex(Arrays.copyOf(newValues, count), Arrays.copyOf(newIndices, count), Bits.of("altered"));
+    }
+
+    /** Position of the first value that is at least (or, when after, more than) given value */
+    private int firstIndexOf(long value, boolean after) {
+        int low = 0;
+        int high = values.length;
+        while(low < high) {
+            final int mid = (low + high) >>> 1;
+            if(values[mid] < value || (after && values[mid] == value)) low = mid + 1; else high = mid;
+        }
+        return low;
+    }
+
+    /** Sorts values from..upto (inclusive) and moves the indices along */
+    private static void sort(long[] values, int[] indices, int from, int upto) {
+        while(upto - from >= INSERTION_SORT_SIZE) {
+            final long pivot = values[(from + upto) >>> 1];
+            int left = from;
+            int right = upto;
+            while(left <= right) {
+                while(values[left] < pivot) left++;
+                while(values[right] > pivot) right--;
+                if(left <= right) swap(values, indices, left++, right--);
+            }
+            // recurse on the smaller part so the stack stays small
+            if(right - from < upto - left) { sort(values, indices, from, right); from = left; }
+            else                           { sort(values, indices, left, upto); upto = right; }
+        }
+        for(int i=from + 1; i<=upto; i++) {
+            for(int j=i; j>from && values[j - 1] > values[j]; j--) swap(values, indices, j - 1, j);
+        }
+    }
+    private static void swap(long[] values, int[] indices, int a, int b) {
+        final long value = values[a]; values[a] = values[b]; values[b] = value;
+        final int index = indices[a]; indices[a] = indices[b]; indices[b] = index;
+    }
+}
@@ -0,0 +1,94 @@
+package nl.rutilo.labeldb;
+
+import nl.rutilo.labeldb.util.ByteArraySource;
+import nl.rutilo.labeldb.util.ByteArrayTarget;
+
+/** Greedy LZ77 compression. Repeated sequences of at least MIN_MATCH bytes are found with
+  * hash chains of the earlier positions of each 4 byte sequence and replaced by a reference
+  * to the longest earlier occurrence. Compresses the sparse parts of bitmaps and the repeated
+  * patterns of bucket headers well, at a speed that keeps up with disk reads.<pre>
+  *
+  * data     : uncompressedLength, sequence*          all numbers are varints
+  * sequence : literalCount, literal*, [distance, matchLength - MIN_MATCH]
+  * </pre>
+  * The last sequence has no match.
+  */
+final class LzCodec implements CollectionCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 13;
+    private static final int MAX_DISTANCE = 1 << 16;
+    private static final int MAX_CHAIN_DEPTH = 16; // earlier sequences with the same hash that are tried
+
+    public byte getId() { return 1; }
+
+    public byte[] encode(byte[] data) {
+        final ByteArrayTarget target = new ByteArrayTarget().addVarInt(data.length);
+        final int[] lastPositions = new int[1 << HASH_BITS];  // position + 1 of the last sequence per hash, 0 for none
+        final int[] previousPositions = new int[MAX_DISTANCE]; // position + 1 of the sequence before it with the same hash
+        int literalStart = 0;
+        int position = 0;
+        while(position + MIN_MATCH <= data.length) {
+            int matchLength = 0;
+            int matchPosition = 0;
+            int candidate = lastPositions[hash(data, position)] - 1;
+            for(int depth = 0; depth < MAX_CHAIN_DEPTH && candidate >= 0 && position - candidate < MAX_DISTANCE; depth++) {
+                int length = 0;
+                while(position + length < data.length && data[candidate + length] == data[position + length]) length++;
+                if(length > matchLength) { matchLength = length; matchPosition = candidate; }
+                final int previous = previousPositions[candidate & (MAX_DISTANCE - 1)] - 1;
+                candidate = previous < candidate ? previous : -1;
+            }
+            if(matchLength < MIN_MATCH) {
+                addPosition(data, position++, lastPositions, previousPositions);
+                continue;
+            }
+            target.addVarInt(position - literalStart).add(data, literalStart, position - literalStart)
+                  .addVarInt(position - matchPosition).addVarInt(matchLength - MIN_MATCH);
+            final int end = position + matchLength;
+            for(; position < end && position + MIN_MATCH <= data.length; position++) addPosition(data, position, lastPositions, previousPositions);
+            position = end;
+            literalStart = position;
+        }
+        return target.addVarInt(data.length - literalStart).add(data, literalStart, data.length - literalStart).toByteArray();
+    }
+    private static void addPosition(byte[] data, int position, int[] lastPositions, int[] previousPositions) {
+        final int hash = hash(data, position);
+        previousPositions[position & (MAX_DISTANCE - 1)] = lastPositions[hash];
+        lastPositions[hash] = position + 1;
+    }
+
+    public byte[] decode(byte[] data) {
+        try {
+            return decodeOrThrow(data);
+        } catch(final IndexOutOfBoundsException cause) {
+            throw new IllegalStateException("Mangled data (truncated)", cause);
+        }
+    }
+    private static byte[] decodeOrThrow(byte[] data) {
+        final ByteArraySource source = new ByteArraySource(data);
+        final int length = source.getVarInt();
+        if(length < 0) throw new IllegalStateException("Mangled data (length=" + length + ")");
+        final byte[] result = new byte[length];
+        int position = 0;
+        while(true) {
+            final int literalCount = source.getVarInt();
+            if(literalCount < 0 || position + literalCount > length) throw new IllegalStateException("Mangled data (literalCount=" + literalCount + ")");
+            source.copyInto(result, position, literalCount);
+            position += literalCount;
+            if(position == length) return result;
+
+            final int distance = source.getVarInt();
+            final int matchLength = source.getVarInt() + MIN_MATCH;
+            if(distance < 1 || distance > position || matchLength < MIN_MATCH || position + matchLength > length) {
+                throw new IllegalStateException("Mangled data (distance=" + distance + ", matchLength=" + matchLength + ")");
+            }
+            for(int i=0; i<matchLength; i++) result[position + i] = result[position - distance + i]; // may overlap
+            position += matchLength;
+        }
+    }
+
+    private static int hash(byte[] data, int position) {
+        final int value = (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8 | (data[position + 2] & 0xFF) << 16 | data[position + 3] << 24;
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
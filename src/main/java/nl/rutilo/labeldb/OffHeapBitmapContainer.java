@@ -0,0 +1,235 @@
+package nl.rutilo.labeldb;
+
+import java.lang.ref.Reference;
+import java.nio.LongBuffer;
+
+/** Bitmap container of which the words are held off-heap, in a BitmapArena or in a
+  * memory mapped file. Only the words firstWord..endWord are held, the others are 0.<p>
+  *
+  * This container is never altered: reads are done on the off-heap words directly
+  * and alterations (and the less common operations) are done on a copy on the heap.
+  * An arena slot is given back when this container is no longer reachable, which can
+  * happen halfway a method reading the words. So those methods end with a reachability fence.
+  */
+final class OffHeapBitmapContainer extends BucketContainer {
+    private final LongBuffer buffer;
+    private final int base; // buffer index of word 0
+    private final int firstWord;
+    private final int endWord;
+    private final int cardinality;
+
+    /** Container of the wordCount words from buffer offset, which are the words starting at firstWord */
+    OffHeapBitmapContainer(LongBuffer buffer, int offset, int firstWord, int wordCount, int cardinality) {
+        this.buffer = buffer;
+        this.base = offset - firstWord;
+        this.firstWord = firstWord;
+        this.endWord = firstWord + wordCount;
+        this.cardinality = cardinality;
+    }
+    /** Container of the wordCount words in buffer, which are the words starting at firstWord.
+      * This reads all words to count them, so use the constructor when the cardinality is known.
+      */
+    static OffHeapBitmapContainer of(LongBuffer buffer, int firstWord, int wordCount) {
+        int cardinality = 0;
+        for(int i=0; i<wordCount; i++) cardinality += Long.bitCount(buffer.get(i));
+        return new OffHeapBitmapContainer(buffer, 0, firstWord, wordCount, cardinality);
+    }
+
+    private long word(int index) { return index >= firstWord && index < endWord ? buffer.get(base + index) : 0; }
+
+    public int cardinality() { return cardinality; }
+    public boolean contains(int bitIndex) {
+        try {
+            return (word(bitIndex >>> 6) & (1L << bitIndex)) != 0;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public BucketContainer add(int bitIndex) { return toBitmapContainer().add(bitIndex); }
+    public BucketContainer remove(int bitIndex) { return toBitmapContainer().remove(bitIndex); }
+    public int last() {
+        try {
+            for(int i=LONG_COUNT - 1; i>=0; i--) {
+                final long word = word(i);
+                if(word != 0) return i * 64 + 63 - Long.numberOfLeadingZeros(word);
+            }
+            return -1;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public int nextSetBit(int fromBitIndex) {
+        try {
+            int wordIndex = fromBitIndex >>> 6;
+            long word = word(wordIndex) & (-1L << fromBitIndex);
+            while(word == 0) {
+                if(++wordIndex == LONG_COUNT) return -1;
+                word = word(wordIndex);
+            }
+            return wordIndex * 64 + Long.numberOfTrailingZeros(word);
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public int previousSetBit(int fromBitIndex) {
+        try {
+            int wordIndex = fromBitIndex >>> 6;
+            long word = word(wordIndex) & (-1L >>> (63 - (fromBitIndex & 63)));
+            while(word == 0) {
+                if(--wordIndex < 0) return -1;
+                word = word(wordIndex);
+            }
+            return wordIndex * 64 + 63 - Long.numberOfLeadingZeros(word);
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public int rank(int bitIndex) {
+        try {
+            if(bitIndex <= 0) return 0;
+            final int lastBitIndex = Math.min(bitIndex, BITS_COUNT) - 1;
+            final int lastWord = lastBitIndex >>> 6;
+            int count = 0;
+            for(int i=firstWord; i<Math.min(lastWord, endWord); i++) count += Long.bitCount(buffer.get(base + i));
+            return count + Long.bitCount(word(lastWord) & (-1L >>> (63 - (lastBitIndex & 63))));
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public int select(int rank) {
+        try {
+            for(int i=firstWord; i<endWord; i++) {
+                long word = buffer.get(base + i);
+                final int count = Long.bitCount(word);
+                if(rank < count) {
+                    for(int r=0; r<rank; r++) word &= word - 1;
+                    return i * 64 + Long.numberOfTrailingZeros(word);
+                }
+                rank -= count;
+            }
+            return -1;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public boolean intersects(int fromBitIndex, int uptoBitIndex) {
+        try {
+            final int fromWord = fromBitIndex >>> 6;
+            final int lastWord = uptoBitIndex >>> 6;
+            final long firstMask = -1L << fromBitIndex;
+            final long lastMask  = -1L >>> (63 - (uptoBitIndex & 63));
+            if(fromWord == lastWord) return (word(fromWord) & firstMask & lastMask) != 0;
+            if((word(fromWord) & firstMask) != 0) return true;
+            for(int i=Math.max(fromWord + 1, firstWord); i<Math.min(lastWord, endWord); i++) if(buffer.get(base + i) != 0) return true;
+            return (word(lastWord) & lastMask) != 0;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    public BucketContainer not() { return toBitmapContainer().not(); }
+    public BucketContainer and(BucketContainer other) {
+        if(other instanceof ArrayContainer) return other.and(this);
+        return toBitmapContainer().and(onHeap(other));
+    }
+    public BucketContainer or(BucketContainer other) { return toBitmapContainer().or(onHeap(other)); }
+    public BucketContainer andNot(BucketContainer other) { return toBitmapContainer().andNot(onHeap(other)); }
+    public int andCardinality(BucketContainer other) {
+        try {
+            if(other instanceof BitmapContainer) {
+                final long[] otherWords = ((BitmapContainer)other).words;
+                int count = 0;
+                for(int i=firstWord; i<endWord; i++) count += Long.bitCount(buffer.get(base + i) & otherWords[i]);
+                return count;
+            }
+            if(other instanceof ArrayContainer) return other.andCardinality(this);
+            return toBitmapContainer().andCardinality(onHeap(other));
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    public boolean andInto(long[] words) {
+        try {
+            long any = 0;
+            for(int i=0; i<firstWord; i++) words[i] = 0;
+            for(int i=firstWord; i<endWord; i++) any |= words[i] &= buffer.get(base + i);
+            for(int i=endWord; i<LONG_COUNT; i++) words[i] = 0;
+            return any != 0;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public void orInto(long[] words) {
+        try {
+            for(int i=firstWord; i<endWord; i++) words[i] |= buffer.get(base + i);
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public void copyInto(long[] words) {
+        try {
+            for(int i=0; i<firstWord; i++) words[i] = 0;
+            buffer.duplicate().position(base + firstWord).get(words, firstWord, endWord - firstWord);
+            for(int i=endWord; i<LONG_COUNT; i++) words[i] = 0;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    /** Off-heap containers are never altered so can be shared as they are */
+    public BucketContainer copy() { return this; }
+    public int copyIndicesIn(int[] array, int arrayOffset, int idOffset) {
+        try {
+            int idIndex = 0;
+            for(int longIndex = firstWord; longIndex < endWord; longIndex++) {
+                long word = buffer.get(base + longIndex);
+                final int bucketIdOffset = idOffset + longIndex * 64;
+                while(word != 0) {
+                    array[arrayOffset + idIndex++] = bucketIdOffset + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return idIndex;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+    public long[] toLongs() {
+        final long[] words = new long[LONG_COUNT];
+        copyInto(words);
+        return words;
+    }
+    public int runCount() {
+        try {
+            int count = 0;
+            long previousTopBit = 0;
+            for(int i=0; i<LONG_COUNT; i++) {
+                final long word = word(i);
+                count += Long.bitCount(word & ~((word << 1) | previousTopBit));
+                previousTopBit = word >>> 63;
+            }
+            return count;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    /** Returns this when a bitmap is the smallest form, as off-heap is where it should stay */
+    public BucketContainer optimize() {
+        final int arrayByteSize = cardinality * Short.BYTES;
+        final int runsByteSize  = runCount() * 2 * Short.BYTES;
+        if(runsByteSize < arrayByteSize && runsByteSize < Bits.BUCKET_BYTE_SIZE) return toRunContainer();
+        if(arrayByteSize <= Bits.BUCKET_BYTE_SIZE) return toArrayContainer();
+        return this;
+    }
+
+    ArrayContainer  toArrayContainer() { return toBitmapContainer().toArrayContainer(); }
+    BitmapContainer toBitmapContainer() { return new BitmapContainer(toLongs(), cardinality); }
+    RunContainer    toRunContainer()   { return toBitmapContainer().toRunContainer(); }
+
+    /** The other containers only know each other, so an off-heap operand is copied to the heap */
+    static BucketContainer onHeap(BucketContainer container) {
+        return container instanceof OffHeapBitmapContainer ? container.toBitmapContainer() : container;
+    }
+}
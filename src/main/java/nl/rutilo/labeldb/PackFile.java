@@ -0,0 +1,266 @@
+package nl.rutilo.labeldb;
+
+import nl.rutilo.labeldb.util.ByteArrayTarget;
+import nl.rutilo.labeldb.util.FunctionalReadWriteLock;
+import nl.rutilo.labeldb.util.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** Stores the collections of many labels in a single data file instead of in a file per
+  * collection, in a directory per label.<p>
+  *
+  * Data is only appended to the data file. An index file holds, for each write, the label,
+  * collection index, offset and length, of which the last entry for a collection wins.
+  * Entries are appended after the data they refer to, so a write that was interrupted is
+  * not seen. When most of the data file is outdated, compact() rewrites it, with a new
+  * generation number in its name that the index file refers to.<p>
+  *
+  * Labels can be written in parallel: write() only holds the monitor to reserve room in
+  * the data file and to update the in-memory index. The data is synced and the index
+  * entries are appended by sync(), which does that once for all writes before it.<pre>
+  *
+  * index file : generation, (name, collectionIndex, offset, length)*    length -1: removed
+  * data file  : collection data*
+  * </pre>
+  */
+public final class PackFile {
+    /** Collection index under which the header of a label is stored */
+    static final int HEADER_INDEX = -1;
+    private static final String INDEX_NAME = "labels.index";
+    private static final int MIN_COMPACT_SIZE = 1024 * 1024;
+    private final File dir;
+    // label -> collection index -> { offset, length }
+    private final Map<String, Map<Integer, long[]>> index = new HashMap<>();
+    private int generation = 0;
+    private long dataLength = 0;
+    private long usedLength = 0;
+    private RandomAccessFile data;
+    private ByteArrayTarget unsyncedIndexEntries = new ByteArrayTarget();
+    private final Object syncLock = new Object();
+    // Writes and syncs hold the read lock, so compact() does not replace the data file under them
+    private final FunctionalReadWriteLock compactLock = new FunctionalReadWriteLock();
+
+    /** Pack of the data in given directory, which is created when it does not exist yet */
+    public PackFile(File dir) {
+        this.dir = dir;
+        readIndex();
+    }
+
+    public synchronized Set<String> getLabels() {
+        return new HashSet<>(index.keySet());
+    }
+    public synchronized boolean contains(String label) {
+        return index.containsKey(label);
+    }
+    /** The collection indices of given label in ascending order, not including the header */
+    synchronized int[] getCollectionIndices(String label) {
+        return index.getOrDefault(label, new HashMap<>()).keySet().stream()
+            .filter(i -> i != HEADER_INDEX).mapToInt(i -> i).sorted().toArray();
+    }
+    /** The data of a collection of given label, or null if there is none */
+    synchronized byte[] read(String label, int collectionIndex) {
+        final long[] location = index.getOrDefault(label, new HashMap<>()).get(collectionIndex);
+        if(location == null) return null;
+        try {
+            final byte[] bytes = new byte[(int)location[1]];
+            getData().seek(location[0]);
+            getData().readFully(bytes);
+            return bytes;
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to read " + label + " from pack", cause);
+        }
+    }
+    /** Appends the given collections of a label, where null data removes a collection. They
+      * can be read right away but are only durable (found on reopen) after sync().
+      */
+    void write(String label, Map<Integer, byte[]> collections) {
+        compactLock.read(() -> {
+            final long[] offsets = new long[collections.size()];
+            final FileChannel channel;
+            synchronized(this) { // reserve room, so other labels can be written at the same time
+                int i = 0;
+                for(final byte[] bytes : collections.values()) {
+                    offsets[i++] = bytes == null ? 0 : dataLength;
+                    if(bytes != null) dataLength += bytes.length;
+                }
+                channel = getChannel();
+            }
+            int i = 0;
+            try {
+                for(final byte[] bytes : collections.values()) {
+                    final long offset = offsets[i++];
+                    if(bytes == null) continue;
+                    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while(buffer.hasRemaining()) channel.write(buffer, offset + buffer.position());
+                }
+            } catch(final IOException cause) {
+                throw new RuntimeException("Unable to write " + label + " to pack", cause);
+            }
+            synchronized(this) {
+                i = 0;
+                for(final Map.Entry<Integer, byte[]> entry : collections.entrySet()) {
+                    final long offset = offsets[i++];
+                    final int length = entry.getValue() == null ? -1 : entry.getValue().length;
+                    addIndexEntry(unsyncedIndexEntries, label, entry.getKey(), offset, length);
+                    setLocation(label, entry.getKey(), offset, length);
+                }
+            }
+        });
+    }
+    /** Makes all writes before this call durable: syncs the data file and then appends the
+      * index entries of the writes and syncs the index file, once for all of them.
+      */
+    void sync() {
+        compactLock.read(() -> {
+            synchronized(syncLock) { // keeps the entries in order
+                final byte[] entries;
+                final RandomAccessFile data;
+                synchronized(this) {
+                    entries = unsyncedIndexEntries.toByteArray();
+                    if(entries.length == 0) return;
+                    unsyncedIndexEntries = new ByteArrayTarget();
+                    try {
+                        data = getData();
+                    } catch(final IOException cause) {
+                        throw new RuntimeException("Unable to open pack", cause);
+                    }
+                }
+                try {
+                    data.getFD().sync(); // data should be on disk before the index refers to it
+                    try(final FileOutputStream out = new FileOutputStream(new File(dir, INDEX_NAME), true)) {
+                        out.write(entries);
+                        out.getFD().sync();
+                    }
+                } catch(final IOException cause) {
+                    throw new RuntimeException("Unable to sync pack", cause);
+                }
+            }
+        });
+    }
+
+    /** Rewrites the data file when most of it is outdated data */
+    public void compactIfWasteful() {
+        final boolean isWasteful;
+        synchronized(this) { isWasteful = dataLength > MIN_COMPACT_SIZE && usedLength < dataLength / 2; }
+        if(isWasteful) compact();
+    }
+    /** Rewrites the data file so it only holds the current data of each collection, which
+      * makes the writes before it durable as well.
+      */
+    public void compact() {
+        compactLock.write(() -> { synchronized(this) { compactUnderLock(); } });
+    }
+    private void compactUnderLock() {
+        final int newGeneration = generation + 1;
+        final File newDataFile = getDataFile(newGeneration);
+        final ByteArrayTarget indexData = new ByteArrayTarget().add(newGeneration);
+        final Map<String, Map<Integer, long[]>> newIndex = new HashMap<>();
+        long offset = 0;
+        try(final FileOutputStream out = new FileOutputStream(newDataFile)) {
+            for(final Map.Entry<String, Map<Integer, long[]>> label : index.entrySet()) {
+                for(final Map.Entry<Integer, long[]> collection : new TreeMap<>(label.getValue()).entrySet()) {
+                    final byte[] bytes = read(label.getKey(), collection.getKey());
+                    out.write(bytes);
+                    addIndexEntry(indexData, label.getKey(), collection.getKey(), offset, bytes.length);
+                    newIndex.computeIfAbsent(label.getKey(), l -> new HashMap<>()).put(collection.getKey(), new long[] { offset, bytes.length });
+                    offset += bytes.length;
+                }
+            }
+            out.getFD().sync();
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to compact pack", cause);
+        }
+        Utils.replaceFileWith(new File(dir, INDEX_NAME), indexData.toByteArray()); // from here on the new data file is used
+        closeData();
+        getDataFile(generation).delete();
+        generation = newGeneration;
+        index.clear();
+        index.putAll(newIndex);
+        dataLength = offset;
+        usedLength = offset;
+        unsyncedIndexEntries = new ByteArrayTarget(); // the new index has them
+    }
+
+    /** Syncs and closes the data file, which is opened again when needed */
+    public void close() {
+        sync();
+        synchronized(this) { closeData(); }
+    }
+    private void closeData() {
+        if(data == null) return;
+        try {
+            data.close();
+        } catch(final IOException ignored) {
+            // nothing left to do
+        }
+        data = null;
+    }
+
+    private void readIndex() {
+        final File indexFile = new File(dir, INDEX_NAME);
+        if(!indexFile.exists()) {
+            dir.mkdirs();
+            Utils.replaceFileWith(indexFile, new ByteArrayTarget(Integer.BYTES).add(generation).toByteArray());
+        }
+        final ByteBuffer entries = ByteBuffer.wrap(Utils.readFileToByteArray(indexFile).orElse(new byte[0]));
+        generation = entries.getInt();
+        dataLength = getDataFile(generation).length();
+        int validLength = entries.position();
+        try {
+            while(entries.hasRemaining()) {
+                final byte[] name = new byte[entries.getShort()];
+                entries.get(name);
+                final int collectionIndex = entries.getInt();
+                final long offset = entries.getLong();
+                final int length = entries.getInt();
+                if(offset + length > dataLength) break; // data was not completely written
+                setLocation(new String(name, Utils.TEXT_ENCODING), collectionIndex, offset, length);
+                validLength = entries.position();
+            }
+        } catch(final BufferUnderflowException ignored) {
+            // entry was not completely written
+        }
+        if(validLength < entries.limit()) { // remove what was not completely written, so new entries can be appended
+            Utils.replaceFileWith(indexFile, Arrays.copyOf(entries.array(), validLength));
+        }
+        final File[] files = dir.listFiles((d, name) -> name.matches("^labels\\.\\d+\\.pack$"));
+        if(files != null) for(final File file : files) if(!file.equals(getDataFile(generation))) file.delete(); // interrupted compact
+    }
+    private void setLocation(String label, int collectionIndex, long offset, int length) {
+        final Map<Integer, long[]> collections = index.computeIfAbsent(label, l -> new HashMap<>());
+        final long[] old = length < 0 ? collections.remove(collectionIndex) : collections.put(collectionIndex, new long[] { offset, length });
+        if(old != null) usedLength -= old[1];
+        if(length >= 0) usedLength += length;
+        if(collections.isEmpty()) index.remove(label);
+    }
+    private static void addIndexEntry(ByteArrayTarget target, String label, int collectionIndex, long offset, int length) {
+        final byte[] name = label.getBytes(Utils.TEXT_ENCODING);
+        target.add((short)name.length).add(name).add(collectionIndex).add(offset).add(length);
+    }
+    private RandomAccessFile getData() throws IOException {
+        if(data == null) data = new RandomAccessFile(getDataFile(generation), "rw");
+        return data;
+    }
+    private FileChannel getChannel() {
+        try {
+            return getData().getChannel();
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to open pack", cause);
+        }
+    }
+    private File getDataFile(int generation) {
+        return new File(dir, "labels." + generation + ".pack");
+    }
+}
@@ -0,0 +1,278 @@
+package nl.rutilo.labeldb;
+
+import java.util.Arrays;
+
+/** Container holding the bits of a clumped bucket as sorted sequences (runs) of set bits.
+  * Each run takes two shorts: the start index and the length minus one.
+  */
+final class RunContainer extends BucketContainer {
+    short[] runs;
+    int runCount;
+    private int cardinality;
+
+    RunContainer() { this(1); }
+    RunContainer(int capacity) {
+        runs = new short[2 * Math.max(1, capacity)];
+    }
+    RunContainer(short[] runs, int runCount) {
+        this.runs = runs;
+        this.runCount = runCount;
+        for(int r=0; r<runCount; r++) cardinality += runs[2*r + 1] + 1;
+    }
+    static RunContainer ofRange(int fromBitIndex, int uptoBitIndex) {
+        final RunContainer container = new RunContainer(1);
+        container.append(fromBitIndex, uptoBitIndex);
+        return container;
+    }
+
+    int start(int run) { return runs[2*run]; }
+    int end(int run)   { return runs[2*run] + runs[2*run + 1]; }
+
+    public int cardinality() { return cardinality; }
+    public boolean contains(int bitIndex) {
+        final int run = runAtOrBefore(bitIndex);
+        return run >= 0 && bitIndex <= end(run);
+    }
+    public BucketContainer add(int bitIndex) {
+        final int run = runAtOrBefore(bitIndex);
+        if(run >= 0 && bitIndex <= end(run)) return this;
+        final boolean joinsPrevious = run >= 0 && end(run) + 1 == bitIndex;
+        final boolean joinsNext     = run + 1 < runCount && start(run + 1) == bitIndex + 1;
+        if(joinsPrevious && joinsNext) {
+            runs[2*run + 1] = (short)(end(run + 1) - start(run));
+            removeRun(run + 1);
+        } else
+        if(joinsPrevious) {
+            runs[2*run + 1]++;
+        } else
+        if(joinsNext) {
+            runs[2*(run + 1)]--;
+            runs[2*(run + 1) + 1]++;
+        } else {
+            if(runCount >= MAX_RUN_COUNT) return toBitmapContainer().add(bitIndex);
+            insertRun(run + 1, bitIndex, bitIndex);
+            return this; // cardinality is updated by insertRun
+        }
+        cardinality++;
+        return this;
+    }
+    public BucketContainer remove(int bitIndex) {
+        final int run = runAtOrBefore(bitIndex);
+        if(run < 0 || bitIndex > end(run)) return this;
+        final int start = start(run);
+        final int end   = end(run);
+        if(start == end) {
+            removeRun(run);
+            return this; // cardinality is updated by removeRun
+        }
+        if(bitIndex == start) {
+            runs[2*run]++;
+            runs[2*run + 1]--;
+        } else
+        if(bitIndex == end) {
+            runs[2*run + 1]--;
+        } else {
+            if(runCount >= MAX_RUN_COUNT) return toBitmapContainer().remove(bitIndex);
+            runs[2*run + 1] = (short)(bitIndex - 1 - start);
+            cardinality -= end - bitIndex + 1;
+            insertRun(run + 1, bitIndex + 1, end);
+            return this;
+        }
+        cardinality--;
+        return this;
+    }
+    public int last() { return runCount == 0 ? -1 : end(runCount - 1); }
+    public int nextSetBit(int fromBitIndex) {
+        final int run = runAtOrBefore(fromBitIndex);
+        if(run >= 0 && fromBitIndex <= end(run)) return fromBitIndex;
+        return run + 1 < runCount ? start(run + 1) : -1;
+    }
+    public int previousSetBit(int fromBitIndex) {
+        final int run = runAtOrBefore(fromBitIndex);
+        return run < 0 ? -1 : Math.min(fromBitIndex, end(run));
+    }
+    public int rank(int bitIndex) {
+        int count = 0;
+        for(int r=0; r<runCount && start(r) < bitIndex; r++) count += Math.min(end(r), bitIndex - 1) - start(r) + 1;
+        return count;
+    }
+    public int select(int rank) {
+        for(int r=0; ; r++) {
+            final int length = end(r) - start(r) + 1;
+            if(rank < length) return start(r) + rank;
+            rank -= length;
+        }
+    }
+    public boolean intersects(int fromBitIndex, int uptoBitIndex) {
+        final int run = runAtOrBefore(uptoBitIndex);
+        return run >= 0 && end(run) >= fromBitIndex;
+    }
+
+    public BucketContainer not() {
+        return complement().optimize();
+    }
+    public BucketContainer and(BucketContainer other) {
+        if(other instanceof RunContainer) return andRuns((RunContainer)other);
+        return other.and(this);
+    }
+    public BucketContainer or(BucketContainer other) {
+        if(other instanceof RunContainer)   return orRuns((RunContainer)other);
+        if(other instanceof ArrayContainer) return orRuns(((ArrayContainer)other).toRunContainer());
+        return other.or(this);
+    }
+    public BucketContainer andNot(BucketContainer other) {
+        if(other instanceof RunContainer)   return andRuns(((RunContainer)other).complement());
+        if(other instanceof ArrayContainer) return andRuns(((ArrayContainer)other).toRunContainer().complement());
+        return andNotBitmap(other.toBitmapContainer());
+    }
+    public int andCardinality(BucketContainer other) {
+        if(other instanceof RunContainer) return andCardinalityRuns((RunContainer)other);
+        return other.andCardinality(this);
+    }
+
+    private BucketContainer andRuns(RunContainer other) {
+        final RunContainer result = new RunContainer(runCount + other.runCount);
+        for(int i=0, j=0; i<runCount && j<other.runCount; ) {
+            final int start = Math.max(start(i), other.start(j));
+            final int end   = Math.min(end(i), other.end(j));
+            if(start <= end) result.append(start, end);
+            if(end(i) < other.end(j)) i++; else j++;
+        }
+        return result.optimize();
+    }
+    private BucketContainer orRuns(RunContainer other) {
+        final RunContainer result = new RunContainer(runCount + other.runCount);
+        int i = 0;
+        int j = 0;
+        while(i < runCount || j < other.runCount) {
+            if(j >= other.runCount || (i < runCount && start(i) <= other.start(j))) {
+                result.append(start(i), end(i)); i++;
+            } else {
+                result.append(other.start(j), other.end(j)); j++;
+            }
+        }
+        return result.optimize();
+    }
+    private BucketContainer andNotBitmap(BitmapContainer other) {
+        final RunContainer result = new RunContainer(runCount);
+        for(int r=0; r<runCount; r++) {
+            final int end = end(r);
+            int start = other.nextClearBit(start(r));
+            while(start <= end) {
+                final int nextSet = other.nextSetBit(start);
+                final int runEnd = nextSet < 0 ? end : Math.min(end, nextSet - 1);
+                result.append(start, runEnd);
+                start = runEnd + 1 <= end ? other.nextClearBit(runEnd + 1) : end + 1;
+            }
+        }
+        return result.optimize();
+    }
+    private int andCardinalityRuns(RunContainer other) {
+        int count = 0;
+        for(int i=0, j=0; i<runCount && j<other.runCount; ) {
+            final int start = Math.max(start(i), other.start(j));
+            final int end   = Math.min(end(i), other.end(j));
+            if(start <= end) count += end - start + 1;
+            if(end(i) < other.end(j)) i++; else j++;
+        }
+        return count;
+    }
+    /** Runs of the bits that are not set in this container */
+    private RunContainer complement() {
+        final RunContainer result = new RunContainer(runCount + 1);
+        int start = 0;
+        for(int r=0; r<runCount; r++) {
+            if(start(r) > start) result.append(start, start(r) - 1);
+            start = end(r) + 1;
+        }
+        if(start < BITS_COUNT) result.append(start, BITS_COUNT - 1);
+        return result;
+    }
+
+    public boolean andInto(long[] words) {
+        int start = 0; // start of the next gap between runs
+        for(int r=0; r<runCount; r++) {
+            if(start(r) > start) BitmapContainer.clearRange(words, start, start(r) - 1);
+            start = end(r) + 1;
+        }
+        if(start < BITS_COUNT) BitmapContainer.clearRange(words, start, BITS_COUNT - 1);
+        for(int i=0; i<LONG_COUNT; i++) if(words[i] != 0) return true;
+        return false;
+    }
+    public void orInto(long[] words) {
+        for(int r=0; r<runCount; r++) BitmapContainer.setRange(words, start(r), end(r));
+    }
+
+    public RunContainer copy() {
+        return new RunContainer(Arrays.copyOf(runs, 2 * runCount), runCount);
+    }
+    public int copyIndicesIn(int[] array, int arrayOffset, int idOffset) {
+        int idIndex = 0;
+        for(int r=0; r<runCount; r++) {
+            final int end = end(r);
+            for(int bitIndex = start(r); bitIndex <= end; bitIndex++) array[arrayOffset + idIndex++] = idOffset + bitIndex;
+        }
+        return idIndex;
+    }
+    public long[] toLongs() {
+        final long[] longs = new long[LONG_COUNT];
+        for(int r=0; r<runCount; r++) BitmapContainer.setRange(longs, start(r), end(r));
+        return longs;
+    }
+    public int runCount() { return runCount; }
+
+    ArrayContainer toArrayContainer() {
+        final short[] values = new short[cardinality];
+        copyIndicesInShorts(values);
+        return new ArrayContainer(values, cardinality);
+    }
+    BitmapContainer toBitmapContainer() { return new BitmapContainer(toLongs(), cardinality); }
+    RunContainer toRunContainer() { return this; }
+
+    /** Adds a run that starts at or after the start of the last run, merging when they touch */
+    void append(int start, int end) {
+        if(runCount > 0) {
+            final int lastStart = start(runCount - 1);
+            final int lastEnd   = end(runCount - 1);
+            if(start <= lastEnd + 1) {
+                if(end > lastEnd) {
+                    runs[2*runCount - 1] = (short)(end - lastStart);
+                    cardinality += end - lastEnd;
+                }
+                return;
+            }
+        }
+        insertRun(runCount, start, end);
+    }
+
+    private void copyIndicesInShorts(short[] values) {
+        int index = 0;
+        for(int r=0; r<runCount; r++) {
+            final int end = end(r);
+            for(int bitIndex = start(r); bitIndex <= end; bitIndex++) values[index++] = (short)bitIndex;
+        }
+    }
+    private void insertRun(int run, int start, int end) {
+        if(2 * runCount + 2 > runs.length) runs = Arrays.copyOf(runs, Math.max(4, runs.length * 2));
+        System.arraycopy(runs, 2*run, runs, 2*run + 2, 2 * (runCount - run));
+        runs[2*run]     = (short)start;
+        runs[2*run + 1] = (short)(end - start);
+        runCount++;
+        cardinality += end - start + 1;
+    }
+    private void removeRun(int run) {
+        cardinality -= end(run) - start(run) + 1;
+        System.arraycopy(runs, 2*run + 2, runs, 2*run, 2 * (runCount - run - 1));
+        runCount--;
+    }
+    /** Index of the last run that starts at or before given bitIndex, or -1 if there is none */
+    private int runAtOrBefore(int bitIndex) {
+        int low = 0;
+        int high = runCount - 1;
+        while(low <= high) {
+            final int mid = (low + high) >>> 1;
+            if(start(mid) <= bitIndex) low = mid + 1; else high = mid - 1;
+        }
+        return high;
+    }
+}
@@ -0,0 +1,230 @@
+package nl.rutilo.labeldb;
+
+import nl.rutilo.labeldb.util.ByteArrayTarget;
+import nl.rutilo.labeldb.util.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/** Append-only log of the alterations of a LabelDB, so an alteration is durable as soon
+  * as it is logged instead of when the altered labels are stored.<p>
+  *
+  * Records are added to a buffer (under the LabelDB write lock, so in the order they are
+  * applied) and written plus synced to disk by sync(). Threads that call sync() while
+  * another thread is syncing wait for it and then sync all records that were added in
+  * the meantime in one go (group commit), so one fsync covers many alterations.<p>
+  *
+  * The log is split in files with increasing numbers. A checkpoint starts a new file and,
+  * when all labels that were altered before it are stored, deletes the older files. As
+  * checkpoint() is called under the LabelDB write lock it only sets the records apart:
+  * rotate() writes them, syncs and starts the new file after the lock is released. On
+  * open all files are replayed. Replaying is idempotent: every record sets bits or dates
+  * to a value, so replaying records that were already stored results in the same data.<pre>
+  *
+  * record : int payloadLength, int crc32c(payload), payload
+  * payload: byte type, type specific data
+  * </pre>
+  */
+final class WriteAheadLog {
+    private static final String FILE_PREFIX = "wal.";
+    private static final byte SET          = 1; // label, indices
+    private static final byte REMOVE       = 2; // label, indices
+    private static final byte SET_RANGE    = 3; // label, fromIndex, uptoIndex
+    private static final byte REMOVE_RANGE = 4; // label, fromIndex, uptoIndex
+    private static final byte SET_DATE     = 5; // index, datetime
+    private static final byte CLEAR        = 6; // indices
+    private final File dir;
+    private final Object syncLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long addedCount = 0;
+    private long syncedCount = 0; // only altered while holding syncLock
+    private ByteArrayOutputStream checkpointed; // records before the last checkpoint, when not rotated yet
+    private long checkpointedCount;
+    private int checkpointNumber; // of the file the pending records are for
+    private int fileNumber; // of the open file
+    private FileChannel channel;
+
+    /** Log in given directory. Existing files should be replayed before records are added */
+    WriteAheadLog(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+        final int[] numbers = getFileNumbers();
+        fileNumber = numbers.length == 0 ? 0 : numbers[numbers.length - 1] + 1;
+        checkpointNumber = fileNumber;
+        channel = open(fileNumber);
+    }
+
+    /** Applies the records of the existing files (that were not checkpointed) to given db */
+    void replay(LabelDB db) {
+        for(final int number : getFileNumbers()) {
+            if(number == fileNumber) continue;
+            final ByteBuffer records = ByteBuffer.wrap(Utils.readFileToByteArray(getFile(number)).orElse(new byte[0]));
+            if(!records.hasRemaining()) { getFile(number).delete(); continue; } // nothing to checkpoint
+            while(records.remaining() >= 2 * Integer.BYTES) {
+                final int length = records.getInt();
+                final int crc = records.getInt();
+                if(length < 1 || length > records.remaining()) break; // record was not completely written
+                final ByteBuffer payload = records.slice().limit(length);
+                records.position(records.position() + length);
+                if(crc != crcOf(payload.duplicate())) break;
+                replay(db, payload);
+            }
+        }
+    }
+    private static void replay(LabelDB db, ByteBuffer payload) {
+        switch(payload.get()) {
+            case SET:          db.set(getString(payload), getInts(payload)); break;
+            case REMOVE:       db.remove(getString(payload), getInts(payload)); break;
+            case SET_RANGE:    db.setRange(getString(payload), payload.getInt(), payload.getInt()); break;
+            case REMOVE_RANGE: db.removeRange(getString(payload), payload.getInt(), payload.getInt()); break;
+            case SET_DATE:     db.set(payload.getInt(), payload.getLong()); break;
+            case CLEAR:        db.clear(getInts(payload)); break;
+            default: throw new IllegalStateException("Unknown write-ahead log record type");
+        }
+    }
+
+    void addSet(String label, int[] indices)          { add(new ByteArrayTarget().add(SET).add(label).add(indices.length).add(indices)); }
+    void addRemove(String label, int[] indices)       { add(new ByteArrayTarget().add(REMOVE).add(label).add(indices.length).add(indices)); }
+    void addSetRange(String label, int from, int upto)    { add(new ByteArrayTarget().add(SET_RANGE).add(label).add(from).add(upto)); }
+    void addRemoveRange(String label, int from, int upto) { add(new ByteArrayTarget().add(REMOVE_RANGE).add(label).add(from).add(upto)); }
+    void addSetDate(int index, long datetime)         { add(new ByteArrayTarget().add(SET_DATE).add(index).add(datetime)); }
+    void addClear(int[] indices)                      { add(new ByteArrayTarget().add(CLEAR).add(indices.length).add(indices)); }
+
+    private synchronized void add(ByteArrayTarget record) {
+        final byte[] payload = record.toByteArray();
+        final byte[] header = new ByteArrayTarget(2 * Integer.BYTES).add(payload.length).add(crcOf(ByteBuffer.wrap(payload))).toByteArray();
+        pending.write(header, 0, header.length);
+        pending.write(payload, 0, payload.length);
+        addedCount++;
+    }
+
+    /** Returns when all records that were added before this call are on disk */
+    void sync() {
+        final long toSync;
+        synchronized(this) { toSync = addedCount; }
+        synchronized(syncLock) {
+            if(syncedCount >= toSync) return; // synced by another thread in the meantime
+            writePending(true);
+        }
+    }
+    /** Records that are added from here on are not in the files before the returned number,
+      * which can be deleted when the data they altered is stored and rotate() was called.
+      * Does no IO, so can be called while holding a lock.
+      */
+    synchronized int checkpoint() {
+        if(checkpointed == null) {
+            checkpointed = pending;
+            checkpointNumber++;
+        } else { // not rotated since the previous checkpoint, so these records go in the same file
+            checkpointed.write(pending.toByteArray(), 0, pending.size());
+        }
+        checkpointedCount = addedCount;
+        pending = new ByteArrayOutputStream();
+        return checkpointNumber;
+    }
+    /** Writes and syncs the records before the last checkpoint and starts the file of the
+      * checkpoint, if not done yet. Should be called before deleteBefore(checkpoint).
+      */
+    void rotate() {
+        synchronized(syncLock) {
+            rotateIfCheckpointed();
+        }
+    }
+    /** Deletes the files before given number, for when the data they altered is stored */
+    void deleteBefore(int number) {
+        for(final int existing : getFileNumbers()) {
+            if(existing < number && !getFile(existing).delete()) throw new RuntimeException("Unable to delete " + getFile(existing));
+        }
+    }
+    void close() {
+        synchronized(syncLock) {
+            writePending(false);
+            try {
+                channel.close();
+            } catch(final IOException ignored) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /** Should be called while holding syncLock */
+    private void writePending(boolean force) {
+        rotateIfCheckpointed(); // records after a checkpoint should not end up in the file before it
+        final byte[] data;
+        final long count;
+        synchronized(this) {
+            data = pending.toByteArray();
+            count = addedCount;
+            pending = new ByteArrayOutputStream();
+        }
+        write(data, force);
+        syncedCount = count;
+    }
+    /** Should be called while holding syncLock */
+    private void rotateIfCheckpointed() {
+        final byte[] data;
+        final long count;
+        final int number;
+        synchronized(this) {
+            if(checkpointed == null) return;
+            data = checkpointed.toByteArray();
+            count = checkpointedCount;
+            number = checkpointNumber;
+            checkpointed = null;
+        }
+        write(data, true);
+        try {
+            channel.close();
+        } catch(final IOException ignored) {
+            // the records are synced already
+        }
+        channel = open(number);
+        fileNumber = number;
+        syncedCount = Math.max(syncedCount, count);
+    }
+    private void write(byte[] data, boolean force) {
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            while(buffer.hasRemaining()) channel.write(buffer);
+            if(force && data.length > 0) channel.force(false);
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to write to write-ahead log", cause);
+        }
+    }
+    private FileChannel open(int number) {
+        try {
+            return FileChannel.open(getFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to open write-ahead log", cause);
+        }
+    }
+    private int[] getFileNumbers() {
+        final String[] names = dir.list((d, name) -> name.matches("^" + FILE_PREFIX.replace(".", "\\.") + "\\d+$"));
+        return names == null ? new int[0] : Arrays.stream(names).mapToInt(name -> Integer.parseInt(name.substring(FILE_PREFIX.length()))).sorted().toArray();
+    }
+    private File getFile(int number) {
+        return new File(dir, FILE_PREFIX + number);
+    }
+    private static int crcOf(ByteBuffer data) {
+        final CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int)crc.getValue();
+    }
+    private static String getString(ByteBuffer data) {
+        final byte[] bytes = new byte[data.getShort()];
+        data.get(bytes);
+        return new String(bytes);
+    }
+    private static int[] getInts(ByteBuffer data) {
+        final int[] ints = new int[data.getInt()];
+        data.asIntBuffer().get(ints);
+        data.position(data.position() + ints.length * Integer.BYTES);
+        return ints;
+    }
+}
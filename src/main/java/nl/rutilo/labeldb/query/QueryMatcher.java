@@ -1,34 +1,66 @@
 package nl.rutilo.labeldb.query;
 
 import nl.rutilo.labeldb.Bits;
+import nl.rutilo.labeldb.BitsExpression;
 import nl.rutilo.labeldb.Longs;
 
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.PrimitiveIterator;
 
 public class QueryMatcher {
     private final Map<String, Bits> labels;
+    private final Map<String, Bits> countedLabels;
+    private final Map<String, Bits> usedLabels = new HashMap<>(); // by the query
     private final Longs dates;
 
-    public QueryMatcher(Map<String, Bits> labels, Longs dates) {
+    public QueryMatcher(Map<String, Bits> labels, Longs dates) { this(labels, labels, dates); }
+    /** Matcher of which the counts per label are of the countedLabels plus the labels that
+      * the query refers to, so labels that are not loaded yet do not have to be loaded.
+      */
+    public QueryMatcher(Map<String, Bits> labels, Map<String, Bits> countedLabels, Longs dates) {
         this.labels = labels;
+        this.countedLabels = countedLabels;
         this.dates = dates;
     }
 
     public static class MatchResults {
         public final int[] indices;
+        /** Number of matching indices, which is more than the number of indices when only a page was requested */
+        public final int matchCount;
         public final Map<String, Integer> resultCountPerLabel;
 
         public MatchResults(Bits bits, Map<String, Integer> counts) {
-            indices = bits.getIndices();
+            this(bits.getIndices(), bits.countSetBits(), counts);
+        }
+        public MatchResults(int[] indices, int matchCount, Map<String, Integer> counts) {
+            this.indices = indices;
+            this.matchCount = matchCount;
+            resultCountPerLabel = Collections.unmodifiableMap(counts);
+        }
+    }
+
+    /** Like MatchResults, but the matching indices are walked by a cursor instead
+      * of being copied into an array, for when only part of them is needed.
+      */
+    public static class MatchCursor {
+        private final Bits bits;
+        public final Map<String, Integer> resultCountPerLabel;
+
+        public MatchCursor(Bits bits, Map<String, Integer> counts) {
+            this.bits = bits;
             resultCountPerLabel = Collections.unmodifiableMap(counts);
         }
+        /** Number of matching indices */
+        public int count() { return bits.countSetBits(); }
+        /** New cursor over the matching indices in ascending order */
+        public PrimitiveIterator.OfInt indices() { return bits.iterator(); }
     }
 
     public Bits match(String query) {
         final QueryNode tree = new QueryParser(query).tree;
-        return match(getAll(), tree);
+        return toExpression(tree).evaluate();
     }
 
     public MatchResults getMatchResultsFor(String query) {
@@ -36,9 +68,24 @@ public class QueryMatcher {
         return new MatchResults(match, getCountPerLabelFor(match));
     }
 
+    /** Only holds the indices of the requested page of matches (in ascending order), while
+      * the counts are over all matches. The earlier matches are skipped, not walked.
+      */
+    public MatchResults getMatchResultsFor(String query, int offset, int limit) {
+        final Bits match = match(query);
+        return new MatchResults(match.getIndices(offset, limit), match.countSetBits(), getCountPerLabelFor(match));
+    }
+
+    public MatchCursor getMatchCursorFor(String query) {
+        final Bits match = match(query);
+        return new MatchCursor(match, getCountPerLabelFor(match));
+    }
+
     private Map<String, Integer> getCountPerLabelFor(Bits match) {
         final Map<String, Integer> counts = new HashMap<>();
-        labels.forEach((label, bits) -> {
+        final Map<String, Bits> toCount = new HashMap<>(countedLabels);
+        toCount.putAll(usedLabels);
+        toCount.forEach((label, bits) -> {
             final int count = bits.countOverlapWith(match);
             if(count > 0) counts.put(label, count);
         });
@@ -55,60 +102,45 @@ public class QueryMatcher {
         return bits;
     }
 
-    private Bits match(Bits bits, QueryNode node) {
-        final Bits result;
+    /** Only the Bits of the leaves are created (labels are used as is), the rest
+      * of the tree is evaluated a bucket at a time by BitsExpression.
+      */
+    private BitsExpression toExpression(QueryNode node) {
         switch(node.token.type) {
-//            case GROUP: {
-//                result = match(bits, node.left);
-//                break;
-//            }
             case AND: {
-                final Bits leftBits = match(bits, node.left);
-                final Bits rightBits = match(bits, node.right);
-                result = leftBits.retainOverlapWith(rightBits);
-                break;
-            }
-            case OR: {
-                final Bits leftBits = match(bits, node.left);
-                final Bits rightBits = match(bits, node.right);
-                result = leftBits.joinWith(rightBits);
-                break;
-            }
-            case NOT: {
-                final Bits leftBits = match(bits, node.left);
-                result = leftBits.reverse();
-                break;
+                final long[] dateRange = getDateRange(node);
+                if(dateRange != null) return BitsExpression.of(dates.asBits(dateRange[0], dateRange[1]));
+                return BitsExpression.and(toExpression(node.left), toExpression(node.right));
             }
+            case OR:        return BitsExpression.or(toExpression(node.left), toExpression(node.right));
+            case NOT:       return BitsExpression.not(toExpression(node.left));
             default:
-            case NOP: {
-                result = bits;
-                break;
-            }
-            case ID: {
-                result = new Bits();
-                result.set((int)node.token.value);
-                break;
-            }
-            case UNLABELED: {
-                result = getUnlabeled();
-                break;
-            }
+            case NOP:       return BitsExpression.of(getAll());
+            case ID:        return BitsExpression.of(new Bits().set((int)node.token.value));
+            case UNLABELED: return BitsExpression.of(getUnlabeled());
             case TEXT: {
                 final Bits labelBits = labels.get(node.token.text);
-                result = labelBits == null ? new Bits() : labelBits.copy();
-                break;
+                if(labelBits != null) usedLabels.put(node.token.text, labelBits);
+                return BitsExpression.of(labelBits == null ? new Bits() : labelBits);
             }
             case LTE_DATE:
-            case LT_DATE: {
-                result = dates.asBits(0, node.token.value);
-                break;
-            }
+            case LT_DATE:   return BitsExpression.of(dates.asBits(0, node.token.value));
             case GTE_DATE:
-            case GT_DATE: {
-                result = dates.asBits(node.token.value, Long.MAX_VALUE);
-                break;
-            }
+            case GT_DATE:   return BitsExpression.of(dates.asBits(node.token.value, Long.MAX_VALUE));
         }
-        return result;
+    }
+
+    /** The { from, upto } dates of an AND of a lower and an upper date bound (which is what a
+      * date or date range is split into) so the dates are searched once for both, or null.
+      */
+    private static long[] getDateRange(QueryNode and) {
+        if(and.left == null || and.right == null) return null;
+        final QueryNode lower = isLowerDateBound(and.left) ? and.left : and.right;
+        final QueryNode upper = lower == and.left ? and.right : and.left;
+        if(!isLowerDateBound(lower) || !upper.token.isOneOf(TokenType.LT_DATE, TokenType.LTE_DATE)) return null;
+        return new long[] { Math.max(0, lower.token.value), upper.token.value };
+    }
+    private static boolean isLowerDateBound(QueryNode node) {
+        return node.token.isOneOf(TokenType.GT_DATE, TokenType.GTE_DATE);
     }
 }
@@ -36,6 +36,18 @@ public class ByteArraySource {
         return s;
     }
 
+    /** Reads an int as added by ByteArrayTarget.addVarInt(), or -1 when there is no more data */
+    public int getVarInt() {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            if(data == null || offset >= data.length) return -1;
+            final int b = data[offset++];
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) return value;
+        }
+        return -1;
+    }
+
     public long[] getLongs(long[] array, int arrayOffset, int count0) {
         final int count = Math.min(count0, array.length - arrayOffset);
         for(int i=0; i<count; i++) array[arrayOffset + i] = getLong();
@@ -62,6 +74,13 @@ public class ByteArraySource {
         }
         return target;
     }
+    public byte[] copyInto(byte[] target, int targetOffset, int length) {
+        if(data != null) {
+            System.arraycopy(data, offset, target, targetOffset, length);
+            offset += length;
+        }
+        return target;
+    }
     public byte[] copyBytes(int length) {
         return copyInto(new byte[length]);
     }
@@ -53,6 +53,20 @@ public class ByteArrayTarget {
         return this;
     }
 
+    /** Adds a non-negative int in 1 to 5 bytes, 7 bits per byte, low bits first */
+    public ByteArrayTarget addVarInt(int i) {
+        int value = i;
+        while((value & ~0x7F) != 0) {
+            add((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        return add((byte)value);
+    }
+    /** Number of bytes addVarInt() adds for given int */
+    public static int varIntSize(int i) {
+        return i < 0 ? 5 : (38 - Integer.numberOfLeadingZeros(i | 1)) / 7;
+    }
+
     public ByteArrayTarget add(long[] array) {
         return add(array, 0, array.length);
     }
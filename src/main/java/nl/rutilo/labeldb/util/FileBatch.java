@@ -0,0 +1,116 @@
+package nl.rutilo.labeldb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Files that are replaced or deleted together. replace() only writes a temporary file
+  * and commit() then syncs all of them, renames them over their targets and syncs each
+  * of their directories once. So the replacements are durable without a sync per file
+  * as it is written, while a reader never sees a partially written file.<p>
+  *
+  * Can be filled from multiple threads.
+  */
+public final class FileBatch {
+    private final List<File> targets = new ArrayList<>(); // written to target.tmp
+    private final List<File> deletes = new ArrayList<>();
+    private final Set<File> dirs = new LinkedHashSet<>(); // of which the entries are altered
+
+    /** Writes the data to a temporary file that replaces target on commit() */
+    public FileBatch replace(File target, byte[] data) {
+        final File dir = target.getAbsoluteFile().getParentFile();
+        final boolean isNewDir = !dir.exists() && dir.mkdirs();
+        try(final FileChannel channel = FileChannel.open(tempOf(target).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            while(buffer.hasRemaining()) channel.write(buffer);
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to write to file", cause);
+        }
+        synchronized(this) {
+            targets.add(target);
+            dirs.add(dir);
+            if(isNewDir) dirs.add(dir.getParentFile());
+        }
+        return this;
+    }
+    /** Deletes target (if it exists) on commit() */
+    public synchronized FileBatch delete(File target) {
+        deletes.add(target);
+        dirs.add(target.getAbsoluteFile().getParentFile());
+        return this;
+    }
+    /** Adds the files of the other batch to this one, which then no longer has to be committed */
+    public FileBatch add(FileBatch other) {
+        final List<File> otherTargets;
+        final List<File> otherDeletes;
+        final Set<File> otherDirs;
+        synchronized(other) {
+            otherTargets = new ArrayList<>(other.targets);
+            otherDeletes = new ArrayList<>(other.deletes);
+            otherDirs = new LinkedHashSet<>(other.dirs);
+        }
+        synchronized(this) {
+            targets.addAll(otherTargets);
+            deletes.addAll(otherDeletes);
+            dirs.addAll(otherDirs);
+        }
+        return this;
+    }
+
+    /** Syncs the written files, moves them to their targets, deletes and then syncs the directories */
+    public void commit() {
+        final List<File> toReplace;
+        final List<File> toDelete;
+        final List<File> toSync;
+        synchronized(this) {
+            toReplace = new ArrayList<>(targets);
+            toDelete = new ArrayList<>(deletes);
+            toSync = new ArrayList<>(dirs);
+            targets.clear();
+            deletes.clear();
+            dirs.clear();
+        }
+        try {
+            for(final File target : toReplace) { // the data should be on disk before a rename makes it visible
+                try(final FileChannel channel = FileChannel.open(tempOf(target).toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                }
+            }
+            for(final File target : toReplace) {
+                Files.move(tempOf(target).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            for(final File target : toDelete) Files.deleteIfExists(target.toPath());
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to replace files", cause);
+        }
+        toSync.forEach(FileBatch::syncDirectory);
+    }
+
+    private static File tempOf(File target) {
+        return new File(target.getPath() + ".tmp");
+    }
+    /** Makes the renames and deletes in dir durable. Not all platforms can open a directory
+      * (Windows can't), so there a failure to open it is ignored.
+      */
+    private static void syncDirectory(File dir) {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch(final IOException ignored) {
+            return;
+        }
+        try(channel) {
+            channel.force(true);
+        } catch(final IOException cause) {
+            throw new RuntimeException("Unable to sync directory " + dir, cause);
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package nl.rutilo.labeldb.util;
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Comparator;
 import java.util.Objects;
 import java.util.Optional;
@@ -155,6 +158,27 @@ public class Utils {
         }
     }
 
+    /** Read-only memory map of the given file, which stays valid after the file is replaced (see replaceFileWith) */
+    public static Optional<MappedByteBuffer> mapFile(File file) {
+        try(final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Optional.of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (final IOException ignored) {
+            return Optional.empty();
+        }
+    }
+
+    /** False on Windows, where a file cannot be replaced (see replaceFileWith) while it is memory mapped */
+    public static boolean canReplaceMappedFiles() {
+        return !System.getProperty("os.name", "").startsWith("Windows");
+    }
+    /** Writes the data to a temporary file that is then synced and renamed to target. This
+      * way a reader never sees a partially written file (not even after a crash) and an
+      * existing memory map of the old file is not affected. See FileBatch to replace
+      * multiple files with a single sync.
+      */
+    public static void replaceFileWith(File target, byte[] data) {
+        new FileBatch().replace(target, data).commit();
+    }
     /** Use this instead of File.write when IOException should be wrapped in a RuntimeException */
     public static void writeByteArrayToFile(File target, byte[] data) {
         try {
@@ -194,6 +218,16 @@ public class Utils {
         }
     }
 
+    /** Thread.join() that rethrows InterruptedException as a runtime exception, like sleep() */
+    public static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
     public static void sleep(int ms) {
         try {
             Thread.sleep(ms);
@@ -0,0 +1,58 @@
+package nl.rutilo.labeldb;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BitmapKernelsTest {
+    private static final Random random = new Random(0); // pseudo-random: each test the same numbers
+    private static final int LONG_COUNT = Bits.BUCKET_LONG_COUNT;
+
+    @Test public void testKernels() {
+        for(int n=0; n<20; n++) {
+            final long[] a = randomWords(n % 4 == 0 ? 0 : n * 5);
+            final long[] b = randomWords(n * 7);
+            final BitSet and    = BitSet.valueOf(a); and.and(BitSet.valueOf(b));
+            final BitSet or     = BitSet.valueOf(a); or.or(BitSet.valueOf(b));
+            final BitSet andNot = BitSet.valueOf(a); andNot.andNot(BitSet.valueOf(b));
+            final BitSet xor    = BitSet.valueOf(a); xor.xor(BitSet.valueOf(b));
+            final long[] result = new long[LONG_COUNT];
+
+            assertThat(BitmapKernels.and(a, b, result), is(and.cardinality()));
+            assertThat(BitSet.valueOf(result), is(and));
+            assertThat(BitmapKernels.or(a, b, result), is(or.cardinality()));
+            assertThat(BitSet.valueOf(result), is(or));
+            assertThat(BitmapKernels.andNot(a, b, result), is(andNot.cardinality()));
+            assertThat(BitSet.valueOf(result), is(andNot));
+            assertThat(BitmapKernels.xor(a, b, result), is(xor.cardinality()));
+            assertThat(BitSet.valueOf(result), is(xor));
+            assertThat(BitmapKernels.andCardinality(a, b), is(and.cardinality()));
+            assertThat(BitmapKernels.cardinality(a), is(BitSet.valueOf(a).cardinality()));
+            assertThat(BitmapKernels.isAnySet(a), is(!BitSet.valueOf(a).isEmpty()));
+
+            final long[] words = a.clone();
+            assertThat(BitmapKernels.andInto(words, b), is(!and.isEmpty()));
+            assertThat(BitSet.valueOf(words), is(and));
+            System.arraycopy(a, 0, words, 0, LONG_COUNT);
+            BitmapKernels.orInto(words, b);
+            assertThat(BitSet.valueOf(words), is(or));
+            System.arraycopy(a, 0, words, 0, LONG_COUNT);
+            assertThat(BitmapKernels.andNotInto(words, b), is(!andNot.isEmpty()));
+            assertThat(BitSet.valueOf(words), is(andNot));
+            System.arraycopy(a, 0, words, 0, LONG_COUNT);
+            assertThat(BitmapKernels.xorInto(words, b), is(!xor.isEmpty()));
+            assertThat(BitSet.valueOf(words), is(xor));
+            assertThat(BitmapKernels.xorInto(words, words), is(false));
+        }
+    }
+
+    private static long[] randomWords(int count) {
+        final long[] words = new long[LONG_COUNT];
+        for(int i=0; i<count; i++) words[random.nextInt(LONG_COUNT)] |= random.nextLong();
+        return words;
+    }
+}
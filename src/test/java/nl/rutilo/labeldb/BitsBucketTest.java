@@ -196,4 +196,27 @@ public class BitsBucketTest {
         final BitsBucket bucketOnes2 = BitsBucket.from(dataOnes);
         assertThat(bucketOnes2.countSetBits(), is(bucketOnes.size()));
     }
+    @Test public void testReadWriteRuns() {
+        final BitsBucket bucket = new BitsBucket();
+        for(int i=100; i<3000; i++) bucket.set(i, true);
+        for(int i=5000; i<5100; i++) bucket.set(i, true);
+        bucket.set(8000, true);
+
+        final byte[] data = bucket.toByteArray();
+        assertThat(data.length, is(Integer.BYTES + 1 + (1 + 2) + (2 + 1) + (2 + 1))); // marker, runCount, (gap, length-1)*
+        final BitsBucket bucket2 = BitsBucket.from(data);
+        assertThat(bucket2.getIndices(), is(bucket.getIndices()));
+    }
+    @Test public void testReadWriteSparse() {
+        final BitsBucket bucket = new BitsBucket();
+        final int[] ids = { 0, 1, 6, 500, 1234, 2300, 5000, 5300, 7261, 8190 };
+        for(final int id : ids) bucket.set(id, true);
+
+        final byte[] data = bucket.toByteArray();
+        assertThat(data.length, is(Integer.BYTES + 1 + 3 + (ids.length - 3) * 2)); // marker, size, deltas of 1 or 2 bytes
+        assertThat(BitsBucket.from(data).getIndices(), is(ids));
+
+        final byte[] emptyData = new BitsBucket().toByteArray();
+        assertThat(BitsBucket.from(emptyData).isEmpty(), is(true));
+    }
 }
\ No newline at end of file
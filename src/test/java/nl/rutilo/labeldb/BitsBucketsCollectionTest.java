@@ -1,10 +1,13 @@
 package nl.rutilo.labeldb;
 
+import nl.rutilo.labeldb.util.ByteArrayTarget;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -190,6 +193,23 @@ public class BitsBucketsCollectionTest {
         assertThat(BitsBucketsCollection.from(buckets1).joinWith(buckets2).getIndices(), is(joinedIds));
     }
 
+    @Test public void testCopyOnWrite() {
+        final BitsBucketsCollection buckets = new BitsBucketsCollection();
+        buckets.set(1, true).set(9000, true);
+        buckets.clearDirty();
+
+        final BitsBucketsCollection copy = buckets.copy();
+        copy.set(2, true);
+        assertThat(buckets.getIndices(), is(new int[] { 1, 9000 }));
+        assertThat(copy.getIndices(), is(new int[] { 1, 2, 9000 }));
+        assertFalse(buckets.isDirty());
+
+        buckets.set(9001, true);
+        assertTrue(buckets.isDirty());
+        assertThat(buckets.getIndices(), is(new int[] { 1, 9000, 9001 }));
+        assertThat(copy.getIndices(), is(new int[] { 1, 2, 9000 }));
+    }
+
     @Test public void testIsEmpty() {
         final BitsBucketsCollection buckets = new BitsBucketsCollection();
         assertTrue(buckets.isEmpty());
@@ -239,4 +259,91 @@ public class BitsBucketsCollectionTest {
         //    BitsBucketsCollection.from(buckets.toByteArray());
         //});
     }
+    @Test public void testChecksum() {
+        final BitsBucketsCollection buckets = new BitsBucketsCollection();
+        for(final int id : testIds) buckets.set(id, true);
+        final byte[] data = buckets.toByteArray();
+
+        assertTrue(BitsBucketsCollection.from(data).hasChecksum());
+        assertThat(BitsBucketsCollection.from(toFirstVersion(testIds)).getIndices(), is(testIds));
+
+        final BitsBucketsCollection mapped = BitsBucketsCollection.from(ByteBuffer.wrap(data));
+        assertTrue(mapped.hasChecksum());
+        assertTrue(mapped.verify());
+
+        data[data.length - 100] ^= 1; // in the bitmap of the last bucket
+        try {
+            BitsBucketsCollection.from(data);
+            fail("Expected throw: checksum mismatch");
+        } catch(final IllegalStateException expected) {
+            assertThat(expected.getMessage(), containsString("Checksum"));
+        }
+        assertFalse(BitsBucketsCollection.from(ByteBuffer.wrap(data)).verify());
+    }
+    @Test public void testMappedDirectory() {
+        final BitsBucketsCollection buckets = new BitsBucketsCollection();
+        for(int id=0; id<MAX_ID / 2; id += 3) buckets.set(id, true); // bitmaps
+        for(final int id : Arrays.copyOf(testIds, 200)) buckets.set(id, true); // arrays in the upper half
+        final byte[] data = buckets.toByteArray();
+
+        final BitsBucketsCollection mapped = BitsBucketsCollection.from(ByteBuffer.wrap(data));
+        assertThat(mapped.countSetBits(), is(buckets.countSetBits()));
+        assertThat(mapped.lastSetIndex(), is(buckets.lastSetIndex()));
+        for(final int index : new int[] { 0, 1, 64, 1000, 8191, 8192, 100_000, MAX_ID / 2, MAX_ID }) {
+            assertThat(mapped.rank(index), is(buckets.rank(index)));
+            assertThat(mapped.isAnySet(index, Math.min(MAX_ID + 1, index + 2)), is(buckets.isAnySet(index, Math.min(MAX_ID + 1, index + 2))));
+        }
+        for(final int rank : new int[] { 0, 1, 2730, 2731, 50_000, buckets.countSetBits() - 1 }) {
+            assertThat(mapped.select(rank), is(buckets.select(rank)));
+        }
+        assertThat(mapped.getIndices(), is(buckets.getIndices()));
+
+        // The bitmaps are not read on open, so a mangled one is only found by verify()
+        data[data.length / 2] ^= 1;
+        final BitsBucketsCollection mangled = BitsBucketsCollection.from(ByteBuffer.wrap(data));
+        assertThat(mangled.countSetBits(), is(buckets.countSetBits()));
+        assertFalse(mangled.verify());
+    }
+    /** Serialized form of the first version: bucketCount, (bucketIndex, length, bucket data)* without version and checksum */
+    private static byte[] toFirstVersion(int[] sortedIds) {
+        final ByteArrayTarget target = new ByteArrayTarget();
+        final BitsBucket[] buckets = new BitsBucket[Bits.COLLECTION_BUCKETS_COUNT];
+        for(final int id : sortedIds) {
+            final int bucketIndex = id / Bits.BUCKET_BITS_COUNT;
+            if(buckets[bucketIndex] == null) buckets[bucketIndex] = new BitsBucket();
+            buckets[bucketIndex].set(id % Bits.BUCKET_BITS_COUNT, true);
+        }
+        target.add((short)Arrays.stream(buckets).filter(Objects::nonNull).count());
+        for(short i=0; i<buckets.length; i++) {
+            if(buckets[i] == null) continue;
+            final byte[] data = buckets[i].toByteArray();
+            target.add(i).add((short)data.length).add(data);
+        }
+        return target.toByteArray();
+    }
+    @Test public void testCodecs() {
+        final BitsBucketsCollection buckets = new BitsBucketsCollection();
+        for(int id=0; id<MAX_ID; id += 3) buckets.set(id, true); // bitmaps with a repeating pattern
+        for(final int id : Arrays.copyOf(testIds, 200)) buckets.set(id, true);
+        final int[] indices = buckets.getIndices();
+
+        final byte[] plain = buckets.toByteArray(CollectionCodec.NONE);
+        final byte[] compressed = buckets.toByteArray(CollectionCodec.LZ);
+        assertTrue(compressed.length < plain.length / 4);
+        assertThat(BitsBucketsCollection.from(plain).getIndices(), is(indices));
+        assertThat(BitsBucketsCollection.from(compressed).getIndices(), is(indices));
+        assertThat(BitsBucketsCollection.from(ByteBuffer.wrap(compressed)).getIndices(), is(indices));
+
+        final byte[] random = new byte[10_000];
+        new Random(0).nextBytes(random);
+        for(final byte[] data : new byte[][] { new byte[0], { 1, 2, 3 }, new byte[1000], random, compressed }) {
+            assertThat(CollectionCodec.LZ.decode(CollectionCodec.LZ.encode(data)), is(data));
+        }
+        try {
+            CollectionCodec.LZ.decode(Arrays.copyOf(CollectionCodec.LZ.encode(plain), 100));
+            fail("Expected throw: truncated data");
+        } catch(final IllegalStateException expected) {
+            assertThat(expected.getMessage(), containsString("Mangled"));
+        }
+    }
 }
\ No newline at end of file
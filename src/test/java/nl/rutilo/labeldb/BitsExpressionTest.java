@@ -0,0 +1,87 @@
+package nl.rutilo.labeldb;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static nl.rutilo.labeldb.BitsExpression.and;
+import static nl.rutilo.labeldb.BitsExpression.not;
+import static nl.rutilo.labeldb.BitsExpression.of;
+import static nl.rutilo.labeldb.BitsExpression.or;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BitsExpressionTest {
+    private static final Random random = new Random(0); // pseudo-random: each test the same numbers
+    private static final int MAX_ID = Bits.COLLECTION_BITS_COUNT * 3;
+
+    @Test public void testAndOrNot() {
+        final Bits a = randomBits(20_000, MAX_ID);
+        final Bits b = randomBits(50_000, MAX_ID);
+        final Bits c = randomBits(1_000, MAX_ID / 2);
+        final Bits d = new Bits();
+        for(int i=10_000; i<400_000; i++) d.set(i);
+
+        assertThat(and(of(a), of(b)).evaluate().getIndices(), is(a.copy().retainOverlapWith(b).getIndices()));
+        assertThat(or(of(a), of(c)).evaluate().getIndices(), is(a.copy().joinWith(c).getIndices()));
+        assertThat(not(of(c)).evaluate().getIndices(), is(c.copy().reverse().getIndices()));
+        assertThat(and(and(and(of(a), of(b)), of(c)), not(of(d))).evaluate().getIndices(),
+            is(a.copy().retainOverlapWith(b).retainOverlapWith(c).removeOverlapWith(d).getIndices()));
+        assertThat(and(or(of(a), of(c)), or(of(b), of(d))).evaluate().getIndices(),
+            is(a.copy().joinWith(c).retainOverlapWith(b.copy().joinWith(d)).getIndices()));
+        assertThat(not(or(of(c), of(d))).evaluate().getIndices(), is(c.copy().joinWith(d).reverse().getIndices()));
+    }
+    @Test public void testNotOfSparseBits() {
+        // trailing empty buckets in a collection and a collection that is missing completely
+        final Bits sparse = new Bits().set(0, 600_000);
+        final Bits gaps = new Bits().set(5, 3 * Bits.COLLECTION_BITS_COUNT + 7);
+        assertThat(not(of(sparse)).evaluate().countSetBits(), is(599_999));
+        assertThat(sparse.copy().reverse().countSetBits(), is(599_999));
+        assertThat(not(of(gaps)).evaluate().getIndices(), is(gaps.copy().reverse().getIndices()));
+        assertThat(gaps.copy().reverse().countSetBits(), is(3 * Bits.COLLECTION_BITS_COUNT + 6));
+        assertThat(gaps.copy().reverse().reverse().getIndices(), is(gaps.getIndices()));
+    }
+    @Test public void testNary() {
+        final Bits[] bitsList = new Bits[12];
+        for(int i=0; i<bitsList.length; i++) bitsList[i] = randomBits(150_000 - i * 10_000, MAX_ID / 16);
+        final BitsExpression[] operands = new BitsExpression[bitsList.length];
+        for(int i=0; i<bitsList.length; i++) operands[i] = of(bitsList[i]);
+
+        final Bits expectedAnd = bitsList[0].copy();
+        final Bits expectedOr = bitsList[0].copy();
+        for(int i=1; i<bitsList.length; i++) { expectedAnd.retainOverlapWith(bitsList[i]); expectedOr.joinWith(bitsList[i]); }
+        assertThat(expectedAnd.isAnySet(), is(true));
+
+        assertThat(and(operands).evaluate().getIndices(), is(expectedAnd.getIndices()));
+        assertThat(or(operands).evaluate().getIndices(), is(expectedOr.getIndices()));
+
+        // nested binary operations are flattened with the same result
+        BitsExpression nestedAnd = operands[0];
+        for(int i=1; i<operands.length; i++) nestedAnd = and(nestedAnd, operands[i]);
+        assertThat(nestedAnd.evaluate().getIndices(), is(expectedAnd.getIndices()));
+
+        // and with not operands is an and-not
+        assertThat(and(of(bitsList[0]), not(of(bitsList[1])), not(of(bitsList[2]))).evaluate().getIndices(),
+            is(bitsList[0].copy().removeOverlapWith(bitsList[1]).removeOverlapWith(bitsList[2]).getIndices()));
+    }
+    @Test public void testOperandsUntouched() {
+        final Bits a = randomBits(5_000, MAX_ID);
+        final Bits b = randomBits(5_000, MAX_ID);
+        final int[] aIndices = a.getIndices();
+        final int[] bIndices = b.getIndices();
+        or(not(of(a)), and(of(b), of(a))).evaluate();
+        assertThat(a.getIndices(), is(aIndices));
+        assertThat(b.getIndices(), is(bIndices));
+    }
+    @Test public void testEmpty() {
+        assertThat(and(of(new Bits()), of(randomBits(100, MAX_ID))).evaluate().getIndices(), is(new int[0]));
+        assertThat(not(of(new Bits())).evaluate().getIndices(), is(new int[] { 0 }));
+        assertThat(not(of(new Bits().set(0, 1, 2))).evaluate().getIndices(), is(new int[0]));
+    }
+
+    private static Bits randomBits(int count, int maxId) {
+        final Bits bits = new Bits();
+        for(int i=0; i<count; i++) bits.set(random.nextInt(maxId));
+        return bits;
+    }
+}
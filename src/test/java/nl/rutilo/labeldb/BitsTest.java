@@ -3,6 +3,7 @@ package nl.rutilo.labeldb;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -165,6 +166,150 @@ public class BitsTest {
         assertThat(bits3.copy().joinWith(bits).getIndices(), is(testIds));
     }
 
+    @Test public void testAllOperations() {
+        final Bits bits = new Bits("all").set(testIds);
+        final Bits bits2 = new Bits("other").set(otherIds);
+        final Bits bits3 = new Bits("few").set(testIds[0], testIds[10], otherIds[20], 5);
+
+        assertThat(Bits.andAll(bits, bits2, bits3).getIndices(),
+            is(bits.copy().retainOverlapWith(bits2).retainOverlapWith(bits3).getIndices()));
+        assertThat(Bits.orAll(bits, bits2, bits3).getIndices(),
+            is(bits.copy().joinWith(bits2).joinWith(bits3).getIndices()));
+        assertThat(Bits.andNotAll(bits, bits2, bits3).getIndices(),
+            is(bits.copy().removeOverlapWith(bits2).removeOverlapWith(bits3).getIndices()));
+        assertThat(Bits.andNotAll(bits3, bits).getIndices(), is(bits3.copy().removeOverlapWith(bits).getIndices()));
+        assertThat(Bits.andAll(bits).getIndices(), is(testIds));
+        assertThat(Bits.andAll().getIndices(), is(new int[0]));
+    }
+
+    @Test public void testIterate() {
+        final Bits bits = new Bits("iterate").set(testIds);
+        final PrimitiveIterator.OfInt iterator = bits.iterator();
+        for(final int id : testIds) assertThat(iterator.nextInt(), is(id));
+        assertFalse(iterator.hasNext());
+        assertFalse(new Bits().iterator().hasNext());
+
+        for(int i=1; i<1000; i++) {
+            assertThat(bits.nextSetBit(testIds[i - 1] + 1), is(testIds[i]));
+            assertThat(bits.previousSetBit(testIds[i] - 1), is(testIds[i - 1]));
+            assertThat(bits.nextSetBit(testIds[i]), is(testIds[i]));
+        }
+        assertThat(bits.nextSetBit(GAP_START), is(bits.nextSetBit(GAP_END)));
+        assertThat(bits.previousSetBit(GAP_END), is(bits.previousSetBit(GAP_START)));
+        assertThat(bits.nextSetBit(testIds[testIds.length - 1] + 1), is(-1));
+        assertThat(bits.previousSetBit(testIds[0] - 1), is(-1));
+        assertThat(bits.previousSetBit(Integer.MAX_VALUE), is(testIds[testIds.length - 1]));
+    }
+
+    @Test public void testRankSelect() {
+        final Bits bits = new Bits("rankSelect").set(testIds);
+        for(int i=0; i<testIds.length; i += 997) {
+            assertThat(bits.select(i), is(testIds[i]));
+            assertThat(bits.rank(testIds[i]), is(i));
+            assertThat(bits.rank(testIds[i] + 1), is(i + 1));
+        }
+        assertThat(bits.select(testIds.length), is(-1));
+        assertThat(bits.select(-1), is(-1));
+        assertThat(bits.rank(Integer.MAX_VALUE), is(testIds.length));
+        assertThat(bits.getIndices(500_000, 50), is(Arrays.copyOfRange(testIds, 500_000, 500_050)));
+        assertThat(bits.getIndices(testIds.length - 2, 50), is(Arrays.copyOfRange(testIds, testIds.length - 2, testIds.length)));
+        assertThat(bits.getIndices(testIds.length, 50), is(new int[0]));
+
+        bits.unset(testIds[0]); // alterations drop the directory
+        assertThat(bits.select(0), is(testIds[1]));
+        bits.set(testIds[0]);
+        assertThat(bits.select(0), is(testIds[0]));
+    }
+
+    @Test public void testSetBatch() {
+        final int[] unsorted = new int[200_000];
+        for(int i=0; i<unsorted.length; i++) unsorted[i] = random.nextInt(i < 100_000 ? MAX_ID : 10_000); // dense start, duplicates
+        final int[] unsortedCopy = unsorted.clone();
+        final Bits one = new Bits("oneByOne");
+        for(final int index : unsorted) one.set(index);
+        final Bits batch = new Bits("batch").set(1, 3, 600_000).set(unsorted);
+        one.set(1, 3, 600_000);
+
+        assertThat(batch.getIndices(), is(one.getIndices()));
+        assertThat(batch.isSet(IntStream.of(unsorted).max().getAsInt()), is(true));
+        assertThat(unsorted, is(unsortedCopy)); // input is left untouched
+        assertThat(new Bits().set(5, 5, 5, 8191, 8192).getIndices(), is(new int[] { 5, 8191, 8192 }));
+    }
+
+    @Test public void testRanges() {
+        final BitSet expected = new BitSet();
+        final Bits bits = new Bits("ranges");
+        final int[][] ranges = {
+            { 10, 20 }, { 5_000, 300_000 }, { 8191, 8192 }, { 200_000, 1_200_000 }, { 524_287, 524_288 }, { 63, 64 }, { 0, 0 }
+        };
+        for(int i=0; i<ranges.length; i++) {
+            final int from = ranges[i][0];
+            final int upto = ranges[i][1];
+            switch(i % 3) {
+                case 0: bits.setRange(from, upto);   expected.set(from, upto + 1); break;
+                case 1: bits.flipRange(from, upto);  expected.flip(from, upto + 1); break;
+                case 2: bits.clearRange(from, upto); expected.clear(from, upto + 1); break;
+            }
+            assertThat(bits.getIndices(), is(expected.stream().toArray()));
+        }
+        for(int i=0; i<1000; i++) {
+            final int from = random.nextInt(1_300_000);
+            final int upto = from + random.nextInt(100_000);
+            assertThat(bits.countSetBits(from, upto), is(expected.get(from, upto + 1).cardinality()));
+            assertThat(bits.isAnySet(from, upto), is(!expected.get(from, upto + 1).isEmpty()));
+        }
+        bits.clearRange(0, Integer.MAX_VALUE);
+        assertFalse(bits.isAnySet());
+    }
+
+    @Test public void testCardinality() {
+        final Bits bits = new Bits();
+        assertThat(bits.cardinality(), is(0));
+        bits.set(5).set(5).set(700_000);
+        assertThat(bits.cardinality(), is(2));
+        bits.unset(5, 6);
+        assertThat(bits.cardinality(), is(1));
+        bits.unset(700_000);
+        assertThat(bits.cardinality(), is(0));
+        bits.set(testIds);
+        assertThat(bits.cardinality(), is(testIds.length));
+
+        final Bits other = new Bits().set(otherIds);
+        final Bits[] results = {
+            bits.copy().retainOverlapWith(other),
+            bits.copy().removeOverlapWith(other),
+            bits.copy().joinWith(other),
+            bits.copy().reverse(),
+            bits.copy().setRange(1000, 300_000),
+            bits.copy().clearRange(1000, 3_000_000),
+            bits.copy().flipRange(1000, 3_000_000),
+            Bits.andAll(bits, other),
+            Bits.orAll(bits, other)
+        };
+        for(final Bits result : results) assertThat(result.cardinality(), is(result.getIndices().length));
+        assertThat(bits.cardinality(), is(testIds.length));
+        assertThat(bits.clear().cardinality(), is(0));
+    }
+
+    @Test public void testCopyOnWrite() {
+        final Bits bits = new Bits("original").set(1, 10_000, 600_000);
+        final Bits copy = bits.copy();
+        assertThat(copy.getIndices(), is(new int[] { 1, 10_000, 600_000 }));
+
+        copy.set(2).unset(600_000);
+        assertThat(bits.getIndices(), is(new int[] { 1, 10_000, 600_000 }));
+        assertThat(copy.getIndices(), is(new int[] { 1, 2, 10_000 }));
+
+        bits.set(3).retainOverlapWith(new Bits().set(1, 3, 600_000));
+        assertThat(bits.getIndices(), is(new int[] { 1, 3, 600_000 }));
+        assertThat(copy.getIndices(), is(new int[] { 1, 2, 10_000 }));
+
+        final Bits copyOfCopy = copy.copy();
+        copyOfCopy.joinWith(bits).reverse();
+        assertThat(copy.getIndices(), is(new int[] { 1, 2, 10_000 }));
+        assertThat(bits.getIndices(), is(new int[] { 1, 3, 600_000 }));
+    }
+
     @Test public void testSerialization() {
         final String name = "test-serialization";
         try(final DeletedWhenClosedFile dir = createTempDir()) {
@@ -176,6 +321,50 @@ public class BitsTest {
         }
     }
 
+    @Test public void testOffHeap() {
+        final String name = "test-off-heap";
+        final BitmapArena arena = new BitmapArena();
+        try(final DeletedWhenClosedFile dir = createTempDir()) {
+            new Bits(name, dir).set(testIds).store();
+            final Bits bits = new Bits(name, dir, new Bits.Options().setArena(arena));
+            assertTrue(bits.isValid());
+            assertThat(arena.getBitmapCount() > 0, is(true));
+            assertThat(bits.getIndices(), is(testIds));
+
+            final Bits other = new Bits().set(otherIds);
+            assertThat(bits.countOverlapWith(other), is(new Bits().set(testIds).countOverlapWith(other)));
+            assertThat(Bits.andAll(bits, other).getIndices(), is(new Bits().set(testIds).retainOverlapWith(other).getIndices()));
+
+            final Bits snapshot = bits.snapshot();
+            bits.unset(testIds[0]).set(GAP_START + 1).store();
+            assertThat(snapshot.getIndices(), is(testIds));
+            assertThat(new Bits(name, dir, new Bits.Options().setArena(arena)).countSetBits(), is(testIds.length));
+        }
+    }
+
+    @Test public void testMappedFiles() {
+        final String name = "test-mapped";
+        try(final DeletedWhenClosedFile dir = createTempDir()) {
+            new Bits(name, dir).set(testIds).store();
+            final Bits bits = new Bits(name, dir, new Bits.Options().setMapFiles(true));
+            assertTrue(bits.isValid());
+            assertThat(bits.getIndices(), is(testIds));
+            assertThat(bits.countOverlapWith(new Bits().set(otherIds)), is(new Bits().set(testIds).countOverlapWith(new Bits().set(otherIds))));
+
+            // files are replaced on store, so the mapped data of the snapshot stays the same
+            final Bits snapshot = bits.snapshot();
+            bits.unset(testIds).set(1, 2, 3).store();
+            assertThat(snapshot.getIndices(), is(testIds));
+            assertThat(bits.getIndices(), is(new int[] { 1, 2, 3 }));
+            assertThat(new Bits(name, dir, new Bits.Options().setMapFiles(true)).getIndices(), is(new int[] { 1, 2, 3 }));
+
+            // the checksums of mapped files are verified later, but the count is validated on load
+            new Bits(name, dir).set(testIds).store();
+            assertTrue(new File(bits.dir, "2").delete());
+            assertFalse(new Bits(name, dir, new Bits.Options().setMapFiles(true)).isValid());
+        }
+    }
+
     @Test public void testPerformance() {
 //        final int dbSize = 1_000_000;
 //        final int cmpCount = 1_000;
@@ -197,4 +386,36 @@ public class BitsTest {
 //        });
 //        System.out.println("Total time: " + time + "ms");
     }
+
+    @Test public void testStoreOnlyDirtyCollections() {
+        try(final DeletedWhenClosedFile dir = createTempDir()) {
+            final Bits bits = new Bits("dirty", dir).set(1, Bits.COLLECTION_BITS_COUNT + 1, 3 * Bits.COLLECTION_BITS_COUNT + 1).store();
+            assertThat(bits.isDirty(), is(false));
+            final File labelDir = bits.dir;
+            final long modified = new File(labelDir, "0").lastModified() - 10_000;
+            new File(labelDir, "0").setLastModified(modified);
+
+            bits.set(1); // no change
+            assertThat(bits.isDirty(), is(false));
+            bits.unset(Bits.COLLECTION_BITS_COUNT + 1).set(3 * Bits.COLLECTION_BITS_COUNT + 2);
+            assertThat(bits.isDirty(), is(true));
+            bits.store();
+            assertThat(new File(labelDir, "0").lastModified(), is(modified)); // not rewritten
+            assertThat(new File(labelDir, "1").exists(), is(false)); // emptied
+            assertThat(new Bits("dirty", dir).getIndices(), is(new int[] { 1, 3 * Bits.COLLECTION_BITS_COUNT + 1, 3 * Bits.COLLECTION_BITS_COUNT + 2 }));
+
+            bits.clear().store();
+            assertThat(new Bits("dirty", dir).cardinality(), is(0));
+        }
+    }
+
+    @Test public void testCodec() {
+        try(final DeletedWhenClosedFile dir = createTempDir()) {
+            final Bits.Options compressed = new Bits.Options().setCodec(CollectionCodec.LZ);
+            new Bits("codec", dir, compressed).set(testIds).store();
+            assertThat(new Bits("codec", dir).getIndices(), is(testIds));
+            assertThat(new Bits("codec", dir, new Bits.Options().setMapFiles(true)).getIndices(), is(testIds));
+            assertThat(new Bits("codec", dir, compressed).getIndices(), is(testIds));
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+package nl.rutilo.labeldb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static nl.rutilo.util.testsupport.TestUtils.sleep;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class BucketContainerTest {
+    private static final int BITS = Bits.BUCKET_BITS_COUNT;
+    private static final Random random = new Random(0); // pseudo-random: each test the same numbers
+    private static final BitmapArena arena = new BitmapArena();
+
+    private static final BitSet[] testSets = {
+        new BitSet(),
+        bits(0, 1, 6, 500, 1234, 2300, 5000, 5300, 7261, 8190),
+        bits(0, 2, 5, 500, 1000, 2300, 3000, 4999, 5300, 8191),
+        range(0, BITS - 1),
+        range(100, 3000),
+        range(2000, 2100, 4000, 6000, 8000, 8191),
+        randomBits(300),
+        randomBits(2000),
+        randomBits(7000)
+    };
+    private static final Function<BitSet, BucketContainer>[] forms = formFunctions();
+
+    @SuppressWarnings("unchecked")
+    private static Function<BitSet, BucketContainer>[] formFunctions() {
+        return new Function[] {
+            bs -> toContainer((BitSet)bs).toArrayContainer(),
+            bs -> toContainer((BitSet)bs).toBitmapContainer(),
+            bs -> toContainer((BitSet)bs).toRunContainer(),
+            bs -> arena.store(toContainer((BitSet)bs).toBitmapContainer())
+        };
+    }
+
+    @Test public void testAddRemoveContains() {
+        for(final Function<BitSet, BucketContainer> form : forms) {
+            final BitSet expected = new BitSet();
+            BucketContainer container = form.apply(expected);
+            for(int i=0; i<20_000; i++) {
+                final int bitIndex = i < 10_000 ? random.nextInt(BITS) : 3000 + random.nextInt(200);
+                final boolean set = random.nextInt(3) > 0;
+                expected.set(bitIndex, set);
+                container = set ? container.add(bitIndex) : container.remove(bitIndex);
+                assertThat(container.contains(bitIndex), is(set));
+                assertThat(container.cardinality(), is(expected.cardinality()));
+            }
+            assertThat(toBitSet(container), is(expected));
+        }
+    }
+    @Test public void testFormChanges() {
+        BucketContainer container = new ArrayContainer();
+        for(int i=0; i<BucketContainer.MAX_ARRAY_SIZE; i++) container = container.add(i * 2);
+        assertThat(container, instanceOf(ArrayContainer.class));
+        container = container.add(1);
+        assertThat(container, instanceOf(BitmapContainer.class));
+        container = container.remove(1);
+        assertThat(container, instanceOf(ArrayContainer.class));
+
+        assertThat(toContainer(range(0, BITS - 1)).optimize(), instanceOf(RunContainer.class));
+        assertThat(toContainer(bits(1, 100, 1000)).optimize(), instanceOf(ArrayContainer.class));
+        assertThat(toContainer(randomBits(5000)).optimize(), instanceOf(BitmapContainer.class));
+    }
+    @Test public void testIntersects() {
+        for(final BitSet set : testSets) {
+            for(final Function<BitSet, BucketContainer> form : forms) {
+                final BucketContainer container = form.apply(set);
+                for(int i=0; i<200; i++) {
+                    final int from = random.nextInt(BITS);
+                    final int upto = from + random.nextInt(BITS - from);
+                    final int next = set.nextSetBit(from);
+                    assertThat(container.intersects(from, upto), is(next >= 0 && next <= upto));
+                }
+            }
+        }
+    }
+    @Test public void testNextPreviousSetBit() {
+        for(final BitSet set : testSets) {
+            for(final Function<BitSet, BucketContainer> form : forms) {
+                final BucketContainer container = form.apply(set);
+                assertThat(container.last(), is(set.length() - 1));
+                for(int i=0; i<200; i++) {
+                    final int from = random.nextInt(BITS);
+                    assertThat(container.nextSetBit(from), is(set.nextSetBit(from)));
+                    assertThat(container.previousSetBit(from), is(set.previousSetBit(from)));
+                    assertThat(container.rank(from), is(set.get(0, from).cardinality()));
+                    if(from < set.cardinality()) assertThat(container.select(from), is(set.stream().skip(from).findFirst().getAsInt()));
+                }
+            }
+        }
+    }
+    @Test public void testNot() {
+        for(final BitSet set : testSets) {
+            for(final Function<BitSet, BucketContainer> form : forms) {
+                final BitSet expected = (BitSet)set.clone();
+                expected.flip(0, BITS);
+                assertThat(toBitSet(form.apply(set).not()), is(expected));
+            }
+        }
+    }
+    @Test public void testPairOperations() {
+        for(final BitSet set1 : testSets) {
+            for(final BitSet set2 : testSets) {
+                final BitSet and    = (BitSet)set1.clone(); and.and(set2);
+                final BitSet or     = (BitSet)set1.clone(); or.or(set2);
+                final BitSet andNot = (BitSet)set1.clone(); andNot.andNot(set2);
+
+                for(final Function<BitSet, BucketContainer> form1 : forms) {
+                    for(final Function<BitSet, BucketContainer> form2 : forms) {
+                        final BucketContainer c1 = form1.apply(set1);
+                        final BucketContainer c2 = form2.apply(set2);
+                        final String forms = c1.getClass().getSimpleName() + "," + c2.getClass().getSimpleName();
+
+                        assertThat(forms, toBitSet(c1.and(c2)), is(and));
+                        assertThat(forms, toBitSet(c1.or(c2)), is(or));
+                        assertThat(forms, toBitSet(c1.andNot(c2)), is(andNot));
+                        assertThat(forms, c1.andCardinality(c2), is(and.cardinality()));
+                        assertThat(forms, c1.and(c2).cardinality(), is(and.cardinality()));
+                        assertThat(forms, c1.or(c2).cardinality(), is(or.cardinality()));
+                        assertThat(forms, c1.andNot(c2).cardinality(), is(andNot.cardinality()));
+
+                        // operations should leave the operands untouched
+                        assertThat(toBitSet(c1), is(set1));
+                        assertThat(toBitSet(c2), is(set2));
+                    }
+                }
+            }
+        }
+    }
+    @Test public void testRunCount() {
+        for(final BitSet set : testSets) {
+            int expectedRuns = 0;
+            for(int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(set.nextClearBit(i))) expectedRuns++;
+            for(final Function<BitSet, BucketContainer> form : forms) {
+                assertThat(form.apply(set).runCount(), is(expectedRuns));
+            }
+        }
+    }
+    @Test public void testArenaReleasesEmptySlabs() {
+        final BitmapArena slabArena = new BitmapArena();
+        final BitmapContainer bitmap = toContainer(randomBits(2000)).toBitmapContainer();
+        List<BucketContainer> containers = new ArrayList<>();
+        for(int i=0; i<3 * 1024; i++) containers.add(slabArena.store(bitmap));
+        assertThat(slabArena.getAllocatedBytes(), is(3L * 1024 * Bits.BUCKET_BYTE_SIZE));
+
+        containers = null; // slots are given back by the cleaner, after a gc
+        for(int i=0; i<100 && slabArena.getBitmapCount() > 0; i++) { System.gc(); sleep(10); }
+        assertThat(slabArena.getBitmapCount(), is(0));
+        assertThat(slabArena.getAllocatedBytes(), is(1024L * Bits.BUCKET_BYTE_SIZE)); // one is kept
+
+        slabArena.store(bitmap);
+        assertThat(slabArena.getAllocatedBytes(), is(1024L * Bits.BUCKET_BYTE_SIZE));
+    }
+
+    private static BucketContainer toContainer(BitSet set) {
+        final long[] longs = new long[Bits.BUCKET_LONG_COUNT];
+        final long[] setLongs = set.toLongArray();
+        System.arraycopy(setLongs, 0, longs, 0, setLongs.length);
+        return BitmapContainer.of(longs);
+    }
+    private static BitSet toBitSet(BucketContainer container) {
+        final int[] indices = new int[container.cardinality()];
+        container.copyIndicesIn(indices, 0, 0);
+        final BitSet set = new BitSet();
+        for(final int index : indices) set.set(index);
+        assertThat(BitSet.valueOf(container.toLongs()), is(set));
+        return set;
+    }
+    private static BitSet bits(int... indices) {
+        final BitSet set = new BitSet();
+        for(final int index : indices) set.set(index);
+        return set;
+    }
+    /** Pairs of from,upto (inclusive) */
+    private static BitSet range(int... fromUptos) {
+        final BitSet set = new BitSet();
+        for(int i=0; i<fromUptos.length; i+=2) set.set(fromUptos[i], fromUptos[i+1] + 1);
+        return set;
+    }
+    private static BitSet randomBits(int count) {
+        final BitSet set = new BitSet();
+        for(int i=0; i<count; i++) set.set(random.nextInt(BITS));
+        return set;
+    }
+}
@@ -1,14 +1,23 @@
 package nl.rutilo.labeldb;
 
+import nl.rutilo.labeldb.util.Utils;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static nl.rutilo.util.testsupport.TestUtils.*;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LabelDBTest {
 
@@ -46,6 +55,39 @@ public class LabelDBTest {
         }
     }
 
+    @Test public void testFindWhileAltering() throws InterruptedException {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir();
+            final LabelDB db = new LabelDB(tmpDir)) {
+
+            db.setCommitDebounceMs(1);
+            final int max_index = 20_000;
+            final Thread writer = new Thread(() -> {
+                for(int index = 0; index < max_index; index++) {
+                    db.set(index, 2019_06_01__11_22_33_444L, "a", index % 2 == 0 ? "even" : "odd");
+                    if(index % 1000 == 0) db.commit();
+                }
+            });
+            writer.start();
+
+            int lastCount = 0;
+            while(writer.isAlive()) {
+                final int count = db.find("a").indices.length;
+                assertTrue(count >= lastCount);
+                lastCount = count;
+            }
+            writer.join();
+
+            assertThat(db.find("a").indices.length, is(max_index));
+            assertThat(db.find("a even").indices.length, is(max_index / 2));
+            db.commit();
+
+            try(final LabelDB db2 = new LabelDB(tmpDir)) {
+                assertThat(db2.find("a odd").indices.length, is(max_index / 2));
+                assertThat(db2.firstUnusedIndex(), is(max_index));
+            }
+        }
+    }
+
     @Test public void test() {
         try(final DeletedWhenClosedFile tmpDir = createTempDir();
             final LabelDB db = new LabelDB(tmpDir)) {
@@ -110,4 +152,233 @@ public class LabelDBTest {
             db3.close();
         }
     }
-}
\ No newline at end of file
+
+    @Test public void testLazyLoading() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            try(final LabelDB db = new LabelDB(tmpDir)) {
+                db.set(0, 2019_06_01__11_22_33_444L, "a", "b");
+                db.set(1, 2019_06_02__11_22_33_444L, "a", "c");
+                db.set(2, 2019_06_03__11_22_33_444L, "a", "c");
+            }
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setLoadThreads(1))) {
+                assertThat(db.find("a c").indices, is(new int[] { 1, 2 }));
+            }
+            for(final boolean warmUp : new boolean[] { false, true }) {
+                try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setLazyLoading(true).setWarmUp(warmUp))) {
+                    assertThat(db.find("a c").indices, is(new int[] { 1, 2 }));
+                    assertThat(db.find("b").indices, is(new int[] { 0 }));
+                    assertThat(db.find("a").resultCountPerLabel.get("b"), is(1)); // counted once loaded
+
+                    db.setAutoCommit(false);
+                    db.remove("c", 1);
+                    assertThat(db.find("a c").indices, is(new int[] { 2 }));
+                    db.set("c", 1);
+                    db.commit();
+                }
+            }
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setLazyLoading(true).setWarmUp(false))) {
+                assertThat(db.find("a").indices, is(new int[] { 0, 1, 2 }));
+                assertThat(db.isLoaded("a"), is(true));
+                assertThat(db.isLoaded("b"), is(false)); // not used by the query, so not counted
+                assertThat(db.isLoaded("c"), is(false));
+            }
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setLazyLoading(true))) {
+                db.setAutoCommit(false);
+                db.clear(1); // the labels are cleared when loaded
+                assertThat(db.find("a").indices, is(new int[] { 0, 2 }));
+                db.clear(0);
+                assertThat(db.find("a").indices, is(new int[] { 2 }));
+                assertThat(db.find("b").indices, is(new int[0]));
+                db.commit();
+            }
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setLazyLoading(true))) {
+                assertThat(db.find("a").indices, is(new int[] { 2 }));
+                assertThat(db.find("c").indices, is(new int[] { 2 }));
+            }
+        }
+    }
+
+    @Test public void testPackFile() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            try(final LabelDB db = new LabelDB(tmpDir)) {
+                db.set(0, 2019_06_01__11_22_33_444L, "a", "b");
+                db.set(1, 2019_06_02__11_22_33_444L, "a", "c");
+            }
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setPackFile(true))) {
+                assertThat(db.find("a c").indices, is(new int[] { 1 })); // still in directories
+                db.set(2, 2019_06_03__11_22_33_444L, "a", "c");
+            }
+            assertThat(new File(tmpDir, "labels/" + Utils.nameToFilename("a")).exists(), is(false));
+            assertThat(new File(tmpDir, "labels/" + Utils.nameToFilename("b")).exists(), is(true)); // not stored since
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setPackFile(true))) {
+                assertThat(db.find("a c").indices, is(new int[] { 1, 2 }));
+                assertThat(db.find("a b").indices, is(new int[] { 0 }));
+                db.remove("c", 1);
+            }
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setPackFile(true).setLazyLoading(true))) {
+                assertThat(db.find("a c").indices, is(new int[] { 2 }));
+            }
+        }
+    }
+
+    @Test public void testWriteAheadLog() throws IOException {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir();
+            final DeletedWhenClosedFile crashedDir = createTempDir()) {
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setWriteAheadLog(true))) {
+                db.set(0, 2019_06_01__11_22_33_444L, "a", "b");
+                db.commit();
+                db.setAutoCommit(false);
+                db.set(1, 2019_06_02__11_22_33_444L, "a", "c");
+                db.setRange("d", 10, 20);
+                db.removeRange("d", 15, 20);
+                db.remove("a", 0);
+                db.clear(1);
+                db.set(2, 2019_06_03__11_22_33_444L, "a", "c");
+
+                // copy of the files as they are before the alterations are stored
+                try(final Stream<Path> files = Files.walk(tmpDir.toPath())) {
+                    for(final Path file : files.collect(Collectors.toList())) {
+                        final Path copy = crashedDir.toPath().resolve(tmpDir.toPath().relativize(file));
+                        if(!Files.isDirectory(copy)) Files.copy(file, copy);
+                    }
+                }
+            }
+            final File[] logFiles = crashedDir.listFiles((dir, name) -> name.startsWith("wal."));
+            try(final FileOutputStream out = new FileOutputStream(logFiles[logFiles.length - 1], true)) {
+                out.write(new byte[] { 0, 0, 0, 9, 1, 2 }); // record that was not completely written
+            }
+            for(final File dir : new File[] { tmpDir, crashedDir }) {
+                try(final LabelDB db = new LabelDB(dir, new LabelDB.Options().setWriteAheadLog(true))) {
+                    assertThat(db.find("a").indices, is(new int[] { 2 }));
+                    assertThat(db.find("b").indices, is(new int[] { 0 }));
+                    assertThat(db.find("c").indices, is(new int[] { 2 }));
+                    assertThat(db.find("d").indices, is(new int[] { 10, 11, 12, 13, 14 }));
+                    assertThat(db.firstUnusedIndex(), is(1));
+                }
+                assertThat(dir.list((d, name) -> name.startsWith("wal.")).length, is(1)); // rest was checkpointed
+            }
+        }
+    }
+
+    @Test public void testScrub() throws IOException {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            try(final LabelDB db = new LabelDB(tmpDir)) {
+                for(int index=0; index<30_000; index += 3) db.set(index, 2019_06_01__11_22_33_444L, "a", "b");
+            }
+            // swap bits in the bitmap of a, so the count of set bits stays the same
+            final Path file = new File(tmpDir, "labels/" + Utils.nameToFilename("a") + "/0").toPath();
+            final byte[] data = Files.readAllBytes(file);
+            int offset = data.length / 2;
+            while((byte)Integer.rotateLeft(data[offset] & 0xFF, 1) == data[offset] || data[offset] < 0) offset++;
+            data[offset] = (byte)Integer.rotateLeft(data[offset] & 0xFF, 1);
+            Files.write(file, data);
+
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setMapFiles(true))) {
+                for(int i=0; i<100 && db.getCorruptLabels().isEmpty(); i++) sleep(50);
+                assertThat(db.getCorruptLabels(), is(Collections.singleton("a")));
+            }
+        }
+    }
+
+    @Test public void testSnapshotLevels() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            try(final LabelDB db = new LabelDB(tmpDir)) {
+                db.setAutoCommit(false);
+                for(int index=0; index<1000; index++) {
+                    db.set(index, 2019_06_01__11_22_33_444L, "label" + (index % 37), "all");
+                    assertThat(db.find("all").indices.length, is(index + 1)); // publishes a snapshot each time
+                    assertThat(db.find("label" + (index % 37)).indices.length, is(index / 37 + 1));
+                }
+                for(int label=0; label<37; label++) assertThat(db.find("label" + label).indices.length, is(1000 / 37 + (label < 1000 % 37 ? 1 : 0)));
+            }
+        }
+    }
+
+    @Test public void testCloseStopsWriteThread() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            final LabelDB db = new LabelDB(tmpDir);
+            db.setCommitDebounceMs(0); // waits until notified
+            db.set(0, 2019_06_01__11_22_33_444L, "a");
+            db.close();
+            assertThat(Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("LabelDBWriter"))
+                .anyMatch(Thread::isAlive), is(false));
+        }
+    }
+    @Test public void testStoreFailureIsRetried() throws IOException {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            final File labelsDir = new File(tmpDir, "labels");
+            try(final LabelDB db = new LabelDB(tmpDir)) {
+                db.setAutoCommit(false);
+                db.set(1, 2019_06_01__11_22_33_444L, "a", "b");
+                Utils.deleteDirectory(labelsDir);
+                assertTrue(labelsDir.createNewFile()); // so the labels cannot be stored
+                try {
+                    db.commit();
+                    fail("Expected throw: labels cannot be stored");
+                } catch(final RuntimeException expected) {
+                    // the labels are still altered
+                }
+                assertTrue(labelsDir.delete());
+                db.commit();
+            }
+            try(final LabelDB db = new LabelDB(tmpDir)) {
+                assertThat(db.find("a b").indices, is(new int[] { 1 }));
+            }
+        }
+    }
+
+    @Test public void testParallelStoreFailure() throws IOException {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            final File labelDir = new File(tmpDir, "labels/" + Utils.nameToFilename("a"));
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setStoreThreads(4).setWriteAheadLog(true))) {
+                db.setAutoCommit(false);
+                db.set(1, 2019_06_01__11_22_33_444L, "a", "b", "c");
+                assertTrue(labelDir.getParentFile().mkdirs() && labelDir.createNewFile()); // so only a cannot be stored
+                try {
+                    db.commit();
+                    fail("Expected throw: label a cannot be stored");
+                } catch(final RuntimeException expected) {
+                    // a is still altered
+                }
+                assertThat(tmpDir.list((d, name) -> name.startsWith("wal.")).length > 1, is(true)); // log is not trimmed
+                assertTrue(labelDir.delete());
+                db.commit();
+            }
+            try(final LabelDB db = new LabelDB(tmpDir)) {
+                assertThat(db.find("a b c").indices, is(new int[] { 1 }));
+            }
+        }
+    }
+
+    @Test public void testOffHeapAfterWrite() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setOffHeap(true))) {
+                db.setAutoCommit(false);
+                for(int index=0; index<30_000; index += 3) db.set(index, 2019_06_01__11_22_33_444L, "dense");
+                assertThat(db.getArena().getBitmapCount(), is(0));
+                db.commit(); // stores a snapshot, of which the compacted buckets are used by the live label as well
+                assertThat(db.getArena().getBitmapCount() > 0, is(true));
+                assertThat(db.find("dense").indices.length, is(10_000));
+                db.set(30_000, 2019_06_01__11_22_33_444L, "dense");
+                assertThat(db.find("dense").indices.length, is(10_001));
+            }
+        }
+    }
+
+    @Test public void testStoreThreads() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            for(final int threads : new int[] { 1, 4 }) {
+                try(final LabelDB db = new LabelDB(tmpDir, new LabelDB.Options().setStoreThreads(threads))) {
+                    db.setAutoCommit(false);
+                    for(int index=0; index<100; index++) db.set(index, 2019_06_01__11_22_33_444L, "label" + (index % 10), "threads" + threads);
+                    db.commit();
+                }
+                try(final LabelDB db = new LabelDB(tmpDir)) {
+                    assertThat(db.find("threads" + threads).indices.length, is(100));
+                    for(int label=0; label<10; label++) assertThat(db.find("label" + label).indices.length, is(10));
+                }
+            }
+        }
+    }
+}
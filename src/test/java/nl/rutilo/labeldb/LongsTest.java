@@ -3,6 +3,7 @@ package nl.rutilo.labeldb;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.Random;
 
 import static nl.rutilo.util.testsupport.TestUtils.*;
 import static nl.rutilo.util.testsupport.TestUtils.createTempDir;
@@ -42,8 +43,8 @@ public class LongsTest {
         longs.set(0, 1);
         assertThat(longs.getFirstUnsetIndex(), is(1));
 
-        for(int i=1; i<Longs.DEFAULT_GROWTH_RATE; i++) longs.set(i, i);
-        assertThat(longs.getFirstUnsetIndex(), is(Longs.DEFAULT_GROWTH_RATE));
+        for(int i=1; i<Longs.PAGE_SIZE; i++) longs.set(i, i);
+        assertThat(longs.getFirstUnsetIndex(), is(Longs.PAGE_SIZE));
 
         longs.unset(4, 6);
         assertThat(longs.getFirstUnsetIndex(), is(4));
@@ -52,7 +53,7 @@ public class LongsTest {
         assertThat(longs.getFirstUnsetIndex(), is(6));
 
         longs.set(6, 678);
-        assertThat(longs.getFirstUnsetIndex(), is(Longs.DEFAULT_GROWTH_RATE));
+        assertThat(longs.getFirstUnsetIndex(), is(Longs.PAGE_SIZE));
     }
     @Test public void testLoadAndStore() {
         try(final DeletedWhenClosedFile tempDir = createTempDir()) {
@@ -127,7 +128,6 @@ public class LongsTest {
         final int idBlockSize = (Longs.SAVE_BLOCK_SIZE_KB * 1024) / Long.BYTES; // 512
         final int useGrowthRate = idBlockSize * 10;
         final Longs longs = new Longs("", 0);
-        longs.setGrowthRate(useGrowthRate);
         assertThat(longs.getIndexRangesToStore().length, is(0));
 
         longs.set(1, 1);
@@ -152,6 +152,88 @@ public class LongsTest {
         for(int i = 0; i<useGrowthRate; i++) longs.set(i, i);
         assertThat(longs.getIndexRangesToStore(), is(new int[][] { { 0, useGrowthRate} }));
     }
+    @Test public void testPages() {
+        try(final DeletedWhenClosedFile tempDir = createTempDir()) {
+            final Longs longs = new Longs("test", tempDir);
+            longs.set(1, 1).store();
+            longs.set(Longs.PAGE_SIZE * 5, 5); // pages in between are not allocated
+
+            final Longs snapshot = longs.snapshot();
+            longs.set(1, 2);
+            longs.set(Longs.PAGE_SIZE * 3, 3);
+            assertThat(snapshot.get(1), is(1L));
+            assertThat(snapshot.get(Longs.PAGE_SIZE * 3), is(Longs.VALUE_UNUSED));
+            assertThat(longs.get(1), is(2L));
+            assertThat(longs.getFirstUnsetIndex(), is(0));
+
+            snapshot.store(); // should fill the gap after the first page with unused values
+            final Longs loaded = new Longs("test", tempDir);
+            assertThat(loaded.get(1), is(1L));
+            assertThat(loaded.get(Longs.PAGE_SIZE * 3), is(Longs.VALUE_UNUSED));
+            assertThat(loaded.get(Longs.PAGE_SIZE * 5), is(5L));
+            assertThat(loaded.asBits().countSetBits(), is(2));
+        }
+    }
+    @Test public void testMappedFile() {
+        try(final DeletedWhenClosedFile tempDir = createTempDir()) {
+            final Longs plain = new Longs("test", tempDir);
+            for(int i=0; i<1000; i++) plain.set(i, i);
+            plain.store();
+
+            final Longs mapped = new Longs("test", tempDir, true);
+            assertThat(mapped.isDirty(), is(true)); // the padding of the mapped chunk should be forced by store()
+            mapped.store();
+            assertThat(mapped.get(999), is(999L));
+            assertThat(mapped.get(1000), is(Longs.VALUE_UNUSED));
+            assertThat(mapped.getFirstUnsetIndex(), is(1000));
+
+            final Longs snapshot = mapped.snapshot();
+            mapped.set(500, 1);
+            mapped.set(2_000_000, 2); // grows the file with another chunk
+            assertThat(snapshot.get(500), is(1L)); // mapped values are shared
+            assertThat(mapped.isDirty(), is(true));
+            mapped.store();
+            assertThat(mapped.isDirty(), is(false));
+
+            final Longs reloaded = new Longs("test", tempDir);
+            assertThat(reloaded.get(500), is(1L));
+            assertThat(reloaded.get(999), is(999L));
+            assertThat(reloaded.get(1000), is(Longs.VALUE_UNUSED));
+            assertThat(reloaded.get(2_000_000), is(2L));
+            assertThat(reloaded.asBits().countSetBits(), is(1001));
+
+            mapped.clear();
+            assertThat(mapped.get(500), is(Longs.VALUE_UNUSED));
+            mapped.set(3, 3).store();
+            assertThat(new Longs("test", tempDir, true).asBits().countSetBits(), is(1));
+        }
+    }
+    @Test public void testIndex() {
+        final Random random = new Random(1);
+        final Longs plain = new Longs();
+        final Longs indexed = new Longs().setIndexed(true);
+        assertThat(indexed.isIndexed(), is(true));
+        Longs snapshot = indexed.snapshot();
+        Longs plainSnapshot = plain.snapshot();
+        for(int round=0; round<10_000; round++) {
+            final int index = random.nextInt(5_000);
+            if(random.nextInt(10) == 0) { plain.unset(index); indexed.unset(index); }
+            else { final long value = random.nextInt(1_000); plain.set(index, value); indexed.set(index, value); }
+
+            if(round % 1_000 == 0) {
+                for(int i=0; i<20; i++) {
+                    final long min = random.nextInt(1_100) - 50;
+                    final long max = min + random.nextInt(200);
+                    assertThat(indexed.asBits(min, max).getIndices(), is(plain.asBits(min, max).getIndices()));
+                    assertThat(snapshot.asBits(min, max).getIndices(), is(plainSnapshot.asBits(min, max).getIndices()));
+                }
+                snapshot = indexed.snapshot();
+                plainSnapshot = plain.snapshot();
+            }
+        }
+        indexed.clear();
+        assertThat(indexed.asBits(0, 1_000).countSetBits(), is(0));
+    }
     @Test public void testAsBits() {
         final Longs longs = new Longs("", 100);
 
@@ -0,0 +1,96 @@
+package nl.rutilo.labeldb;
+
+import nl.rutilo.util.testsupport.TestUtils.DeletedWhenClosedFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static nl.rutilo.util.testsupport.TestUtils.createTempDir;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PackFileTest {
+
+    @Test public void testWriteRead() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            final PackFile pack = new PackFile(tmpDir);
+            pack.write("a", collections(PackFile.HEADER_INDEX, new byte[] { 1 }, 3, new byte[] { 2, 3 }, 1, new byte[] { 4 }));
+            pack.write("b", collections(0, new byte[] { 5 }));
+            pack.write("a", collections(1, null, 3, new byte[] { 6 }));
+            pack.close();
+
+            final PackFile reopened = new PackFile(tmpDir);
+            assertThat(reopened.getCollectionIndices("a"), is(new int[] { 3 }));
+            assertThat(reopened.read("a", PackFile.HEADER_INDEX), is(new byte[] { 1 }));
+            assertThat(reopened.read("a", 3), is(new byte[] { 6 }));
+            assertThat(reopened.read("a", 1), is(nullValue()));
+            assertThat(reopened.read("b", 0), is(new byte[] { 5 }));
+            reopened.close();
+        }
+    }
+    @Test public void testParallelWritesAndSync() throws InterruptedException {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            final PackFile pack = new PackFile(tmpDir);
+            final Thread[] threads = new Thread[4];
+            for(int t=0; t<threads.length; t++) {
+                final String label = "label" + t;
+                threads[t] = new Thread(() -> { for(int i=0; i<100; i++) pack.write(label, collections(i, new byte[] { (byte)i, 1, 2, 3 })); });
+                threads[t].start();
+            }
+            for(final Thread thread : threads) thread.join();
+            assertThat(new PackFile(tmpDir).getLabels().size(), is(0)); // not synced yet
+            assertThat(pack.read("label3", 99), is(new byte[] { 99, 1, 2, 3 }));
+            pack.sync();
+
+            final PackFile reopened = new PackFile(tmpDir);
+            for(int t=0; t<threads.length; t++) {
+                assertThat(reopened.getCollectionIndices("label" + t).length, is(100));
+                assertThat(reopened.read("label" + t, 42), is(new byte[] { 42, 1, 2, 3 }));
+            }
+            reopened.close();
+            pack.close();
+        }
+    }
+    @Test public void testCompact() {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            final PackFile pack = new PackFile(tmpDir);
+            for(int i=0; i<10; i++) pack.write("a", collections(0, new byte[] { (byte)i, 1, 2 }));
+            pack.write("b", collections(7, new byte[] { 3 }));
+            pack.compact();
+            assertThat(new File(tmpDir, "labels.0.pack").exists(), is(false));
+            assertThat(new File(tmpDir, "labels.1.pack").length(), is(4L));
+            pack.close();
+
+            final PackFile reopened = new PackFile(tmpDir);
+            assertThat(reopened.read("a", 0), is(new byte[] { 9, 1, 2 }));
+            assertThat(reopened.read("b", 7), is(new byte[] { 3 }));
+            reopened.close();
+        }
+    }
+    @Test public void testInterruptedWrite() throws IOException {
+        try(final DeletedWhenClosedFile tmpDir = createTempDir()) {
+            final PackFile pack = new PackFile(tmpDir);
+            pack.write("a", collections(0, new byte[] { 1 }));
+            pack.close();
+            try(final FileOutputStream out = new FileOutputStream(new File(tmpDir, "labels.index"), true)) {
+                out.write(new byte[] { 0, 1, 'b', 0 }); // incomplete entry
+            }
+            final PackFile reopened = new PackFile(tmpDir);
+            assertThat(reopened.getLabels().size(), is(1));
+            reopened.write("c", collections(0, new byte[] { 2 }));
+            reopened.close();
+            assertThat(new PackFile(tmpDir).read("c", 0), is(new byte[] { 2 }));
+        }
+    }
+
+    private static Map<Integer, byte[]> collections(Object... indexAndData) {
+        final Map<Integer, byte[]> map = new HashMap<>();
+        for(int i=0; i<indexAndData.length; i+=2) map.put((Integer)indexAndData[i], (byte[])indexAndData[i + 1]);
+        return map;
+    }
+}
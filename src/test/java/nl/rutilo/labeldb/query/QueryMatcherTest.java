@@ -2,6 +2,7 @@ package nl.rutilo.labeldb.query;
 
 import nl.rutilo.labeldb.Bits;
 import nl.rutilo.labeldb.Longs;
+import nl.rutilo.labeldb.query.QueryMatcher.MatchCursor;
 import nl.rutilo.labeldb.query.QueryMatcher.MatchResults;
 import org.hamcrest.Matcher;
 import org.junit.Before;
@@ -9,6 +10,7 @@ import org.junit.Test;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
@@ -83,6 +85,17 @@ public class QueryMatcherTest {
         assertThat(match("@unlabeled"), isAll( 1, 11));
     }
 
+    @Test public void testMatchDates() {
+        final String[] queries = { "2019.01", "2018.01.12..2018.01.24", "a 2019.01", "<2019 >2018.02", ">=2018.03", "2017" };
+        final int[][] expected = { { 11, 12, 13, 14, 15, 16, 18 }, { 2, 3, 4, 5 }, { 12, 15, 16, 18 }, { 8 }, { 8, 11, 12, 13, 14, 15, 16, 17, 18, 99 }, {} };
+        for(int i=0; i<queries.length; i++) assertThat(queries[i], match(queries[i]), is(expected[i]));
+
+        dates.setIndexed(true);
+        for(int i=0; i<queries.length; i++) assertThat(queries[i] + " (indexed)", match(queries[i]), is(expected[i]));
+        dates.set(17, 2019_01_30__00_00_00_000L);
+        assertThat(match("2019.01"), is(new int[] { 11, 12, 13, 14, 15, 16, 17, 18 }));
+    }
+
     @Test public void testGetMatchResults() {
         final MatchResults r1 = matcher.getMatchResultsFor("(a AND (b OR c)) OR d");
         assertThat(r1.indices, isAll(5, 6, 8, 15, 16, 18, 99));
@@ -92,6 +105,23 @@ public class QueryMatcherTest {
         assertThat(r1.resultCountPerLabel.get("c"), is(4));
         assertThat(r1.resultCountPerLabel.get("d"), is(1));
     }
+    @Test public void testGetMatchResultsPage() {
+        final MatchResults r1 = matcher.getMatchResultsFor("(a AND (b OR c)) OR d", 2, 3);
+        assertThat(r1.indices, isAll(8, 15, 16));
+        assertThat(r1.matchCount, is(7));
+        assertThat(r1.resultCountPerLabel.get("a"), is(6));
+        assertThat(matcher.getMatchResultsFor("(a AND (b OR c)) OR d", 5, 10).indices, isAll(18, 99));
+        assertThat(matcher.getMatchResultsFor("(a AND (b OR c)) OR d", 7, 10).indices, isAll());
+        assertThat(matcher.getMatchResultsFor("(a AND (b OR c)) OR d", 0, 0).indices, isAll());
+    }
+    @Test public void testGetMatchCursor() {
+        final MatchCursor r1 = matcher.getMatchCursorFor("(a AND (b OR c)) OR d");
+        assertThat(r1.count(), is(7));
+        assertThat(r1.indices().nextInt(), is(5));
+        assertThat(IntStream.generate(r1.indices()::nextInt).limit(r1.count()).toArray(), isAll(5, 6, 8, 15, 16, 18, 99));
+        assertThat(r1.resultCountPerLabel.get("a"), is(6));
+        assertThat(matcher.getMatchCursorFor("a d").indices().hasNext(), is(false));
+    }
 
     private static Matcher<int[]> isAll(int... values) {
         return is(values);
@@ -0,0 +1,35 @@
+package nl.rutilo.labeldb.util;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static nl.rutilo.util.testsupport.TestUtils.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FileBatchTest {
+
+    @Test public void testCommit() {
+        try(final DeletedWhenClosedFile dir = createTempDir()) {
+            final File a = new File(dir, "a");
+            final File b = new File(dir, "sub/b");
+            final File c = new File(dir, "c");
+            Utils.writeStringToFile(a, "old");
+            Utils.writeStringToFile(c, "deleted");
+
+            final FileBatch batch = new FileBatch();
+            batch.add(new FileBatch().replace(b, "b".getBytes(Utils.TEXT_ENCODING)));
+            batch.replace(a, "new".getBytes(Utils.TEXT_ENCODING)).delete(c);
+            assertThat(Utils.fileToString(a).orElse(""), is("old")); // nothing changes until commit
+            assertThat(b.exists(), is(false));
+            assertThat(c.exists(), is(true));
+
+            batch.commit();
+            assertThat(Utils.fileToString(a).orElse(""), is("new"));
+            assertThat(Utils.fileToString(b).orElse(""), is("b"));
+            assertThat(c.exists(), is(false));
+            assertThat(new File(dir, "a.tmp").exists(), is(false));
+        }
+    }
+}